@@ -0,0 +1,143 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.benchmark.http;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.AsyncEntityProducers;
+import org.apache.hc.core5.http.nio.entity.DiscardingEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.http2.ssl.H2ServerTlsStrategy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+
+/**
+ * Embedded local HTTP server for the benchmarks, it reads and discards the request body and answers every request with a fixed body.<br/>
+ * Without TLS it speaks HTTP/1.1, with TLS the protocol is negotiated with ALPN, so HTTP/2 unless the client forces HTTP/1.1.
+ * The TLS certificate is a self signed one that is generated with the keytool of the running JVM.
+ *
+ * @author jblok
+ */
+@SuppressWarnings("nls")
+final class BenchmarkServer implements Closeable
+{
+	private static final char[] KEYSTORE_PASSWORD = "benchmark".toCharArray();
+
+	private final HttpAsyncServer server;
+	private final String url;
+
+	BenchmarkServer(boolean tls, int responseSize) throws Exception
+	{
+		final byte[] payload = new byte[responseSize];
+		Arrays.fill(payload, (byte)'x');
+
+		H2ServerBootstrap bootstrap = H2ServerBootstrap.bootstrap()
+			.setIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(Runtime.getRuntime().availableProcessors()).build())
+			.setVersionPolicy(HttpVersionPolicy.NEGOTIATE)
+			.register("*", new AsyncServerRequestHandler<Message<HttpRequest, Void>>()
+			{
+				@Override
+				public AsyncRequestConsumer<Message<HttpRequest, Void>> prepare(HttpRequest request, EntityDetails entityDetails, HttpContext context)
+				{
+					return new BasicRequestConsumer<Void>(new DiscardingEntityConsumer<Void>());
+				}
+
+				@Override
+				public void handle(Message<HttpRequest, Void> message, ResponseTrigger responseTrigger, HttpContext context)
+					throws HttpException, IOException
+				{
+					responseTrigger.submitResponse(
+						AsyncResponseBuilder.create(HttpStatus.SC_OK).setEntity(AsyncEntityProducers.create(payload, ContentType.APPLICATION_OCTET_STREAM))
+							.build(),
+						context);
+				}
+			});
+		if (tls) bootstrap.setTlsStrategy(new H2ServerTlsStrategy(createSelfSignedContext()));
+
+		server = bootstrap.create();
+		server.start();
+		ListenerEndpoint endpoint = server.listen(new InetSocketAddress("localhost", 0), tls ? URIScheme.HTTPS : URIScheme.HTTP).get();
+		url = (tls ? "https" : "http") + "://localhost:" + ((InetSocketAddress)endpoint.getAddress()).getPort() + "/";
+	}
+
+	String getUrl()
+	{
+		return url;
+	}
+
+	@Override
+	public void close()
+	{
+		server.close(CloseMode.IMMEDIATE);
+	}
+
+	private static SSLContext createSelfSignedContext() throws Exception
+	{
+		File keystore = File.createTempFile("benchmark", ".p12");
+		try
+		{
+			keystore.delete();
+			String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+			String password = new String(KEYSTORE_PASSWORD);
+			Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "RSA", "-keysize", "2048", "-dname",
+				"CN=localhost", "-ext", "SAN=dns:localhost", "-validity", "2", "-storetype", "PKCS12", "-keystore", keystore.getAbsolutePath(), "-storepass",
+				password, "-keypass", password).inheritIO().start();
+			if (process.waitFor() != 0) throw new IOException("keytool couldn't generate the benchmark certificate");
+
+			KeyStore keyStore = KeyStore.getInstance("PKCS12");
+			try (InputStream is = new FileInputStream(keystore))
+			{
+				keyStore.load(is, KEYSTORE_PASSWORD);
+			}
+			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(keyStore, KEYSTORE_PASSWORD);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(kmf.getKeyManagers(), null, null);
+			return context;
+		}
+		finally
+		{
+			keystore.delete();
+		}
+	}
+}
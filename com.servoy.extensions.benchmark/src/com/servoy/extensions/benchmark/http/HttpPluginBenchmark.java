@@ -0,0 +1,195 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.benchmark.http;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.servoy.extensions.plugins.http.HttpClient;
+import com.servoy.extensions.plugins.http.HttpClientConfig;
+import com.servoy.extensions.plugins.http.HttpPlugin;
+import com.servoy.extensions.plugins.http.PostRequest;
+import com.servoy.extensions.plugins.http.PutRequest;
+import com.servoy.extensions.plugins.http.Response;
+
+/**
+ * Throughput and latency of the http plugin against an embedded local server, so tuning changes of the plugin can be checked for regressions
+ * without an external service. Every benchmark is run for each protocol (plain HTTP/1.1, HTTP/1.1 over TLS and HTTP/2 over TLS),
+ * connection pool size and request body size.<br/>
+ * The sync benchmarks run on 8 threads that share one client, so the pool size limits them. The async benchmark dispatches a batch of requests
+ * without callbacks and waits until the client consumed all responses and completed the requests, so it measures the async request pipeline
+ * of the client without the script callback dispatch.<br/>
+ * Run with: java -jar target/benchmarks.jar HttpPluginBenchmark (add -p protocol=http2 -p poolSize=20 to select parameters).
+ *
+ * @author jblok
+ */
+@SuppressWarnings("nls")
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(8)
+public class HttpPluginBenchmark
+{
+	private static final int RESPONSE_SIZE = 1024;
+	private static final int ASYNC_BATCH = 64;
+	private static final long ASYNC_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+	@Param({ "http1", "https1", "http2" })
+	public String protocol;
+
+	@Param({ "5", "20" })
+	public int poolSize;
+
+	@Param({ "1024", "1048576" })
+	public int bodySize;
+
+	private BenchmarkServer server;
+	private HttpPlugin plugin;
+	private HttpClient client;
+	private String url;
+	private String body;
+	private File bodyFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		server = new BenchmarkServer(!"http1".equals(protocol), RESPONSE_SIZE);
+		url = server.getUrl();
+
+		HttpClientConfig config = new HttpClientConfig();
+		config.js_setMaxConnectionsPerRoute(poolSize);
+		config.js_setMaxTotalConnections(poolSize);
+		config.js_setForceHttp1(!"http2".equals(protocol));
+		// the server has a self signed certificate
+		config.js_setHostValidation(false);
+		plugin = new HttpPlugin();
+		client = new HttpClient(plugin, config);
+
+		char[] chars = new char[bodySize];
+		Arrays.fill(chars, 'x');
+		body = new String(chars);
+		bodyFile = File.createTempFile("benchmark", ".bin");
+		try (OutputStream os = new FileOutputStream(bodyFile))
+		{
+			os.write(body.getBytes("UTF-8"));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		client.js_close();
+		plugin.unload();
+		server.close();
+		bodyFile.delete();
+	}
+
+	@Benchmark
+	public int get()
+	{
+		return check(client.js_createGetRequest(url).js_executeRequest());
+	}
+
+	/**
+	 * Body from a string, buffered as a byte array.
+	 */
+	@Benchmark
+	public int postBuffered()
+	{
+		PostRequest request = client.js_createPostRequest(url);
+		request.js_setBodyContent(body, "text/plain");
+		return check(request.js_executeRequest());
+	}
+
+	/**
+	 * Body streamed from a file.
+	 */
+	@Benchmark
+	public int putStreamed()
+	{
+		PutRequest request = client.js_createPutRequest(url);
+		request.js_addFile(null, null, bodyFile.getAbsolutePath(), "application/octet-stream");
+		return check(request.js_executeRequest());
+	}
+
+	/**
+	 * Multipart body with a parameter and a file, written by the MultiPartEntityProducer.
+	 */
+	@Benchmark
+	public int postMultipart()
+	{
+		PostRequest request = client.js_createPostRequest(url);
+		request.js_addParameter("name", "value");
+		request.js_addFile("file", bodyFile.getName(), bodyFile.getAbsolutePath(), "application/octet-stream");
+		return check(request.js_executeRequest());
+	}
+
+	@Benchmark
+	@Threads(1)
+	@OperationsPerInvocation(ASYNC_BATCH)
+	public long getAsync() throws IOException
+	{
+		long failed = plugin.getFailedRequestCount();
+		long target = plugin.getCompletedRequestCount() + ASYNC_BATCH;
+		for (int i = 0; i < ASYNC_BATCH; i++)
+		{
+			client.js_createGetRequest(url).js_executeAsyncRequest(null, null);
+		}
+		long deadline = System.nanoTime() + ASYNC_TIMEOUT;
+		long completed;
+		// the plugin counts a request as completed when its response is fully consumed
+		while ((completed = plugin.getCompletedRequestCount()) < target)
+		{
+			if (plugin.getFailedRequestCount() != failed) throw new IOException("Async requests failed");
+			if (System.nanoTime() > deadline) throw new IOException("Async requests not completed, " + (target - completed) + " missing");
+			LockSupport.parkNanos(10000);
+		}
+		return completed;
+	}
+
+	private static int check(Response response)
+	{
+		int status = response.js_getStatusCode();
+		if (status != 200) throw new IllegalStateException("Request failed: " + status + " " + response.js_getException());
+		// reads the body, so the connection goes back to the pool
+		return response.js_getResponseBody().length();
+	}
+}
@@ -0,0 +1,783 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.plugins.broadcaster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.servoy.j2db.dataprocessing.BroadcastFilter;
+import com.servoy.j2db.dataprocessing.BufferedDataSet;
+import com.servoy.j2db.dataprocessing.IDataSet;
+import com.servoy.j2db.util.DataSourceUtils;
+import com.servoy.j2db.util.Debug;
+import com.servoy.j2db.util.UUID;
+
+/**
+ * Binary encoding of the {@link NotifyData} and {@link BroadcastMessage} objects that are sent over the AMQP exchange.<br/>
+ * A message starts with a marker byte and a version byte, so it can't be mistaken for java serialization (that always starts with 0xACED)
+ * and a server can refuse messages of a newer version. Numbers and lengths are varints, every string is written once per message
+ * and referenced by its index after that, the pks and column data are written with a tag per value. Values of other types than the common
+ * ones are written with java serialization. Messages above 1KB are deflated when that makes them smaller.
+ * A batch of notify data is written as one message that shares the string table, with version 2 so servers that don't know batches refuse it;
+ * batches are only encoded when that is turned on, when every server of the cluster reads them.<br/>
+ * Decoding accepts java serialized messages as well, unless that is turned off, and encoding uses java serialization until it is switched
+ * to this format, when every server of the cluster can decode it. Everything that is java deserialized, a whole message or a value in a message,
+ * is checked by a filter that only allows the concrete classes this codec writes: the broadcast classes, the datasets and filters and the common value types.
+ * A change with a value of another type (like a driver specific type in a pk) is sent as a flush of its table, and when a value of a change in this format
+ * is refused by the filter of the receiving server, that server flushes the table instead.
+ *
+ * @author jcompagner
+ */
+@SuppressWarnings("nls")
+final class BroadcastCodec
+{
+	private static final byte MARKER = (byte)0xB5;
+	private static final byte VERSION = 1;
+	private static final byte BATCH_VERSION = 2;
+
+	private static final int FLAG_COMPRESSED = 1;
+	private static final int COMPRESS_THRESHOLD = 1024;
+	private static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+	private static final int TYPE_FLUSH = 1;
+	private static final int TYPE_CHANGE = 2;
+	private static final int TYPE_MESSAGE = 3;
+	private static final int TYPE_BATCH = 4;
+
+	private static final int DATASET_NULL = 0;
+	private static final int DATASET_BUFFERED = 1;
+	private static final int DATASET_SERIALIZED = 2;
+
+	private static final int VALUE_NULL = 0;
+	private static final int VALUE_STRING = 1;
+	private static final int VALUE_INTEGER = 2;
+	private static final int VALUE_LONG = 3;
+	private static final int VALUE_DOUBLE = 4;
+	private static final int VALUE_TRUE = 5;
+	private static final int VALUE_FALSE = 6;
+	private static final int VALUE_DATE = 7;
+	private static final int VALUE_BYTES = 8;
+	private static final int VALUE_BIG_DECIMAL = 9;
+	private static final int VALUE_SERIALIZED = 15;
+
+	// Object is only there as the component type of Object[], it isn't serializable itself
+	private static final Set<String> ALLOWED_CLASSES = new HashSet<String>(Arrays.asList(NotifyData.class.getName(), BroadcastMessage.class.getName(),
+		UUID.class.getName(), BufferedDataSet.class.getName(), "com.servoy.j2db.query.ColumnType", "com.servoy.j2db.util.SafeArrayList",
+		BroadcastFilter.class.getName(), ArrayList.class.getName(), Object.class.getName(), String.class.getName(), Boolean.class.getName(),
+		Character.class.getName(), Number.class.getName(), Byte.class.getName(), Short.class.getName(), Integer.class.getName(), Long.class.getName(),
+		Float.class.getName(), Double.class.getName(), BigInteger.class.getName(), BigDecimal.class.getName(), Date.class.getName(),
+		java.sql.Date.class.getName(), Time.class.getName(), Timestamp.class.getName()));
+	private static final ObjectInputFilter SERIALIZATION_FILTER = BroadcastCodec::checkSerialization;
+	private static final int MAX_SERIALIZATION_DEPTH = 32;
+
+	private final boolean javaSerialization;
+	private final boolean acceptJavaSerialization;
+	private final boolean batches;
+
+	/**
+	 * @param javaSerialization if messages must be encoded with java serialization, for servers that don't know this format
+	 * @param acceptJavaSerialization if java serialized messages of servers that don't know this format are decoded, otherwise they are refused
+	 * @param batches if a batch of notify data can be encoded as one message, for clusters where every server reads batches
+	 */
+	BroadcastCodec(boolean javaSerialization, boolean acceptJavaSerialization, boolean batches)
+	{
+		this.javaSerialization = javaSerialization;
+		this.acceptJavaSerialization = acceptJavaSerialization;
+		this.batches = batches;
+	}
+
+	byte[] encode(Object value) throws IOException
+	{
+		Object object = value;
+		if (object instanceof NotifyData)
+		{
+			object = toAllowedNotifyData((NotifyData)object);
+		}
+		else if (object instanceof NotifyData[])
+		{
+			NotifyData[] batch = ((NotifyData[])object).clone();
+			for (int i = 0; i < batch.length; i++)
+			{
+				batch[i] = toAllowedNotifyData(batch[i]);
+			}
+			object = batch;
+		}
+		if (javaSerialization) return serialize(object);
+
+		Writer writer = new Writer();
+		if (object instanceof NotifyData)
+		{
+			writeNotifyData(writer, (NotifyData)object);
+		}
+		else if (object instanceof NotifyData[])
+		{
+			NotifyData[] batch = (NotifyData[])object;
+			writer.writeVarint(TYPE_BATCH);
+			writer.writeVarint(batch.length);
+			for (NotifyData nd : batch)
+			{
+				writeNotifyData(writer, nd);
+			}
+		}
+		else if (object instanceof BroadcastMessage)
+		{
+			BroadcastMessage message = (BroadcastMessage)object;
+			writer.writeVarint(TYPE_MESSAGE);
+			writer.writeString(message.originServerUUID);
+			writer.writeString(message.getMessage());
+			writer.writeString(message.getName());
+			writer.writeString(message.getChannelName());
+		}
+		else
+		{
+			return serialize(object);
+		}
+
+		byte[] payload = writer.toByteArray();
+		Writer out = new Writer();
+		out.write(MARKER);
+		out.write(object instanceof NotifyData[] ? BATCH_VERSION : VERSION);
+		byte[] compressed = payload.length > COMPRESS_THRESHOLD ? deflate(payload) : null;
+		if (compressed != null && compressed.length < payload.length)
+		{
+			out.write(FLAG_COMPRESSED);
+			out.writeVarint(payload.length);
+			out.write(compressed, 0, compressed.length);
+		}
+		else
+		{
+			out.write(0);
+			out.write(payload, 0, payload.length);
+		}
+		return out.toByteArray();
+	}
+
+	Object decode(byte[] bytes) throws IOException, ClassNotFoundException
+	{
+		if (bytes.length < 3 || bytes[0] != MARKER)
+		{
+			if (!acceptJavaSerialization) throw new IOException("Java serialized broadcast message refused, accepting them is turned off");
+			return deserialize(bytes);
+		}
+
+		if (bytes[1] > BATCH_VERSION)
+		{
+			throw new IOException("Broadcast message of version " + bytes[1] + ", this server only knows up to version " + BATCH_VERSION);
+		}
+		Reader reader = new Reader(bytes, 3);
+		if ((bytes[2] & FLAG_COMPRESSED) != 0)
+		{
+			int length = (int)reader.readVarint();
+			if (length < 0 || length > MAX_MESSAGE_SIZE) throw new IOException("Broadcast message too big: " + length);
+			reader = new Reader(inflate(bytes, reader.position, length), 0);
+		}
+
+		int type = (int)reader.readVarint();
+		switch (type)
+		{
+			case TYPE_FLUSH :
+			case TYPE_CHANGE :
+				return readNotifyData(reader, type);
+			case TYPE_BATCH :
+			{
+				long count = reader.readVarint();
+				if (count < 0 || count > MAX_MESSAGE_SIZE) throw new IOException("Broadcast batch too big: " + count);
+				NotifyData[] batch = new NotifyData[(int)count];
+				for (int i = 0; i < batch.length; i++)
+				{
+					batch[i] = readNotifyData(reader, (int)reader.readVarint());
+				}
+				return batch;
+			}
+			case TYPE_MESSAGE :
+			{
+				String origin = reader.readString();
+				String message = reader.readString();
+				String name = reader.readString();
+				return new BroadcastMessage(origin, message, name, reader.readString());
+			}
+			default :
+				throw new IOException("Unknown broadcast message type " + type);
+		}
+	}
+
+	/**
+	 * @return true if a batch of notify data can be encoded as one message, only when batches are turned on,
+	 *         java serialized batches are not understood by older servers
+	 */
+	boolean canEncodeBatch()
+	{
+		return batches && !javaSerialization;
+	}
+
+	private static void writeNotifyData(Writer writer, NotifyData nd) throws IOException
+	{
+		if (nd.dataSource != null)
+		{
+			writer.writeVarint(TYPE_FLUSH);
+			writer.writeString(nd.originServerUUID);
+			writer.writeString(nd.dataSource);
+		}
+		else
+		{
+			writer.writeVarint(TYPE_CHANGE);
+			writer.writeString(nd.originServerUUID);
+			writer.writeString(nd.server_name);
+			writer.writeString(nd.table_name);
+			writer.writeSignedVarint(nd.action);
+			writer.writeDataSet(nd.pks);
+			writer.writeValues(nd.insertColumnData);
+		}
+		writer.writeFilters(nd.broadcastFilters);
+	}
+
+	private static NotifyData readNotifyData(Reader reader, int type) throws IOException, ClassNotFoundException
+	{
+		if (type == TYPE_FLUSH)
+		{
+			String origin = reader.readString();
+			String dataSource = reader.readString();
+			// refused filters are read as null, so the whole table is flushed
+			return new NotifyData(origin, dataSource, reader.readFilters());
+		}
+		if (type != TYPE_CHANGE) throw new IOException("Unknown notify data type " + type);
+		reader.refused = null;
+		String origin = reader.readString();
+		String serverName = reader.readString();
+		String tableName = reader.readString();
+		int action = (int)reader.readSignedVarint();
+		IDataSet pks = reader.readDataSet();
+		Object[] insertColumnData = reader.readValues();
+		BroadcastFilter[] filters = reader.readFilters();
+		if (reader.refused != null)
+		{
+			Debug.warn("A change of " + serverName + "." + tableName + " has a value that can't be read (" + reader.refused.getMessage() +
+				"), the table is flushed instead");
+			return new NotifyData(origin, DataSourceUtils.createDBTableDataSource(serverName, tableName), filters);
+		}
+		return new NotifyData(origin, serverName, tableName, pks, action, insertColumnData, filters);
+	}
+
+	/**
+	 * @return the notify data, or a flush of its table when it has values that the filter of the receiving servers refuses
+	 */
+	private static NotifyData toAllowedNotifyData(NotifyData nd)
+	{
+		if (nd == null || nd.dataSource != null) return nd;
+		boolean allowed = isAllowed(nd.insertColumnData);
+		if (allowed && nd.pks != null)
+		{
+			allowed = isAllowed(nd.pks.getClass());
+			for (int i = 0; allowed && i < nd.pks.getRowCount(); i++)
+			{
+				allowed = isAllowed(nd.pks.getRow(i));
+			}
+		}
+		BroadcastFilter[] filters = nd.broadcastFilters;
+		for (int i = 0; filters != null && i < filters.length; i++)
+		{
+			if (filters[i] != null && !isAllowed(new Object[] { filters[i].getValue() }))
+			{
+				// flush for all clients, the filters can't be sent
+				allowed = false;
+				filters = null;
+			}
+		}
+		if (allowed) return nd;
+		Debug.trace("A change of " + nd.server_name + "." + nd.table_name + " has a value that other servers can't read, the table is flushed instead");
+		return new NotifyData(nd.originServerUUID, DataSourceUtils.createDBTableDataSource(nd.server_name, nd.table_name), filters);
+	}
+
+	private static boolean isAllowed(Object[] values)
+	{
+		for (int i = 0; values != null && i < values.length; i++)
+		{
+			Object value = values[i];
+			if (value instanceof Object[] ? !isAllowed((Object[])value) : value != null && !isAllowed(value.getClass())) return false;
+		}
+		return true;
+	}
+
+	private static boolean isAllowed(Class< ? > type)
+	{
+		Class< ? > cls = type;
+		while (cls.isArray())
+		{
+			cls = cls.getComponentType();
+		}
+		return cls.isPrimitive() || ALLOWED_CLASSES.contains(cls.getName());
+	}
+
+	private static byte[] serialize(Object object) throws IOException
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (ObjectOutputStream oos = new ObjectOutputStream(baos))
+		{
+			oos.writeObject(object);
+		}
+		return baos.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException
+	{
+		try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes)))
+		{
+			ois.setObjectInputFilter(SERIALIZATION_FILTER);
+			return ois.readObject();
+		}
+	}
+
+	/**
+	 * Allows the concrete classes that are written: the broadcast classes, the servoy dataset and filter classes, the common value types
+	 * and arrays of those or of primitives. Any other class is rejected, so a message can't instantiate a class that does harm when deserialized.
+	 */
+	private static ObjectInputFilter.Status checkSerialization(ObjectInputFilter.FilterInfo info)
+	{
+		if (info.depth() > MAX_SERIALIZATION_DEPTH || info.arrayLength() > MAX_MESSAGE_SIZE) return ObjectInputFilter.Status.REJECTED;
+		Class< ? > cls = info.serialClass();
+		if (cls == null) return ObjectInputFilter.Status.UNDECIDED;
+		return isAllowed(cls) ? ObjectInputFilter.Status.ALLOWED : ObjectInputFilter.Status.REJECTED;
+	}
+
+	private static byte[] deflate(byte[] bytes)
+	{
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try
+		{
+			deflater.setInput(bytes);
+			deflater.finish();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 2);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished())
+			{
+				int count = deflater.deflate(buffer);
+				baos.write(buffer, 0, count);
+			}
+			return baos.toByteArray();
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] bytes, int offset, int length) throws IOException
+	{
+		Inflater inflater = new Inflater();
+		try
+		{
+			inflater.setInput(bytes, offset, bytes.length - offset);
+			byte[] result = new byte[length];
+			int count = 0;
+			while (count < length && !inflater.finished())
+			{
+				int inflated = inflater.inflate(result, count, length - count);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				count += inflated;
+			}
+			if (count != length) throw new EOFException("Compressed broadcast message is truncated");
+			return result;
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("Compressed broadcast message is corrupt", e);
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+
+	private static class Writer extends ByteArrayOutputStream
+	{
+		private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+		void writeVarint(long value)
+		{
+			long v = value;
+			while ((v & ~0x7FL) != 0)
+			{
+				write((int)((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			write((int)v);
+		}
+
+		void writeSignedVarint(long value)
+		{
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		/**
+		 * 0 for null, 1 followed by the utf-8 bytes for a new string, 2 or higher for the index + 2 of a string that was written before.
+		 */
+		void writeString(String s)
+		{
+			if (s == null)
+			{
+				writeVarint(0);
+				return;
+			}
+			Integer index = strings.get(s);
+			if (index != null)
+			{
+				writeVarint(index.intValue() + 2L);
+				return;
+			}
+			strings.put(s, Integer.valueOf(strings.size()));
+			writeVarint(1);
+			writeByteArray(s.getBytes(StandardCharsets.UTF_8));
+		}
+
+		void writeByteArray(byte[] bytes)
+		{
+			writeVarint(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+
+		void writeDataSet(IDataSet set) throws IOException
+		{
+			if (set == null)
+			{
+				writeVarint(DATASET_NULL);
+			}
+			else if (set.getClass() == BufferedDataSet.class && !set.hadMoreRows())
+			{
+				writeVarint(DATASET_BUFFERED);
+				String[] columnNames = set.getColumnNames();
+				writeVarint(columnNames == null ? 0 : columnNames.length + 1L);
+				for (int i = 0; columnNames != null && i < columnNames.length; i++)
+				{
+					writeString(columnNames[i]);
+				}
+				int[] columnTypes = set.getColumnTypes();
+				writeVarint(columnTypes == null ? 0 : columnTypes.length + 1L);
+				for (int i = 0; columnTypes != null && i < columnTypes.length; i++)
+				{
+					writeSignedVarint(columnTypes[i]);
+				}
+				int rowCount = set.getRowCount();
+				writeVarint(rowCount);
+				for (int i = 0; i < rowCount; i++)
+				{
+					writeValues(set.getRow(i));
+				}
+			}
+			else
+			{
+				writeVarint(DATASET_SERIALIZED);
+				writeByteArray(serialize(set));
+			}
+		}
+
+		void writeFilters(BroadcastFilter[] filters) throws IOException
+		{
+			// filters are rare and small, they keep their java serialization
+			if (filters == null)
+			{
+				writeVarint(0);
+			}
+			else
+			{
+				writeVarint(1);
+				writeByteArray(serialize(filters));
+			}
+		}
+
+		void writeValues(Object[] values) throws IOException
+		{
+			if (values == null)
+			{
+				writeVarint(0);
+				return;
+			}
+			writeVarint(values.length + 1L);
+			for (Object value : values)
+			{
+				writeValue(value);
+			}
+		}
+
+		void writeValue(Object value) throws IOException
+		{
+			// only the exact classes, subclasses like Timestamp must keep their type
+			Class< ? > cls = value != null ? value.getClass() : null;
+			if (value == null)
+			{
+				writeVarint(VALUE_NULL);
+			}
+			else if (cls == String.class)
+			{
+				writeVarint(VALUE_STRING);
+				writeString((String)value);
+			}
+			else if (cls == Integer.class)
+			{
+				writeVarint(VALUE_INTEGER);
+				writeSignedVarint(((Integer)value).intValue());
+			}
+			else if (cls == Long.class)
+			{
+				writeVarint(VALUE_LONG);
+				writeSignedVarint(((Long)value).longValue());
+			}
+			else if (cls == Double.class)
+			{
+				writeVarint(VALUE_DOUBLE);
+				long bits = Double.doubleToLongBits(((Double)value).doubleValue());
+				for (int i = 56; i >= 0; i -= 8)
+				{
+					write((int)(bits >>> i));
+				}
+			}
+			else if (cls == Boolean.class)
+			{
+				writeVarint(((Boolean)value).booleanValue() ? VALUE_TRUE : VALUE_FALSE);
+			}
+			else if (cls == Date.class)
+			{
+				writeVarint(VALUE_DATE);
+				writeSignedVarint(((Date)value).getTime());
+			}
+			else if (cls == byte[].class)
+			{
+				writeVarint(VALUE_BYTES);
+				writeByteArray((byte[])value);
+			}
+			else if (cls == BigDecimal.class)
+			{
+				writeVarint(VALUE_BIG_DECIMAL);
+				writeSignedVarint(((BigDecimal)value).scale());
+				writeByteArray(((BigDecimal)value).unscaledValue().toByteArray());
+			}
+			else
+			{
+				writeVarint(VALUE_SERIALIZED);
+				writeByteArray(serialize(value));
+			}
+		}
+	}
+
+	private static class Reader
+	{
+		private final byte[] bytes;
+		private final List<String> strings = new ArrayList<String>();
+		// the last value that is refused by the serialization filter or is of an unknown class, the notify data that has it is replaced by a flush
+		Exception refused;
+		int position;
+
+		Reader(byte[] bytes, int position)
+		{
+			this.bytes = bytes;
+			this.position = position;
+		}
+
+		int read() throws EOFException
+		{
+			if (position >= bytes.length) throw new EOFException("Broadcast message is truncated");
+			return bytes[position++] & 0xFF;
+		}
+
+		long readVarint() throws IOException
+		{
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7)
+			{
+				int b = read();
+				value |= (long)(b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return value;
+			}
+			throw new IOException("Malformed varint in broadcast message");
+		}
+
+		long readSignedVarint() throws IOException
+		{
+			long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		String readString() throws IOException
+		{
+			long value = readVarint();
+			if (value == 0) return null;
+			if (value == 1)
+			{
+				String s = new String(readBytes(), StandardCharsets.UTF_8);
+				strings.add(s);
+				return s;
+			}
+			long index = value - 2;
+			if (index >= strings.size()) throw new IOException("Unknown string " + index + " in broadcast message");
+			return strings.get((int)index);
+		}
+
+		byte[] readBytes() throws IOException
+		{
+			long length = readVarint();
+			if (length > bytes.length - position) throw new EOFException("Broadcast message is truncated");
+			byte[] result = new byte[(int)length];
+			System.arraycopy(bytes, position, result, 0, result.length);
+			position += result.length;
+			return result;
+		}
+
+		/**
+		 * @return the count of an array that was written with its length + 1, -1 for null
+		 */
+		int readCount() throws IOException
+		{
+			long value = readVarint();
+			// every element takes at least one byte
+			if (value - 1 > bytes.length - position) throw new EOFException("Broadcast message is truncated");
+			return (int)value - 1;
+		}
+
+		IDataSet readDataSet() throws IOException, ClassNotFoundException
+		{
+			int kind = (int)readVarint();
+			switch (kind)
+			{
+				case DATASET_NULL :
+					return null;
+				case DATASET_BUFFERED :
+				{
+					int columnCount = readCount();
+					String[] columnNames = columnCount < 0 ? null : new String[columnCount];
+					for (int i = 0; i < columnCount; i++)
+					{
+						columnNames[i] = readString();
+					}
+					int typeCount = readCount();
+					int[] columnTypes = typeCount < 0 ? null : new int[typeCount];
+					for (int i = 0; i < typeCount; i++)
+					{
+						columnTypes[i] = (int)readSignedVarint();
+					}
+					long rowCount = readVarint();
+					if (rowCount > bytes.length - position) throw new EOFException("Broadcast message is truncated");
+					List<Object[]> rows = new ArrayList<Object[]>((int)rowCount);
+					for (int i = 0; i < rowCount; i++)
+					{
+						rows.add(readValues());
+					}
+					return new BufferedDataSet(columnNames, columnTypes, rows);
+				}
+				case DATASET_SERIALIZED :
+					return (IDataSet)deserializeValue(readBytes());
+				default :
+					throw new IOException("Unknown dataset kind " + kind + " in broadcast message");
+			}
+		}
+
+		BroadcastFilter[] readFilters() throws IOException, ClassNotFoundException
+		{
+			return readVarint() == 0 ? null : (BroadcastFilter[])deserializeValue(readBytes());
+		}
+
+		/**
+		 * @return the deserialized value, null if its class is refused or not known, the bytes of the value are read completely in both cases
+		 */
+		private Object deserializeValue(byte[] valueBytes) throws IOException
+		{
+			try
+			{
+				return deserialize(valueBytes);
+			}
+			catch (InvalidClassException | ClassNotFoundException e)
+			{
+				refused = e;
+				return null;
+			}
+		}
+
+		Object[] readValues() throws IOException, ClassNotFoundException
+		{
+			int count = readCount();
+			if (count < 0) return null;
+			Object[] values = new Object[count];
+			for (int i = 0; i < count; i++)
+			{
+				values[i] = readValue();
+			}
+			return values;
+		}
+
+		Object readValue() throws IOException, ClassNotFoundException
+		{
+			int tag = (int)readVarint();
+			switch (tag)
+			{
+				case VALUE_NULL :
+					return null;
+				case VALUE_STRING :
+					return readString();
+				case VALUE_INTEGER :
+					return Integer.valueOf((int)readSignedVarint());
+				case VALUE_LONG :
+					return Long.valueOf(readSignedVarint());
+				case VALUE_DOUBLE :
+				{
+					long bits = 0;
+					for (int i = 0; i < 8; i++)
+					{
+						bits = (bits << 8) | read();
+					}
+					return Double.valueOf(Double.longBitsToDouble(bits));
+				}
+				case VALUE_TRUE :
+					return Boolean.TRUE;
+				case VALUE_FALSE :
+					return Boolean.FALSE;
+				case VALUE_DATE :
+					return new Date(readSignedVarint());
+				case VALUE_BYTES :
+					return readBytes();
+				case VALUE_BIG_DECIMAL :
+				{
+					int scale = (int)readSignedVarint();
+					return new BigDecimal(new BigInteger(readBytes()), scale);
+				}
+				case VALUE_SERIALIZED :
+					return deserializeValue(readBytes());
+				default :
+					throw new IOException("Unknown value tag " + tag + " in broadcast message");
+			}
+		}
+	}
+}
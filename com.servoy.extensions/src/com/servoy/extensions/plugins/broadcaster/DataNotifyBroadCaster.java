@@ -17,13 +17,9 @@
 
 package com.servoy.extensions.plugins.broadcaster;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -70,6 +66,8 @@ public class DataNotifyBroadCaster implements IServerPlugin
 
 	private IBroadcastMessageConsumer messageConsumer;
 	private IServerAccess application;
+	private BroadcastCodec codec = new BroadcastCodec(true, true, false);
+	private DataNotifyListener dataNotifyListener;
 
 	@Override
 	public void load() throws PluginException
@@ -81,6 +79,7 @@ public class DataNotifyBroadCaster implements IServerPlugin
 	{
 		try
 		{
+			if (dataNotifyListener != null) dataNotifyListener.close();
 			if (channel != null) channel.close();
 			if (connection != null) connection.close();
 		}
@@ -102,6 +101,12 @@ public class DataNotifyBroadCaster implements IServerPlugin
 	public void initialize(IServerAccess app) throws PluginException
 	{
 		this.application = app;
+		// java serialization until the operator switches to binary, when every server of the cluster reads it
+		boolean javaSerialization = !"binary".equalsIgnoreCase(app.getSettings().getProperty("amqpbroadcaster.serialization", "java").trim());
+		// a server that sends java serialized messages gets those back as well
+		codec = new BroadcastCodec(javaSerialization,
+			javaSerialization || Boolean.valueOf(app.getSettings().getProperty("amqpbroadcaster.acceptjavaserialization", "true").trim()).booleanValue(),
+			Boolean.valueOf(app.getSettings().getProperty("amqpbroadcaster.batches", "false").trim()).booleanValue());
 		String hostname = app.getSettings().getProperty("amqpbroadcaster.hostname");
 		if (hostname != null && !hostname.trim().equals(""))
 		{
@@ -222,7 +227,11 @@ public class DataNotifyBroadCaster implements IServerPlugin
 				channel = connection.createChannel();
 
 				channel.exchangeDeclare(exchangeName, "fanout");
-				dataNotifyService.registerDataNotifyListener(new DataNotifyListener(ORIGIN_SERVER_UUID, channel, connection, exchangeName, routingKey));
+				long coalesceWindow = Utils.getAsInteger(app.getSettings().getProperty("amqpbroadcaster.coalescewindow", "0"));
+				int maxCoalescedPks = Utils.getAsInteger(app.getSettings().getProperty("amqpbroadcaster.coalescemaxpks", "1000"));
+				dataNotifyListener = new DataNotifyListener(ORIGIN_SERVER_UUID, channel, connection, exchangeName, routingKey, codec, coalesceWindow,
+					maxCoalescedPks);
+				dataNotifyService.registerDataNotifyListener(dataNotifyListener);
 
 				String queueName = channel.queueDeclare().getQueue();
 				channel.queueBind(queueName, exchangeName, routingKey);
@@ -233,25 +242,19 @@ public class DataNotifyBroadCaster implements IServerPlugin
 					@Override
 					public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException
 					{
-						ByteArrayInputStream bais = new ByteArrayInputStream(body);
-						ObjectInputStream ois = new ObjectInputStream(bais);
 						try
 						{
-							Object readObject = ois.readObject();
+							Object readObject = codec.decode(body);
 							if (readObject instanceof NotifyData)
 							{
-								NotifyData nd = (NotifyData)readObject;
-								if (!ORIGIN_SERVER_UUID.equals(nd.originServerUUID))
+								handleNotifyData(dataNotifyService, (NotifyData)readObject);
+							}
+							else if (readObject instanceof NotifyData[])
+							{
+								// a coalesced batch, applied in the order the changes were made
+								for (NotifyData nd : (NotifyData[])readObject)
 								{
-									if (nd.dataSource != null)
-									{
-										dataNotifyService.flushCachedDatabaseData(nd.dataSource, nd.broadcastFilters);
-									}
-									else
-									{
-										dataNotifyService.notifyDataChange(nd.server_name, nd.table_name, nd.pks, nd.action, nd.insertColumnData,
-											nd.broadcastFilters);
-									}
+									handleNotifyData(dataNotifyService, nd);
 								}
 							}
 							else if (readObject instanceof BroadcastMessage)
@@ -288,6 +291,21 @@ public class DataNotifyBroadCaster implements IServerPlugin
 		}
 	}
 
+	private static void handleNotifyData(IDataNotifyService dataNotifyService, NotifyData nd)
+	{
+		if (!ORIGIN_SERVER_UUID.equals(nd.originServerUUID))
+		{
+			if (nd.dataSource != null)
+			{
+				dataNotifyService.flushCachedDatabaseData(nd.dataSource, nd.broadcastFilters);
+			}
+			else
+			{
+				dataNotifyService.notifyDataChange(nd.server_name, nd.table_name, nd.pks, nd.action, nd.insertColumnData, nd.broadcastFilters);
+			}
+		}
+	}
+
 	public IBroadcastMessageSender registerMessageBroadcastConsumer(IBroadcastMessageConsumer mc)
 	{
 		if (this.channel != null)
@@ -296,13 +314,10 @@ public class DataNotifyBroadCaster implements IServerPlugin
 			final String routing = application.getSettings().getProperty("amqpbroadcaster.routingkey", ROUTING_KEY);
 			this.messageConsumer = mc;
 			return (message) -> {
-				ByteArrayOutputStream baos;
+				byte[] bytes;
 				try
 				{
-					baos = new ByteArrayOutputStream();
-					ObjectOutputStream oos = new ObjectOutputStream(baos);
-					oos.writeObject(message);
-					oos.close();
+					bytes = codec.encode(message);
 				}
 				catch (Exception e)
 				{
@@ -311,10 +326,7 @@ public class DataNotifyBroadCaster implements IServerPlugin
 				}
 				try
 				{
-					if (baos != null)
-					{
-						channel.basicPublish(exchange, routing, null, baos.toByteArray());
-					}
+					channel.basicPublish(exchange, routing, null, bytes);
 				}
 				catch (Exception e)
 				{
@@ -346,6 +358,16 @@ public class DataNotifyBroadCaster implements IServerPlugin
 		req.put("amqpbroadcaster.keystore.password", "The password to access/read the keystore and key of the amqpbroadcaster.keystore.path");
 		req.put("amqpbroadcaster.tlsprotocols",
 			"When set this will enabled TLS communication over the given protocol like TLSv1.2 or TLSv1.3. WARNING: Without a keystore this will not verify the certificates only enable tls communication");
+		req.put("amqpbroadcaster.serialization",
+			"The format of the databroadcast messages: java (java serialization, default) or binary (compact); only set binary when every server of the cluster reads the binary format, these servers read both formats");
+		req.put("amqpbroadcaster.acceptjavaserialization",
+			"When set to false java serialized databroadcast messages are refused, set it when all servers of the cluster send the binary format (default true)");
+		req.put("amqpbroadcaster.batches",
+			"When set to true (and the serialization is binary) the data changes of a coalesce window are send as one batch message, only set it when every server of the cluster reads batches (default false)");
+		req.put("amqpbroadcaster.coalescewindow",
+			"The time in milliseconds data changes are collected and merged before they are send as one message, this is added to the time before other servers see a change; 0 sends every change directly (default value 0)");
+		req.put("amqpbroadcaster.coalescemaxpks",
+			"The number of changed pks of one table in the coalesce window above which the changes are send as a flush of the whole table, 0 for no maximum (default value 1000)");
 		req.put("amqpbroadcaster.hostnameverification",
 			"When set to true this will enable the hostname verification for the TLS conncetions (TLS must be enabled) (default false)");
 		return req;
@@ -367,11 +389,9 @@ public class DataNotifyBroadCaster implements IServerPlugin
 			@Override
 			public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException
 			{
-				ByteArrayInputStream bais = new ByteArrayInputStream(body);
-				ObjectInputStream ois = new ObjectInputStream(bais);
 				try
 				{
-					Object readObject = ois.readObject();
+					Object readObject = new BroadcastCodec(true, true, false).decode(body);
 					System.err.println("delivery in reader of " + readObject);
 				}
 				catch (Exception e)
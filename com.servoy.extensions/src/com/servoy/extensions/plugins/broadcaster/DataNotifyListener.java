@@ -17,11 +17,15 @@
 
 package com.servoy.extensions.plugins.broadcaster;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
@@ -29,11 +33,19 @@ import com.rabbitmq.client.Recoverable;
 import com.rabbitmq.client.RecoverableConnection;
 import com.rabbitmq.client.RecoveryListener;
 import com.servoy.j2db.dataprocessing.BroadcastFilter;
+import com.servoy.j2db.dataprocessing.BufferedDataSet;
 import com.servoy.j2db.dataprocessing.IDataSet;
 import com.servoy.j2db.plugins.IDataNotifyListener;
+import com.servoy.j2db.util.DataSourceUtils;
 import com.servoy.j2db.util.Debug;
 
 /**
+ * Publishes the data changes of this server to the AMQP exchange.<br/>
+ * When there is a coalesce window, changes are collected for that time and published together, as one batch message when batches are turned on:
+ * changes of the same action on the same table are merged into one change with the combined pks, and when a table has more changed pks than
+ * the maximum they are replaced by a flush of the table.
+ * The changes of one table stay in the order they were made.
+ *
  * @author jcompagner
  *
  */
@@ -45,12 +57,37 @@ public class DataNotifyListener implements IDataNotifyListener
 	private final List<byte[]> failedList = new ArrayList<>();
 	private final String exchangeName;
 	private final String routingKey;
+	private final BroadcastCodec codec;
+	private final long coalesceWindow;
+	private final int maxCoalescedPks;
+	private final List<PendingChange> pending = new ArrayList<>();
+	private final Object sendLock = new Object();
+	private final ScheduledExecutorService coalescer;
+	private boolean sendScheduled;
 
 	/**
 	 * @param channel
 	 */
 	public DataNotifyListener(String originServerUUID, Channel channel, Connection connection, String exchangeName, String routingKey)
 	{
+		this(originServerUUID, channel, connection, exchangeName, routingKey, new BroadcastCodec(true, true, false), 0, 0);
+	}
+
+	/**
+	 * @param coalesceWindow the time in milliseconds changes are collected before they are published, 0 to publish every change directly
+	 * @param maxCoalescedPks the number of changed pks of a table above which the changes are replaced by a flush of the table, 0 for no maximum
+	 */
+	DataNotifyListener(String originServerUUID, Channel channel, Connection connection, String exchangeName, String routingKey, BroadcastCodec codec,
+		long coalesceWindow, int maxCoalescedPks)
+	{
+		this.codec = codec;
+		this.coalesceWindow = coalesceWindow;
+		this.maxCoalescedPks = maxCoalescedPks;
+		this.coalescer = coalesceWindow > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "amqpbroadcaster coalescer " + exchangeName);
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
 		this.originServerUUID = originServerUUID;
 		this.channel = channel;
 		this.exchangeName = exchangeName;
@@ -82,36 +119,164 @@ public class DataNotifyListener implements IDataNotifyListener
 	@Override
 	public void flushCachedDatabaseData(String dataSource, BroadcastFilter[] broadcastFilters)
 	{
-		sendBytes(new NotifyData(originServerUUID, dataSource, broadcastFilters));
+		NotifyData nd = new NotifyData(originServerUUID, dataSource, broadcastFilters);
+		if (coalescer == null)
+		{
+			sendBytes(nd);
+		}
+		else
+		{
+			coalesce(nd, dataSource);
+		}
 	}
 
 	@Override
 	public void notifyDataChange(String server_name, String table_name, IDataSet pks, int action, Object[] insertColumnData, BroadcastFilter[] broadcastFilters)
 	{
-		sendBytes(new NotifyData(originServerUUID, server_name, table_name, pks, action, insertColumnData, broadcastFilters));
+		NotifyData nd = new NotifyData(originServerUUID, server_name, table_name, pks, action, insertColumnData, broadcastFilters);
+		if (coalescer == null)
+		{
+			sendBytes(nd);
+		}
+		else
+		{
+			coalesce(nd, DataSourceUtils.createDBTableDataSource(server_name, table_name));
+		}
+	}
+
+	/**
+	 * Publishes the pending changes and stops the coalescing.
+	 */
+	void close()
+	{
+		if (coalescer != null)
+		{
+			// drop the scheduled send, the pending changes are sent once here
+			coalescer.shutdownNow();
+			sendPending();
+		}
+	}
+
+	private void coalesce(NotifyData nd, String dataSource)
+	{
+		boolean sendNow = false;
+		synchronized (pending)
+		{
+			PendingChange last = null;
+			int pks = 0;
+			for (PendingChange change : pending)
+			{
+				if (change.dataSource.equals(dataSource))
+				{
+					last = change;
+					pks += change.getPkCount();
+				}
+			}
+			if (last != null && last.isFlushAll())
+			{
+				// the pending flush of the whole table already covers this change
+				return;
+			}
+			if (nd.dataSource != null && nd.broadcastFilters == null)
+			{
+				removePending(dataSource);
+				pending.add(new PendingChange(nd, dataSource));
+			}
+			else
+			{
+				int lastPks = last != null ? last.getPkCount() : 0;
+				if (last != null && last.merge(nd))
+				{
+					pks += last.getPkCount() - lastPks;
+				}
+				else
+				{
+					pending.add(new PendingChange(nd, dataSource));
+					if (nd.pks != null) pks += nd.pks.getRowCount();
+				}
+				if (maxCoalescedPks > 0 && pks > maxCoalescedPks)
+				{
+					flushPending(dataSource);
+				}
+			}
+
+			if (!sendScheduled)
+			{
+				sendScheduled = true;
+				try
+				{
+					coalescer.schedule(this::sendPending, coalesceWindow, TimeUnit.MILLISECONDS);
+				}
+				catch (RejectedExecutionException e)
+				{
+					// closed, send directly
+					sendNow = true;
+				}
+			}
+		}
+		if (sendNow) sendPending();
 	}
 
 	/**
-	 * @param nd
-	 * @return
-	 * @throws IOException
+	 * Replaces the pending changes of the data source by one flush of the whole table.
 	 */
-	private void sendBytes(NotifyData nd)
+	private void flushPending(String dataSource)
 	{
-		ByteArrayOutputStream baos;
+		removePending(dataSource);
+		pending.add(new PendingChange(new NotifyData(originServerUUID, dataSource, null), dataSource));
+	}
+
+	private void removePending(String dataSource)
+	{
+		pending.removeIf(change -> change.dataSource.equals(dataSource));
+	}
+
+	private void sendPending()
+	{
+		// one send at a time, so batches are published in the order they were collected
+		synchronized (sendLock)
+		{
+			NotifyData[] batch;
+			synchronized (pending)
+			{
+				batch = new NotifyData[pending.size()];
+				for (int i = 0; i < batch.length; i++)
+				{
+					batch[i] = pending.get(i).toNotifyData();
+				}
+				pending.clear();
+				sendScheduled = false;
+			}
+			if (batch.length == 1 || (batch.length > 1 && !codec.canEncodeBatch()))
+			{
+				for (NotifyData nd : batch)
+				{
+					sendBytes(nd);
+				}
+			}
+			else if (batch.length > 1)
+			{
+				sendBytes(batch);
+			}
+		}
+	}
+
+	/**
+	 * @param object the notify data or a batch of notify data
+	 */
+	private void sendBytes(Object object)
+	{
+		byte[] bytes;
 		try
 		{
-			baos = new ByteArrayOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(baos);
-			oos.writeObject(nd);
-			oos.close();
+			bytes = codec.encode(object);
 		}
 		catch (Exception e)
 		{
-			Debug.error("failed to serialize " + nd, e);
+			Debug.error("failed to serialize " + (object instanceof Object[] ? Arrays.toString((Object[])object) : object), e);
 			return;
 		}
-		sendBytes(baos.toByteArray(), true);
+		sendBytes(bytes, true);
 	}
 
 	/**
@@ -166,4 +331,69 @@ public class DataNotifyListener implements IDataNotifyListener
 			sendBytes(bytes, false);
 		}
 	}
+
+	/**
+	 * A change (or flush) that waits to be published, with the pks of the changes that are merged into it.
+	 */
+	private static final class PendingChange
+	{
+		final NotifyData first;
+		final String dataSource;
+		final Set<List<Object>> pks;
+		private boolean merged;
+
+		PendingChange(NotifyData first, String dataSource)
+		{
+			this.first = first;
+			this.dataSource = dataSource;
+			this.pks = first.pks != null && first.insertColumnData == null ? new LinkedHashSet<List<Object>>() : null;
+			if (pks != null) addPks(first.pks);
+		}
+
+		boolean isFlushAll()
+		{
+			return first.dataSource != null && first.broadcastFilters == null;
+		}
+
+		int getPkCount()
+		{
+			if (pks != null) return pks.size();
+			return first.pks != null ? first.pks.getRowCount() : 0;
+		}
+
+		/**
+		 * @return true if the change is of the same action with the same pk columns and filters and its pks are added to this change
+		 */
+		boolean merge(NotifyData nd)
+		{
+			if (pks == null || nd.pks == null || nd.insertColumnData != null || nd.action != first.action ||
+				!Arrays.equals(nd.pks.getColumnNames(), first.pks.getColumnNames()) || !Arrays.equals(nd.broadcastFilters, first.broadcastFilters))
+			{
+				return false;
+			}
+			addPks(nd.pks);
+			merged = true;
+			return true;
+		}
+
+		private void addPks(IDataSet dataSet)
+		{
+			for (int i = 0; i < dataSet.getRowCount(); i++)
+			{
+				pks.add(Arrays.asList(dataSet.getRow(i)));
+			}
+		}
+
+		NotifyData toNotifyData()
+		{
+			if (!merged) return first;
+			List<Object[]> rows = new ArrayList<Object[]>(pks.size());
+			for (List<Object> pk : pks)
+			{
+				rows.add(pk.toArray());
+			}
+			return new NotifyData(first.originServerUUID, first.server_name, first.table_name,
+				new BufferedDataSet(first.pks.getColumnNames(), first.pks.getColumnTypes(), rows), first.action, null, first.broadcastFilters);
+		}
+	}
 }
@@ -21,10 +21,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
-import com.servoy.j2db.util.Debug;
-import com.servoy.j2db.util.FileChooserUtils;
-import com.servoy.j2db.util.MimeTypes;
-
 /**
  * Defines the basic implementation of the {@link IAbstractFile} interface
  *
@@ -187,25 +183,15 @@ public abstract class AbstractFile implements IAbstractFile
 	}
 
 	/**
-	 * Returns the mime-type of a file, using byte reading and/or file extension recognition
+	 * Returns the mime-type of a file, using file extension recognition for well known types and byte reading for the rest.
+	 * The byte reading results are cached as long as the file isn't changed.
 	 *
 	 * @param file the File to find the contentType of
 	 * @retun the mime-type or null if not recognized
 	 */
 	public static String getContentType(final File file)
 	{
-		if (file.exists() && file.canRead() && file.isFile() && file.length() > 0)
-		{
-			try
-			{
-				return MimeTypes.getContentType(FileChooserUtils.readFile(file, 32), file.getName());
-			}
-			catch (Exception e)
-			{
-				Debug.error("Error reading the file " + file.getName() + "for getting the content type", e); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-		}
-		return null;
+		return ContentTypeCache.getContentType(file);
 	}
 
 	/*
@@ -0,0 +1,282 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Zip and gzip compression and extraction for the archive functions of the file plugin.<br/>
+ * Everything is streamed through one buffer, files are never read in memory as a whole.
+ * Progress is reported to and cancellation is checked on a {@link JSProgressMonitor}.
+ * Extraction is limited in the number of entries and the number of extracted bytes, so a small archive can't fill the disk (a zip bomb).
+ *
+ * @author jcompagner
+ */
+final class Archives
+{
+	static final int MAX_EXTRACTED_ENTRIES = 100000;
+	static final long MAX_EXTRACTED_BYTES = 10L * 1024 * 1024 * 1024;
+
+	private Archives()
+	{
+	}
+
+	/**
+	 * Zips the files and folders into the target, a folder is added with all its contents under its own name.
+	 *
+	 * @return false if it was canceled
+	 */
+	static boolean zip(File[] sources, File target, JSProgressMonitor monitor) throws IOException
+	{
+		// collect the entries first, so the total size is known for the progress
+		final Path targetPath = target.toPath().toAbsolutePath();
+		final List<Path> files = new ArrayList<>();
+		final List<String> names = new ArrayList<>();
+		long totalBytes = 0;
+		for (File source : sources)
+		{
+			final Path root = source.toPath();
+			if (Files.isDirectory(root))
+			{
+				final Path base = root.getParent() != null ? root.getParent() : root;
+				Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+				{
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+					{
+						files.add(dir);
+						names.add(toEntryName(base.relativize(dir)) + '/');
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+					{
+						// don't zip the archive into itself when it is inside a zipped folder
+						if (file.toAbsolutePath().equals(targetPath)) return FileVisitResult.CONTINUE;
+						files.add(file);
+						names.add(toEntryName(base.relativize(file)));
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+			else
+			{
+				files.add(root);
+				names.add(root.getFileName().toString());
+			}
+		}
+		for (Path file : files)
+		{
+			if (!Files.isDirectory(file)) totalBytes += Files.size(file);
+		}
+		monitor.setTotalBytes(totalBytes);
+		monitor.setTotalFiles(files.size());
+
+		byte[] buffer = new byte[FileProvider.CHUNK_BUFFER_SIZE];
+		try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(target.toPath())))
+		{
+			for (int i = 0; i < files.size(); i++)
+			{
+				if (monitor.js_isCanceled()) break;
+				Path file = files.get(i);
+				monitor.setCurrentFileName(file.toString());
+				monitor.setCurrentFileIndex(i + 1);
+				ZipEntry entry = new ZipEntry(names.get(i));
+				entry.setLastModifiedTime(Files.getLastModifiedTime(file));
+				zos.putNextEntry(entry);
+				if (!entry.isDirectory())
+				{
+					try (InputStream is = Files.newInputStream(file))
+					{
+						copy(is, zos, buffer, monitor, Long.MAX_VALUE);
+					}
+				}
+				zos.closeEntry();
+			}
+		}
+		if (monitor.js_isCanceled())
+		{
+			Files.deleteIfExists(target.toPath());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Extracts the archive into the target folder. Entries that would end up outside of the target folder are refused,
+	 * just like archives with more than {@link #MAX_EXTRACTED_ENTRIES} entries or more than {@link #MAX_EXTRACTED_BYTES} extracted bytes.
+	 *
+	 * @return the extracted files and folders, null if it was canceled
+	 */
+	static List<File> unzip(File archive, File targetFolder, JSProgressMonitor monitor) throws IOException
+	{
+		Path target = targetFolder.toPath().toAbsolutePath().normalize();
+		List<File> extracted = new ArrayList<>();
+		try (ZipFile zip = new ZipFile(archive))
+		{
+			long totalBytes = 0;
+			Enumeration< ? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements())
+			{
+				long size = entries.nextElement().getSize();
+				if (size > 0) totalBytes += size;
+			}
+			if (zip.size() > MAX_EXTRACTED_ENTRIES)
+			{
+				throw new IOException("Zip archive " + archive + " has more than " + MAX_EXTRACTED_ENTRIES + " entries"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+			// the sizes in the archive can lie, so the extracted bytes are counted as well
+			if (totalBytes > MAX_EXTRACTED_BYTES)
+			{
+				throw new IOException("Zip archive " + archive + " extracts to more than " + MAX_EXTRACTED_BYTES + " bytes"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+			monitor.setTotalBytes(totalBytes);
+			monitor.setTotalFiles(zip.size());
+
+			byte[] buffer = new byte[FileProvider.CHUNK_BUFFER_SIZE];
+			long remainingBytes = MAX_EXTRACTED_BYTES;
+			int index = 0;
+			entries = zip.entries();
+			while (entries.hasMoreElements())
+			{
+				if (monitor.js_isCanceled()) return null;
+				ZipEntry entry = entries.nextElement();
+				Path path = target.resolve(entry.getName()).normalize();
+				if (!path.startsWith(target))
+				{
+					throw new IOException("Zip entry " + entry.getName() + " is outside of the target folder"); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				monitor.setCurrentFileName(entry.getName());
+				monitor.setCurrentFileIndex(++index);
+				if (entry.isDirectory())
+				{
+					Files.createDirectories(path);
+				}
+				else
+				{
+					Files.createDirectories(path.getParent());
+					try (InputStream is = zip.getInputStream(entry); OutputStream os = Files.newOutputStream(path))
+					{
+						remainingBytes -= copy(is, os, buffer, monitor, remainingBytes);
+					}
+					FileTime lastModified = entry.getLastModifiedTime();
+					if (lastModified != null) Files.setLastModifiedTime(path, lastModified);
+				}
+				extracted.add(path.toFile());
+			}
+		}
+		return extracted;
+	}
+
+	/**
+	 * @return false if it was canceled
+	 */
+	static boolean gzip(File source, File target, JSProgressMonitor monitor) throws IOException
+	{
+		monitor.setTotalBytes(source.length());
+		monitor.setTotalFiles(1);
+		monitor.setCurrentFileName(source.getAbsolutePath());
+		monitor.setCurrentFileIndex(1);
+		try (InputStream is = Files.newInputStream(source.toPath());
+			OutputStream os = new GZIPOutputStream(Files.newOutputStream(target.toPath()), FileProvider.CHUNK_BUFFER_SIZE))
+		{
+			copy(is, os, new byte[FileProvider.CHUNK_BUFFER_SIZE], monitor, Long.MAX_VALUE);
+		}
+		return checkCanceled(target, monitor);
+	}
+
+	/**
+	 * Decompresses the source into the target, refused when it decompresses to more than {@link #MAX_EXTRACTED_BYTES} bytes.
+	 *
+	 * @return false if it was canceled
+	 */
+	static boolean gunzip(File source, File target, JSProgressMonitor monitor) throws IOException
+	{
+		// the uncompressed size is not known up front, the progress is about the uncompressed bytes
+		monitor.setTotalFiles(1);
+		monitor.setCurrentFileName(source.getAbsolutePath());
+		monitor.setCurrentFileIndex(1);
+		try (InputStream is = new GZIPInputStream(Files.newInputStream(source.toPath()), FileProvider.CHUNK_BUFFER_SIZE);
+			OutputStream os = Files.newOutputStream(target.toPath()))
+		{
+			copy(is, os, new byte[FileProvider.CHUNK_BUFFER_SIZE], monitor, MAX_EXTRACTED_BYTES);
+		}
+		catch (IOException e)
+		{
+			// don't leave the part that was decompressed
+			Files.deleteIfExists(target.toPath());
+			throw e;
+		}
+		return checkCanceled(target, monitor);
+	}
+
+	private static boolean checkCanceled(File target, JSProgressMonitor monitor) throws IOException
+	{
+		if (!monitor.js_isCanceled()) return true;
+		Files.deleteIfExists(target.toPath());
+		return false;
+	}
+
+	/**
+	 * @param maxBytes the maximum number of bytes to copy, an IOException is thrown when the input has more
+	 * @return the number of bytes copied
+	 */
+	private static long copy(InputStream is, OutputStream os, byte[] buffer, JSProgressMonitor monitor, long maxBytes) throws IOException
+	{
+		long copied = 0;
+		int read;
+		while (!monitor.js_isCanceled() && (read = is.read(buffer)) != -1)
+		{
+			copied += read;
+			if (copied > maxBytes) throw new IOException("More than " + MAX_EXTRACTED_BYTES + " bytes are extracted, the extraction is refused"); //$NON-NLS-1$ //$NON-NLS-2$
+			os.write(buffer, 0, read);
+			monitor.addTransferred(read);
+		}
+		return copied;
+	}
+
+	private static String toEntryName(Path relative)
+	{
+		// zip entry names always use /
+		StringBuilder sb = new StringBuilder();
+		for (Path part : relative)
+		{
+			if (sb.length() > 0) sb.append('/');
+			sb.append(part.toString());
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads, writes and copies files with {@link AsynchronousFileChannel}s for the async functions of the file plugin.<br/>
+ * The channels complete their reads and writes on a bounded pool of daemon threads, no thread is blocked while waiting for the disk.
+ *
+ * @author jcompagner
+ */
+final class AsyncFileIO
+{
+	private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+	private static final int MAX_WORKERS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private static final ExecutorService executor;
+
+	// the last queued append per canonical path
+	private static final Map<String, CompletableFuture<Long>> appends = new HashMap<String, CompletableFuture<Long>>();
+
+	static
+	{
+		AtomicInteger counter = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+			Thread thread = new Thread(runnable, "File plugin async io " + counter.incrementAndGet()); //$NON-NLS-1$
+			thread.setDaemon(true);
+			return thread;
+		});
+		pool.allowCoreThreadTimeOut(true);
+		executor = pool;
+	}
+
+	private AsyncFileIO()
+	{
+	}
+
+	/**
+	 * Reads the whole file.
+	 */
+	static CompletableFuture<byte[]> read(File file)
+	{
+		try
+		{
+			final AsynchronousFileChannel channel = open(file, EnumSet.of(StandardOpenOption.READ));
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE - 8)
+			{
+				channel.close();
+				throw new IOException("File " + file + " is too big to read in memory"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			final ByteBuffer buffer = ByteBuffer.allocate((int)size);
+			return closeWhenDone(channel, readFully(channel, buffer, 0).thenApply(count -> {
+				if (buffer.hasRemaining())
+				{
+					// the file got truncated while reading
+					byte[] bytes = new byte[buffer.position()];
+					System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+					return bytes;
+				}
+				return buffer.array();
+			}));
+		}
+		catch (IOException e)
+		{
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * Writes the data to the file, the file is overwritten.
+	 *
+	 * @return the number of bytes written
+	 */
+	static CompletableFuture<Long> write(File file, ByteBuffer data)
+	{
+		try
+		{
+			final AsynchronousFileChannel channel = open(file,
+				EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+			long length = data.remaining();
+			return closeWhenDone(channel, writeFully(channel, data, 0).thenApply(v -> Long.valueOf(length)));
+		}
+		catch (IOException e)
+		{
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * Appends the data to the end of the file.<br/>
+	 * AsynchronousFileChannel doesn't support APPEND, so the append is done on the pool with a FileChannel that is opened with APPEND.
+	 * Appends to the same file are queued, so they are written one after the other and never interleave.
+	 *
+	 * @return the number of bytes written
+	 */
+	static CompletableFuture<Long> append(final File file, final ByteBuffer data)
+	{
+		final String key;
+		try
+		{
+			key = file.getCanonicalPath();
+		}
+		catch (IOException e)
+		{
+			return CompletableFuture.failedFuture(e);
+		}
+		synchronized (appends)
+		{
+			CompletableFuture<Long> previous = appends.get(key);
+			// a failed append doesn't stop the ones that are queued after it
+			final CompletableFuture<Long> result = (previous == null ? CompletableFuture.completedFuture(null) : previous.handle((r, e) -> null))
+				.thenApplyAsync(v -> appendNow(file, data), executor);
+			appends.put(key, result);
+			result.whenComplete((r, e) -> {
+				synchronized (appends)
+				{
+					appends.remove(key, result);
+				}
+			});
+			return result;
+		}
+	}
+
+	private static Long appendNow(File file, ByteBuffer data)
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND))
+		{
+			long length = data.remaining();
+			while (data.hasRemaining())
+			{
+				channel.write(data);
+			}
+			return Long.valueOf(length);
+		}
+		catch (IOException e)
+		{
+			throw new CompletionException(e);
+		}
+	}
+
+	/**
+	 * Copies the source to the target, overwriting the target.
+	 *
+	 * @return the number of bytes copied
+	 */
+	static CompletableFuture<Long> copy(File source, File target)
+	{
+		AsynchronousFileChannel in = null;
+		try
+		{
+			in = open(source, EnumSet.of(StandardOpenOption.READ));
+			final AsynchronousFileChannel input = in;
+			final AsynchronousFileChannel output = open(target,
+				EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+			ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(COPY_BUFFER_SIZE, Math.max(1, input.size())));
+			return closeWhenDone(input, closeWhenDone(output, copyChunk(input, output, buffer, 0)));
+		}
+		catch (IOException e)
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException ex)
+				{
+					// ignore
+				}
+			}
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	private static CompletableFuture<Long> copyChunk(final AsynchronousFileChannel input, final AsynchronousFileChannel output, final ByteBuffer buffer,
+		final long position)
+	{
+		buffer.clear();
+		return readFully(input, buffer, position).thenCompose(count -> {
+			if (count.intValue() == 0) return CompletableFuture.completedFuture(Long.valueOf(position));
+			buffer.flip();
+			return writeFully(output, buffer, position).thenCompose(v -> copyChunk(input, output, buffer, position + count.intValue()));
+		});
+	}
+
+	private static AsynchronousFileChannel open(File file, Set< ? extends OpenOption> options) throws IOException
+	{
+		return AsynchronousFileChannel.open(file.toPath(), options, executor);
+	}
+
+	/**
+	 * Reads until the buffer is full or the end of the file is reached.
+	 *
+	 * @return the number of bytes read
+	 */
+	private static CompletableFuture<Integer> readFully(final AsynchronousFileChannel channel, final ByteBuffer buffer, final long position)
+	{
+		final CompletableFuture<Integer> future = new CompletableFuture<>();
+		final int start = buffer.position();
+		if (!buffer.hasRemaining())
+		{
+			future.complete(Integer.valueOf(0));
+			return future;
+		}
+		channel.read(buffer, position, null, new CompletionHandler<Integer, Void>()
+		{
+			public void completed(Integer count, Void attachment)
+			{
+				int read = buffer.position() - start;
+				if (count.intValue() < 0 || !buffer.hasRemaining())
+				{
+					future.complete(Integer.valueOf(read));
+					return;
+				}
+				try
+				{
+					channel.read(buffer, position + read, null, this);
+				}
+				catch (RuntimeException e)
+				{
+					future.completeExceptionally(e);
+				}
+			}
+
+			public void failed(Throwable exc, Void attachment)
+			{
+				future.completeExceptionally(exc);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Writes everything that is remaining in the buffer.
+	 */
+	private static CompletableFuture<Void> writeFully(final AsynchronousFileChannel channel, final ByteBuffer buffer, final long position)
+	{
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+		final int start = buffer.position();
+		if (!buffer.hasRemaining())
+		{
+			future.complete(null);
+			return future;
+		}
+		channel.write(buffer, position, null, new CompletionHandler<Integer, Void>()
+		{
+			public void completed(Integer count, Void attachment)
+			{
+				if (!buffer.hasRemaining())
+				{
+					future.complete(null);
+					return;
+				}
+				try
+				{
+					channel.write(buffer, position + buffer.position() - start, null, this);
+				}
+				catch (RuntimeException e)
+				{
+					future.completeExceptionally(e);
+				}
+			}
+
+			public void failed(Throwable exc, Void attachment)
+			{
+				future.completeExceptionally(exc);
+			}
+		});
+		return future;
+	}
+
+	private static <T> CompletableFuture<T> closeWhenDone(final AsynchronousFileChannel channel, CompletableFuture<T> future)
+	{
+		return future.whenComplete((result, exception) -> {
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+		});
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * Copies files for the streamFilesToServer() functions.<br/>
+ * The files of one transfer are copied on a bounded pool of worker threads of that transfer, so a big transfer doesn't hold up the transfers
+ * of other clients. Small files are copied in one go with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * Bigger files are copied in chunks, the CRC32C of every written chunk is stored in a checkpoint file next to the target.
+ * When a copy fails, the next copy of the same (unchanged) source to the same target verifies the chunks that are already there
+ * against the checkpoint and resumes after the last valid one.
+ *
+ * @author jcompagner
+ */
+final class ChunkedTransfer
+{
+	static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Files up to this size are copied without a checkpoint, restarting them is cheap.
+	 */
+	static final long CHECKPOINT_THRESHOLD = 2L * CHUNK_SIZE;
+
+	private static final int CHECKPOINT_MAGIC = 0x53465443;
+	private static final int CHECKPOINT_HEADER_SIZE = 4 + 8 + 8 + 4;
+
+	private static final int MAX_WORKERS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	private ChunkedTransfer()
+	{
+	}
+
+	/**
+	 * @return a new bounded executor for the copies of one transfer, the caller must shut it down when the transfer is done
+	 */
+	static ExecutorService newExecutor()
+	{
+		return new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+			Thread thread = new Thread(runnable, "File plugin transfer " + counter.incrementAndGet()); //$NON-NLS-1$
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	static File getCheckpointFile(File target)
+	{
+		return new File(target.getParentFile(), "." + target.getName() + ".transfer"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Copies the source to the target, adding the transferred bytes to the monitor.
+	 *
+	 * @param fileIndex the index of the file in the transfer, the current transferred bytes of the monitor are only set for the current file
+	 * @return false if the copy was stopped because the monitor got canceled
+	 */
+	static boolean copy(File source, File target, JSProgressMonitor monitor, int fileIndex) throws IOException, InterruptedException
+	{
+		Progress progress = new Progress(monitor, fileIndex);
+		long length = source.length();
+		try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE))
+		{
+			if (length <= CHECKPOINT_THRESHOLD)
+			{
+				out.truncate(0);
+				return transfer(in, out, 0, length, progress);
+			}
+			return copyChunked(source, target, in, out, length, progress);
+		}
+	}
+
+	private static boolean transfer(FileChannel in, FileChannel out, long position, long count, Progress progress)
+		throws IOException, InterruptedException
+	{
+		long end = position + count;
+		long current = position;
+		while (current < end)
+		{
+			if (progress.monitor.js_isCanceled()) return false;
+			long transferred = in.transferTo(current, Math.min(CHUNK_SIZE, end - current), out);
+			if (transferred <= 0) throw new IOException("Source file got truncated while copying it"); //$NON-NLS-1$
+			current += transferred;
+			progress.add(transferred);
+		}
+		return true;
+	}
+
+	private static boolean copyChunked(File source, File target, FileChannel in, FileChannel out, long length, Progress progress)
+		throws IOException, InterruptedException
+	{
+		File checkpointFile = getCheckpointFile(target);
+		try (FileChannel checkpoint = FileChannel.open(checkpointFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+			StandardOpenOption.CREATE))
+		{
+			ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+			CRC32C crc = new CRC32C();
+
+			int verifiedChunks = verifyCheckpoint(checkpoint, out, source, length, buffer, crc);
+			long position = (long)verifiedChunks * CHUNK_SIZE;
+			out.truncate(position);
+			checkpoint.truncate(CHECKPOINT_HEADER_SIZE + verifiedChunks * 4L);
+			checkpoint.position(checkpoint.size());
+			if (position > 0) progress.add(position);
+
+			ByteBuffer crcBuffer = ByteBuffer.allocate(4);
+			while (position < length)
+			{
+				if (progress.monitor.js_isCanceled()) return false;
+				buffer.clear();
+				buffer.limit((int)Math.min(CHUNK_SIZE, length - position));
+				while (buffer.hasRemaining())
+				{
+					if (in.read(buffer, position + buffer.position()) == -1) throw new IOException("Source file got truncated while copying it"); //$NON-NLS-1$
+				}
+				buffer.flip();
+				crc.reset();
+				crc.update(buffer);
+				buffer.rewind();
+				while (buffer.hasRemaining())
+				{
+					out.write(buffer, position + buffer.position());
+				}
+				crcBuffer.clear();
+				crcBuffer.putInt((int)crc.getValue()).flip();
+				checkpoint.write(crcBuffer);
+
+				position += buffer.limit();
+				progress.add(buffer.limit());
+			}
+		}
+		checkpointFile.delete();
+		return true;
+	}
+
+	/**
+	 * Reads the checkpoint and checks the chunks of the target against it, a new header is written if the checkpoint
+	 * doesn't exist or is from another version of the source.
+	 *
+	 * @return the number of chunks of the target that are valid
+	 */
+	private static int verifyCheckpoint(FileChannel checkpoint, FileChannel out, File source, long length, ByteBuffer buffer, CRC32C crc)
+		throws IOException
+	{
+		long lastModified = source.lastModified();
+		ByteBuffer header = ByteBuffer.allocate(CHECKPOINT_HEADER_SIZE);
+		checkpoint.read(header, 0);
+		header.flip();
+		if (header.remaining() != CHECKPOINT_HEADER_SIZE || header.getInt() != CHECKPOINT_MAGIC || header.getLong() != length ||
+			header.getLong() != lastModified || header.getInt() != CHUNK_SIZE)
+		{
+			header.clear();
+			header.putInt(CHECKPOINT_MAGIC).putLong(length).putLong(lastModified).putInt(CHUNK_SIZE).flip();
+			checkpoint.truncate(0);
+			checkpoint.write(header, 0);
+			return 0;
+		}
+
+		int recordedChunks = (int)((checkpoint.size() - CHECKPOINT_HEADER_SIZE) / 4);
+		ByteBuffer crcs = ByteBuffer.allocate(recordedChunks * 4);
+		while (crcs.hasRemaining() && checkpoint.read(crcs, CHECKPOINT_HEADER_SIZE + crcs.position()) != -1)
+		{
+			// read all
+		}
+		crcs.flip();
+		int verified = 0;
+		long targetSize = out.size();
+		while (verified < recordedChunks)
+		{
+			long position = (long)verified * CHUNK_SIZE;
+			if (position >= length) break;
+			int size = (int)Math.min(CHUNK_SIZE, length - position);
+			if (position + size > targetSize) break;
+			buffer.clear();
+			buffer.limit(size);
+			while (buffer.hasRemaining())
+			{
+				if (out.read(buffer, position + buffer.position()) == -1) break;
+			}
+			if (buffer.hasRemaining()) break;
+			buffer.flip();
+			crc.reset();
+			crc.update(buffer);
+			if ((int)crc.getValue() != crcs.getInt(verified * 4)) break;
+			verified++;
+		}
+		return verified;
+	}
+
+	/**
+	 * The transferred bytes of one file, the files of a transfer are copied at the same time so every file keeps its own count.
+	 */
+	private static final class Progress
+	{
+		final JSProgressMonitor monitor;
+		private final int fileIndex;
+		private long transferred;
+
+		Progress(JSProgressMonitor monitor, int fileIndex)
+		{
+			this.monitor = monitor;
+			this.fileIndex = fileIndex;
+		}
+
+		void add(long bytes) throws InterruptedException
+		{
+			transferred += bytes;
+			monitor.addTransferred(fileIndex, bytes, transferred);
+			if (monitor.getDelay() > 0)
+			{
+				Thread.sleep(monitor.getDelay()); // to test the process
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.servoy.j2db.util.Debug;
+import com.servoy.j2db.util.FileChooserUtils;
+import com.servoy.j2db.util.MimeTypes;
+
+/**
+ * Resolves the content type of files for {@link AbstractFile#getContentType(File)}.<br/>
+ * Well known extensions are looked up in a table, the others are sniffed from the first bytes of the file through {@link MimeTypes}.
+ * Sniffed results are kept in a bounded LRU cache, an entry is only used as long as the size and modification time of the file didn't change.
+ *
+ * @author jcompagner
+ */
+@SuppressWarnings("nls")
+final class ContentTypeCache
+{
+	private static final int MAX_ENTRIES = 1000;
+
+	private static final Map<String, String> EXTENSION_TYPES = new HashMap<>();
+
+	static
+	{
+		addExtensions("application/pdf", "pdf");
+		addExtensions("application/zip", "zip");
+		addExtensions("application/gzip", "gz");
+		addExtensions("application/json", "json");
+		addExtensions("application/rtf", "rtf");
+		addExtensions("application/msword", "doc");
+		addExtensions("application/vnd.ms-excel", "xls");
+		addExtensions("application/vnd.ms-powerpoint", "ppt");
+		addExtensions("application/vnd.openxmlformats-officedocument.wordprocessingml.document", "docx");
+		addExtensions("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "xlsx");
+		addExtensions("application/vnd.openxmlformats-officedocument.presentationml.presentation", "pptx");
+		addExtensions("application/vnd.oasis.opendocument.text", "odt");
+		addExtensions("application/vnd.oasis.opendocument.spreadsheet", "ods");
+		addExtensions("image/png", "png");
+		addExtensions("image/jpeg", "jpg", "jpeg");
+		addExtensions("image/gif", "gif");
+		addExtensions("image/bmp", "bmp");
+		addExtensions("image/tiff", "tif", "tiff");
+		addExtensions("image/webp", "webp");
+		addExtensions("image/svg+xml", "svg");
+		addExtensions("image/x-icon", "ico");
+		addExtensions("text/html", "html", "htm");
+		addExtensions("text/css", "css");
+		addExtensions("text/javascript", "js");
+		addExtensions("text/csv", "csv");
+		addExtensions("audio/mpeg", "mp3");
+		addExtensions("video/mp4", "mp4");
+	}
+
+	private static final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(64, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+		{
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private ContentTypeCache()
+	{
+	}
+
+	private static void addExtensions(String contentType, String... extensions)
+	{
+		for (String extension : extensions)
+		{
+			EXTENSION_TYPES.put(extension, contentType);
+		}
+	}
+
+	/**
+	 * @return the content type of the extension of the file name, null if the extension is not a well known one
+	 */
+	static String getContentTypeForName(String name)
+	{
+		int index = name.lastIndexOf('.');
+		if (index == -1 || index == name.length() - 1) return null;
+		return EXTENSION_TYPES.get(name.substring(index + 1).toLowerCase(Locale.ENGLISH));
+	}
+
+	static String getContentType(File file)
+	{
+		Path path = file.toPath();
+		BasicFileAttributes attributes;
+		try
+		{
+			// one stat for the existence, type, size and modification time
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		// an unreadable file has no content type, also when its extension is a well known one or it was cached while it was readable
+		if (!attributes.isRegularFile() || attributes.size() == 0 || !file.canRead()) return null;
+
+		String contentType = getContentTypeForName(file.getName());
+		if (contentType != null) return contentType;
+
+		String key = path.toAbsolutePath().normalize().toString();
+		long size = attributes.size();
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		synchronized (cache)
+		{
+			Entry entry = cache.get(key);
+			if (entry != null && entry.size == size && entry.lastModified == lastModified) return entry.contentType;
+		}
+
+		try
+		{
+			contentType = MimeTypes.getContentType(FileChooserUtils.readFile(file, 32), file.getName());
+		}
+		catch (Exception e)
+		{
+			Debug.error("Error reading the file " + file.getName() + "for getting the content type", e);
+			return null;
+		}
+		synchronized (cache)
+		{
+			cache.put(key, new Entry(size, lastModified, contentType));
+		}
+		return contentType;
+	}
+
+	private static final class Entry
+	{
+		final long size;
+		final long lastModified;
+		final String contentType;
+
+		Entry(long size, long lastModified, String contentType)
+		{
+			this.size = size;
+			this.lastModified = lastModified;
+			this.contentType = contentType;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+import com.servoy.j2db.util.Debug;
+
+/**
+ * Computes checksums and digests of files for the digest functions of the file plugin.<br/>
+ * Files are read through a {@link FileChannel} into a direct buffer that is reused per thread,
+ * multiple files are hashed in parallel on a bounded pool.
+ *
+ * @author jcompagner
+ */
+final class FileDigest
+{
+	static final String CRC32C = "CRC32C"; //$NON-NLS-1$
+
+	private static final int MAX_WORKERS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private static final ExecutorService executor;
+
+	static
+	{
+		AtomicInteger counter = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+			Thread thread = new Thread(runnable, "File plugin digest " + counter.incrementAndGet()); //$NON-NLS-1$
+			thread.setDaemon(true);
+			return thread;
+		});
+		pool.allowCoreThreadTimeOut(true);
+		executor = pool;
+	}
+
+	private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(FileProvider.CHUNK_BUFFER_SIZE));
+
+	private FileDigest()
+	{
+	}
+
+	/**
+	 * Checks the algorithm, so a wrong name is reported before any file is read.
+	 *
+	 * @return the normalized name of the algorithm
+	 */
+	static String checkAlgorithm(String algorithm)
+	{
+		if (algorithm == null || algorithm.length() == 0) return "SHA-256"; //$NON-NLS-1$
+		String name = algorithm.toUpperCase(Locale.ENGLISH);
+		if (CRC32C.equals(name)) return CRC32C;
+		try
+		{
+			MessageDigest.getInstance(name);
+			return name;
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalArgumentException("Unknown digest algorithm " + algorithm, e); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * @return the digest of the file as lowercase hex
+	 */
+	static String digest(File file, String algorithm) throws IOException
+	{
+		ByteBuffer buffer = buffers.get();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			if (CRC32C.equals(algorithm))
+			{
+				CRC32C crc = new CRC32C();
+				buffer.clear();
+				while (channel.read(buffer) != -1)
+				{
+					buffer.flip();
+					crc.update(buffer);
+					buffer.clear();
+				}
+				return String.format("%08x", Long.valueOf(crc.getValue())); //$NON-NLS-1$
+			}
+			MessageDigest digest = MessageDigest.getInstance(algorithm);
+			buffer.clear();
+			while (channel.read(buffer) != -1)
+			{
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+			return toHex(digest.digest());
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalArgumentException("Unknown digest algorithm " + algorithm, e); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Digests the files in parallel, the digest of a file that can't be read is null.
+	 */
+	static String[] digest(File[] files, final String algorithm) throws InterruptedException
+	{
+		List<Future<String>> futures = new ArrayList<>(files.length);
+		for (final File file : files)
+		{
+			futures.add(file == null ? null : executor.submit(() -> digest(file, algorithm)));
+		}
+		String[] digests = new String[files.length];
+		for (int i = 0; i < digests.length; i++)
+		{
+			Future<String> future = futures.get(i);
+			if (future == null) continue;
+			try
+			{
+				digests[i] = future.get();
+			}
+			catch (ExecutionException e)
+			{
+				Debug.error("Can't compute the digest of " + files[i], e.getCause()); //$NON-NLS-1$
+			}
+		}
+		return digests;
+	}
+
+	static String toHex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -21,6 +21,7 @@ import java.awt.Window;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -33,17 +34,28 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
@@ -87,6 +99,7 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 	private static final JSFile[] EMPTY = new JSFile[0];
 	private final Timer timer;
 	private final List<JSFile> trackedFiles = new ArrayList<JSFile>();
+	private final Set<Closeable> openHandles = new LinkedHashSet<>();
 
 	/**
 	 * Line Separator constant, used to append to Text file
@@ -100,6 +113,11 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 	 */
 	static final int CHUNK_BUFFER_SIZE = 64 * 1024;
 
+	/**
+	 * Default number of entries of a page of a folder iterator
+	 */
+	private static final int DEFAULT_PAGE_SIZE = 100;
+
 	public FileProvider(FilePlugin plugin)
 	{
 		this.plugin = plugin;
@@ -955,6 +973,182 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 		return succes;
 	}
 
+	/**
+	 * @clonedesc searchFiles(Object,String,Number,Number,Date,Date,Function)
+	 * @sampleas searchFiles(Object,String,Number,Number,Date,Date,Function)
+	 *
+	 * @param folder the folder (path or JSFile) to search in
+	 * @param pattern a glob (default) or regex: pattern, null for all files
+	 * @param callback the function that gets the found files (JSFile[]) and an exception if there was a problem
+	 * @return a JSProgressMonitor to follow or cancel the search
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSProgressMonitor searchFiles(Object folder, String pattern, Function callback)
+	{
+		return searchFiles(folder, pattern, null, null, null, null, callback);
+	}
+
+	/**
+	 * Searches the folder and all its sub folders for files, in the background. The callback is called with the array of found files.
+	 * The pattern is a glob like '*.pdf' or '**&#47;invoices/*.{pdf,xml}', or a regular expression when it starts with 'regex:'.
+	 * A pattern with a / in it is matched against the path relative to the given folder, otherwise only against the file name.
+	 * Files and folders that can't be read are skipped.
+	 * The progress monitor gives the number of files that are visited as the current file index and the number of found files as the total files.
+	 *
+	 * @sample
+	 * // all the pdf files bigger then 1MB that were changed in the last week
+	 * var monitor = plugins.file.searchFiles('/data/archive', '*.pdf', 1024 * 1024, null, new Date(new Date().getTime() - 7 * 24 * 3600000), null, searchDone);
+	 *
+	 * function searchDone(files, exception) {
+	 * 	if (exception) application.output('search failed: ' + exception);
+	 * 	else application.output('found ' + files.length + ' files');
+	 * }
+	 *
+	 * @param folder the folder (path or JSFile) to search in
+	 * @param pattern a glob (default) or regex: pattern, null for all files
+	 * @param minSize the minimum size in bytes, null for no minimum
+	 * @param maxSize the maximum size in bytes, null for no maximum
+	 * @param modifiedAfter only files that are modified after this date, null for all
+	 * @param modifiedBefore only files that are modified before this date, null for all
+	 * @param callback the function that gets the found files (JSFile[]) and an exception if there was a problem
+	 * @return a JSProgressMonitor to follow or cancel the search
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSProgressMonitor searchFiles(Object folder, final String pattern, final Number minSize, final Number maxSize, final Date modifiedAfter,
+		final Date modifiedBefore, Function callback)
+	{
+		final File root = convertToFile(folder);
+		if (root == null || !root.isDirectory()) throw new IllegalArgumentException("Can't search " + folder + ", it is not a folder"); //$NON-NLS-1$ //$NON-NLS-2$
+		// validate the pattern before going into the background
+		FolderOperations.createMatcher(pattern);
+		return startFolderOperation(callback, monitor -> {
+			List<Path> found = FolderOperations.search(root.toPath(), pattern, minSize != null ? minSize.longValue() : -1,
+				maxSize != null ? maxSize.longValue() : -1, modifiedAfter != null ? modifiedAfter.getTime() : 0,
+				modifiedBefore != null ? modifiedBefore.getTime() : 0, monitor);
+			JSFile[] files = new JSFile[found.size()];
+			for (int i = 0; i < files.length; i++)
+			{
+				files[i] = new JSFile(found.get(i).toFile(), plugin.getClientPluginAccess());
+			}
+			return files;
+		});
+	}
+
+	/**
+	 * Copies the source folder to the destination folder recursively in the background, files are copied in parallel.
+	 * Existing files in the destination are replaced, the destination can't be inside the source. The callback is called with the destination folder when it is done.
+	 * Unlike copyFolder() this doesn't block the client and it can be followed and canceled with the returned JSProgressMonitor.
+	 *
+	 * @sample
+	 * var monitor = plugins.file.copyFolderAsync('/data/source', '/backup/source', function(folder, exception) {
+	 * 	if (exception) application.output('copy failed: ' + exception);
+	 * });
+	 * monitor.setProgressCallBack(function(m) {
+	 * 	application.output(m.getTotalTransferredBytes() + ' of ' + m.getTotalBytesToTransfer());
+	 * }, 1);
+	 *
+	 * @param source the folder (path or JSFile) to copy
+	 * @param destination the folder (path or JSFile) to copy to
+	 * @param callback the function that gets the destination JSFile and an exception if there was a problem
+	 * @return a JSProgressMonitor to follow or cancel the copy
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSProgressMonitor copyFolderAsync(Object source, Object destination, Function callback)
+	{
+		final File sourceDir = convertToFile(source);
+		final File destDir = convertToFile(destination);
+		checkFolderOperation(sourceDir, destDir);
+		return startFolderOperation(callback, monitor -> {
+			if (!FolderOperations.copy(sourceDir.toPath(), destDir.toPath(), monitor)) return null;
+			return new JSFile(destDir, plugin.getClientPluginAccess());
+		});
+	}
+
+	/**
+	 * Moves the source folder to the destination in the background. On the same file system this is a rename,
+	 * otherwise or when the destination already exists the files are copied in parallel and the source is deleted when all are copied.
+	 * The destination can't be inside the source.
+	 * The callback is called with the destination folder when it is done.
+	 *
+	 * @sample
+	 * var monitor = plugins.file.moveFolderAsync('/data/incoming/batch1', '/data/processed/batch1', function(folder, exception) {
+	 * 	if (exception) application.output('move failed: ' + exception);
+	 * });
+	 *
+	 * @param source the folder (path or JSFile) to move
+	 * @param destination the new folder (path or JSFile)
+	 * @param callback the function that gets the destination JSFile and an exception if there was a problem
+	 * @return a JSProgressMonitor to follow or cancel the move
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSProgressMonitor moveFolderAsync(Object source, Object destination, Function callback)
+	{
+		final File sourceDir = convertToFile(source);
+		final File destDir = convertToFile(destination);
+		checkFolderOperation(sourceDir, destDir);
+		return startFolderOperation(callback, monitor -> {
+			if (!FolderOperations.move(sourceDir.toPath(), destDir.toPath(), monitor)) return null;
+			return new JSFile(destDir, plugin.getClientPluginAccess());
+		});
+	}
+
+	@SuppressWarnings("nls")
+	private static void checkFolderOperation(File sourceDir, File destDir)
+	{
+		if (sourceDir == null || destDir == null) throw new IllegalArgumentException("Source and destination cannot be null");
+		if (!sourceDir.isDirectory()) throw new IllegalArgumentException(sourceDir + " is not a folder");
+		if (FolderOperations.isSameOrInside(sourceDir.toPath(), destDir.toPath()))
+		{
+			throw new IllegalArgumentException("Destination " + destDir + " is the source or a folder inside it");
+		}
+		if (destDir.exists() && !destDir.isDirectory()) throw new IllegalArgumentException(destDir + " is not a folder");
+	}
+
+	/**
+	 * Runs the operation on the client executor, then finishes the monitor and calls the callback with the result.
+	 */
+	private JSProgressMonitor startFolderOperation(Function callback, final FolderOperation operation)
+	{
+		final FunctionDefinition function = (callback == null) ? null : new FunctionDefinition(callback);
+		final JSProgressMonitor progressMonitor = new JSProgressMonitor(this, 0, 0);
+		plugin.getClientPluginAccess().getExecutor().execute(() -> {
+			Object result = null;
+			Exception ex = null;
+			try
+			{
+				result = operation.run(progressMonitor);
+			}
+			catch (Exception e)
+			{
+				Debug.error(e);
+				ex = e;
+			}
+			finally
+			{
+				if (!progressMonitor.js_isCanceled())
+				{
+					progressMonitor.setFinished(true);
+				}
+				progressMonitor.run();
+				progressMonitor.cancel(); // stops the TimerTask
+			}
+			if (function != null && !progressMonitor.js_isCanceled())
+			{
+				function.executeAsync(plugin.getClientPluginAccess(), new Object[] { result, ex });
+			}
+		});
+		return progressMonitor;
+	}
+
+	private interface FolderOperation
+	{
+		Object run(JSProgressMonitor monitor) throws Exception;
+	}
+
 	/**
 	 * Copies the source file to the destination file. Returns true if the copy succeeds, false if any error occurs.
 	 *
@@ -2175,7 +2369,7 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 
 	public Class< ? >[] getAllReturnedTypes()
 	{
-		return new Class[] { JSFile.class, JSProgressMonitor.class };
+		return new Class[] { JSFile.class, JSProgressMonitor.class, JSFolderIndex.class, JSFolderIterator.class, JSTextReader.class, JSBinaryReader.class, JSFileWriter.class };
 	}
 
 
@@ -2277,6 +2471,409 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 		return false;
 	}
 
+	/**
+	 * Reads all the bytes of a file in the background, the calling script continues right away.
+	 * When the file is read the callback is called with the bytes, or with null and the exception if the file couldn't be read.
+	 *
+	 * @sample
+	 * plugins.file.readFileAsync('/data/export.bin', function(bytes, exception) {
+	 * 	if (exception) application.output('read failed: ' + exception);
+	 * 	else application.output('read ' + bytes.length + ' bytes');
+	 * });
+	 *
+	 * @param file File path or JSFile of the file to read
+	 * @param callback the function that gets the bytes and an exception if there was a problem
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public void readFileAsync(Object file, Function callback)
+	{
+		File f = convertToFile(file);
+		if (f == null) throw new IllegalArgumentException("File cannot be null"); //$NON-NLS-1$
+		callWhenDone(AsyncFileIO.read(f), callback);
+	}
+
+	/**
+	 * Writes the bytes to a file in the background, the calling script continues right away. An existing file is overwritten.
+	 * When the file is written the callback is called with the file, or with null and the exception if the file couldn't be written.
+	 *
+	 * @sample
+	 * plugins.file.writeFileAsync('/data/report.pdf', pdfBytes, function(file, exception) {
+	 * 	if (exception) application.output('write failed: ' + exception);
+	 * 	else application.output(file.getName() + ' written');
+	 * });
+	 *
+	 * @param file File path or JSFile of the file to write
+	 * @param data the bytes to write
+	 * @param callback the function that gets the JSFile and an exception if there was a problem
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public void writeFileAsync(Object file, byte[] data, Function callback)
+	{
+		final File f = convertToFile(file);
+		if (f == null) throw new IllegalArgumentException("File cannot be null"); //$NON-NLS-1$
+		callWhenDone(AsyncFileIO.write(f, ByteBuffer.wrap(data != null ? data : new byte[0])).thenApply(
+			length -> new JSFile(f, plugin.getClientPluginAccess())), callback);
+	}
+
+	/**
+	 * Copies the source file to the destination file in the background, the calling script continues right away. An existing destination is overwritten.
+	 * When the file is copied the callback is called with the destination file, or with null and the exception if the file couldn't be copied.
+	 *
+	 * @sample
+	 * plugins.file.copyFileAsync('/data/big.iso', '/backup/big.iso', function(file, exception) {
+	 * 	if (exception) application.output('copy failed: ' + exception);
+	 * });
+	 *
+	 * @param source File path or JSFile of the file to copy
+	 * @param destination File path or JSFile of the copy
+	 * @param callback the function that gets the destination JSFile and an exception if there was a problem
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public void copyFileAsync(Object source, Object destination, Function callback)
+	{
+		File sourceFile = convertToFile(source);
+		final File destFile = convertToFile(destination);
+		if (sourceFile == null || destFile == null) throw new IllegalArgumentException("Source and destination cannot be null"); //$NON-NLS-1$
+		if (sourceFile.getAbsoluteFile().equals(destFile.getAbsoluteFile())) throw new IllegalArgumentException("Source and destination are the same"); //$NON-NLS-1$
+		callWhenDone(AsyncFileIO.copy(sourceFile, destFile).thenApply(length -> new JSFile(destFile, plugin.getClientPluginAccess())), callback);
+	}
+
+	/**
+	 * @clonedesc appendToTXTFileAsync(Object,String,String,Function)
+	 * @sampleas appendToTXTFileAsync(Object,String,String,Function)
+	 *
+	 * @param file File path or JSFile of the file to append to
+	 * @param text the text to append to the file
+	 * @param callback the function that gets the JSFile and an exception if there was a problem
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public void appendToTXTFileAsync(Object file, String text, Function callback)
+	{
+		appendToTXTFileAsync(file, text, null, callback);
+	}
+
+	/**
+	 * Appends the text to a file in the background, the calling script continues right away. Just like appendToTXTFile() new lines
+	 * are converted to the line separator of the system. The file is created if it doesn't exist.
+	 * When the text is appended the callback is called with the file, or with null and the exception if the text couldn't be appended.
+	 *
+	 * @sample
+	 * plugins.file.appendToTXTFileAsync('/logs/import.log', 'import done at ' + new Date() + '\n', 'UTF-8', function(file, exception) {
+	 * 	if (exception) application.output('append failed: ' + exception);
+	 * });
+	 *
+	 * @param file File path or JSFile of the file to append to
+	 * @param text the text to append to the file
+	 * @param encoding the encoding to use, null for the default charset of the system
+	 * @param callback the function that gets the JSFile and an exception if there was a problem
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public void appendToTXTFileAsync(Object file, String text, String encoding, Function callback)
+	{
+		final File f = convertToFile(file);
+		if (f == null) throw new IllegalArgumentException("File cannot be null"); //$NON-NLS-1$
+		Charset charset = encoding != null ? Charset.forName(encoding) : Charset.defaultCharset();
+		ByteBuffer data = charset.encode(text != null ? text.replaceAll("\\n", LF) : ""); //$NON-NLS-1$ //$NON-NLS-2$
+		callWhenDone(AsyncFileIO.append(f, data).thenApply(length -> new JSFile(f, plugin.getClientPluginAccess())), callback);
+	}
+
+	/**
+	 * Returns the checksum or digest of the file as a lowercase hex string, null if the file can't be read.
+	 * The file is streamed through a small buffer, it is never loaded in memory.
+	 * Supported algorithms are 'CRC32C' and the message digests of the java runtime like 'SHA-256' (the default), 'SHA-512', 'SHA-1' and 'MD5'.
+	 *
+	 * @sample
+	 * var sha = plugins.file.digest('/data/export.zip', 'SHA-256');
+	 * if (sha != expectedSha) application.output('export.zip is corrupt');
+	 * // a fast checksum to detect changes
+	 * var crc = plugins.file.digest('/data/export.zip', 'CRC32C');
+	 *
+	 * @param file File path or JSFile of the file
+	 * @param algorithm 'CRC32C', 'SHA-256', 'MD5' or another digest algorithm, null for 'SHA-256'
+	 * @return the digest as hex string
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public String digest(Object file, String algorithm)
+	{
+		File f = convertToFile(file);
+		if (f == null) throw new IllegalArgumentException("File cannot be null"); //$NON-NLS-1$
+		String name = FileDigest.checkAlgorithm(algorithm);
+		try
+		{
+			return FileDigest.digest(f, name);
+		}
+		catch (IOException e)
+		{
+			Debug.error("Can't compute the digest of " + f, e); //$NON-NLS-1$
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the checksums or digests of the files as lowercase hex strings, in the same order as the files.
+	 * The files are hashed in parallel, the digest of a file that can't be read is null.
+	 *
+	 * @sample
+	 * var files = plugins.file.getFolderContents('/data/archive', '.pdf', 1);
+	 * var digests = plugins.file.digestFiles(files, 'MD5');
+	 * for (var i = 0; i < files.length; i++) {
+	 * 	application.output(files[i].getName() + ': ' + digests[i]);
+	 * }
+	 *
+	 * @param files array of file paths or JSFiles
+	 * @param algorithm 'CRC32C', 'SHA-256', 'MD5' or another digest algorithm, null for 'SHA-256'
+	 * @return the digests as hex strings
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public String[] digestFiles(Object files, String algorithm) throws InterruptedException
+	{
+		Object[] fileObjects = unwrap(files);
+		if (fileObjects == null) throw new IllegalArgumentException("Files cannot be null"); //$NON-NLS-1$
+		String name = FileDigest.checkAlgorithm(algorithm);
+		File[] toDigest = new File[fileObjects.length];
+		for (int i = 0; i < fileObjects.length; i++)
+		{
+			toDigest[i] = convertToFile(fileObjects[i]);
+		}
+		return FileDigest.digest(toDigest, name);
+	}
+
+	/**
+	 * Creates a zip archive of the given files and folders, a folder is added with all its contents under its own name.
+	 * The files are streamed into the archive, they are not read in memory. Returns the archive, or null if it couldn't be created.
+	 *
+	 * @sample
+	 * var archive = plugins.file.zip(['/reports/2024/january.pdf', '/reports/2024/february.pdf'], '/reports/2024.zip');
+	 * // zip a whole folder in the background
+	 * var monitor = plugins.file.zip('/reports/2024', '/backup/reports-2024.zip', function(file, exception) {
+	 * 	if (exception) application.output('zip failed: ' + exception);
+	 * });
+	 * monitor.setProgressCallBack(function(m) {
+	 * 	application.output(m.getTotalTransferredBytes() + ' of ' + m.getTotalBytesToTransfer());
+	 * }, 1);
+	 *
+	 * @param files a file or folder (path or JSFile), or an array of them
+	 * @param target File path or JSFile of the zip archive
+	 * @return the zip archive
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSFile zip(Object files, Object target)
+	{
+		return (JSFile)runArchiveOperation(createZipOperation(files, target));
+	}
+
+	/**
+	 * Creates the zip archive in the background, just like zip(Object,Object). The callback gets the archive and an exception if there was a problem.
+	 * @sampleas zip(Object,Object)
+	 *
+	 * @param files a file or folder (path or JSFile), or an array of them
+	 * @param target File path or JSFile of the zip archive
+	 * @param callback the function that gets the archive JSFile and an exception if there was a problem
+	 * @return a JSProgressMonitor to follow or cancel the zip
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSProgressMonitor zip(Object files, Object target, Function callback)
+	{
+		return startFolderOperation(callback, createZipOperation(files, target));
+	}
+
+	private FolderOperation createZipOperation(Object files, Object target)
+	{
+		Object[] fileObjects = unwrap(files);
+		final File targetFile = convertToFile(target);
+		if (fileObjects == null || targetFile == null) throw new IllegalArgumentException("Files and target cannot be null"); //$NON-NLS-1$
+		final File[] sources = new File[fileObjects.length];
+		for (int i = 0; i < fileObjects.length; i++)
+		{
+			sources[i] = convertToFile(fileObjects[i]);
+			if (sources[i] == null) throw new IllegalArgumentException("File " + fileObjects[i] + " can't be zipped, it is not a file or folder"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return monitor -> Archives.zip(sources, targetFile, monitor) ? new JSFile(targetFile, plugin.getClientPluginAccess()) : null;
+	}
+
+	/**
+	 * Extracts a zip archive into the target folder, the folder is created if it doesn't exist.
+	 * Entries that would be extracted outside of the target folder (like '../file') are refused.
+	 * Archives with more than 100000 entries or that extract to more than 10GB are refused as well.
+	 * Returns the extracted files and folders, or null if the archive couldn't be extracted.
+	 *
+	 * @sample
+	 * var files = plugins.file.unzip('/uploads/import.zip', '/data/import');
+	 * // extract in the background
+	 * plugins.file.unzip('/uploads/big.zip', '/data/big', function(files, exception) {
+	 * 	if (exception) application.output('unzip failed: ' + exception);
+	 * 	else application.output(files.length + ' files extracted');
+	 * });
+	 *
+	 * @param archive File path or JSFile of the zip archive
+	 * @param targetFolder File path or JSFile of the folder to extract to
+	 * @return the extracted files
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSFile[] unzip(Object archive, Object targetFolder)
+	{
+		return (JSFile[])runArchiveOperation(createUnzipOperation(archive, targetFolder));
+	}
+
+	/**
+	 * Extracts the zip archive in the background, just like unzip(Object,Object). The callback gets the extracted files and an exception if there was a problem.
+	 * @sampleas unzip(Object,Object)
+	 *
+	 * @param archive File path or JSFile of the zip archive
+	 * @param targetFolder File path or JSFile of the folder to extract to
+	 * @param callback the function that gets the extracted JSFiles and an exception if there was a problem
+	 * @return a JSProgressMonitor to follow or cancel the extraction
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSProgressMonitor unzip(Object archive, Object targetFolder, Function callback)
+	{
+		return startFolderOperation(callback, createUnzipOperation(archive, targetFolder));
+	}
+
+	private FolderOperation createUnzipOperation(Object archive, Object targetFolder)
+	{
+		final File archiveFile = convertToFile(archive);
+		final File folder = convertToFile(targetFolder);
+		if (archiveFile == null || folder == null) throw new IllegalArgumentException("Archive and target folder cannot be null"); //$NON-NLS-1$
+		return monitor -> {
+			List<File> extracted = Archives.unzip(archiveFile, folder, monitor);
+			if (extracted == null) return null;
+			JSFile[] files = new JSFile[extracted.size()];
+			for (int i = 0; i < files.length; i++)
+			{
+				files[i] = new JSFile(extracted.get(i), plugin.getClientPluginAccess());
+			}
+			return files;
+		};
+	}
+
+	/**
+	 * Compresses a file with gzip. Returns the compressed file, or null if it couldn't be compressed.
+	 *
+	 * @sample
+	 * var gz = plugins.file.gzip('/logs/server.log', '/logs/server.log.gz');
+	 * plugins.file.gzip('/exports/big.csv', '/exports/big.csv.gz', function(file, exception) {
+	 * 	if (!exception) plugins.file.deleteFile('/exports/big.csv');
+	 * });
+	 *
+	 * @param source File path or JSFile of the file to compress
+	 * @param target File path or JSFile of the gzip file
+	 * @return the gzip file
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSFile gzip(Object source, Object target)
+	{
+		return (JSFile)runArchiveOperation(createGzipOperation(source, target, true));
+	}
+
+	/**
+	 * Compresses the file in the background, just like gzip(Object,Object). The callback gets the compressed file and an exception if there was a problem.
+	 * @sampleas gzip(Object,Object)
+	 *
+	 * @param source File path or JSFile of the file to compress
+	 * @param target File path or JSFile of the gzip file
+	 * @param callback the function that gets the gzip JSFile and an exception if there was a problem
+	 * @return a JSProgressMonitor to follow or cancel the compression
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSProgressMonitor gzip(Object source, Object target, Function callback)
+	{
+		return startFolderOperation(callback, createGzipOperation(source, target, true));
+	}
+
+	/**
+	 * Decompresses a gzip file, a file that decompresses to more than 10GB is refused. Returns the decompressed file, or null if it couldn't be decompressed.
+	 *
+	 * @sample
+	 * var log = plugins.file.gunzip('/logs/server.log.gz', '/tmp/server.log');
+	 * plugins.file.gunzip('/imports/data.csv.gz', '/imports/data.csv', function(file, exception) {
+	 * 	if (exception) application.output('gunzip failed: ' + exception);
+	 * });
+	 *
+	 * @param source File path or JSFile of the gzip file
+	 * @param target File path or JSFile of the decompressed file
+	 * @return the decompressed file
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSFile gunzip(Object source, Object target)
+	{
+		return (JSFile)runArchiveOperation(createGzipOperation(source, target, false));
+	}
+
+	/**
+	 * Decompresses the gzip file in the background, just like gunzip(Object,Object). The callback gets the decompressed file and an exception if there was a problem.
+	 * @sampleas gunzip(Object,Object)
+	 *
+	 * @param source File path or JSFile of the gzip file
+	 * @param target File path or JSFile of the decompressed file
+	 * @param callback the function that gets the decompressed JSFile and an exception if there was a problem
+	 * @return a JSProgressMonitor to follow or cancel the decompression
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSProgressMonitor gunzip(Object source, Object target, Function callback)
+	{
+		return startFolderOperation(callback, createGzipOperation(source, target, false));
+	}
+
+	private FolderOperation createGzipOperation(Object source, Object target, final boolean compress)
+	{
+		final File sourceFile = convertToFile(source);
+		final File targetFile = convertToFile(target);
+		if (sourceFile == null || targetFile == null) throw new IllegalArgumentException("Source and target cannot be null"); //$NON-NLS-1$
+		if (sourceFile.getAbsoluteFile().equals(targetFile.getAbsoluteFile())) throw new IllegalArgumentException("Source and target are the same"); //$NON-NLS-1$
+		return monitor -> {
+			boolean done = compress ? Archives.gzip(sourceFile, targetFile, monitor) : Archives.gunzip(sourceFile, targetFile, monitor);
+			return done ? new JSFile(targetFile, plugin.getClientPluginAccess()) : null;
+		};
+	}
+
+	/**
+	 * Runs the operation on the calling thread, null is returned when it fails.
+	 */
+	private Object runArchiveOperation(FolderOperation operation)
+	{
+		try
+		{
+			return operation.run(new JSProgressMonitor(this, 0, 0));
+		}
+		catch (Exception e)
+		{
+			Debug.error(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Calls the callback with the result and the exception (unwrapped) when the future completes.
+	 */
+	private void callWhenDone(CompletableFuture< ? > future, Function callback)
+	{
+		final FunctionDefinition function = (callback == null) ? null : new FunctionDefinition(callback);
+		future.whenComplete((result, exception) -> {
+			Throwable ex = exception instanceof CompletionException && exception.getCause() != null ? exception.getCause() : exception;
+			if (ex != null) Debug.error(ex);
+			if (function != null)
+			{
+				function.executeAsync(plugin.getClientPluginAccess(), new Object[] { ex == null ? result : null, ex });
+			}
+		});
+	}
+
 	/**
 	 * Convenience return to get a JSFile representation of a server file based on its path.
 	 *
@@ -2535,11 +3132,336 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 	}
 
 	/**
-	 * Retrieves an array of files/folders from the server
+	 * Returns a live index of the contents of the given folder. The folder is read once, after that the index is kept up to date
+	 * by watching the folder for changes, so queries on it don't have to list the folder again.
+	 * This is useful for folders with a lot of files that are queried often, only the direct children of the folder are indexed.
+	 * The index should be closed when it is not needed anymore, otherwise it is closed when the solution is closed.
 	 *
-	 * @deprecated Replaced by {@link #getRemoteFolderContents(Object[])}.
+	 * @sample
+	 * var index = plugins.file.getFolderIndex('/data/uploads');
+	 * // the first 100 text files
+	 * var files = index.query('.txt', 0, 100);
+	 * index.close();
 	 *
-	 * @since Servoy 5.2
+	 * @param targetFolder File path or JSFile of the folder
+	 * @return the folder index
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSFolderIndex getFolderIndex(Object targetFolder) throws Exception
+	{
+		File folder = convertToFile(targetFolder);
+		if (folder == null) throw new IllegalArgumentException("Folder cannot be null"); //$NON-NLS-1$
+		return openFolderIndex(folder, null);
+	}
+
+	/**
+	 * Returns a live index of the contents of the given folder on the server side (relative to the default upload folder).
+	 * The folder is read once, after that the index is kept up to date by watching the folder for changes,
+	 * so queries on it don't have to list the folder again. Only the direct children of the folder are indexed.
+	 * The index should be closed when it is not needed anymore, otherwise it is closed when the solution is closed.
+	 *
+	 * @sample
+	 * var index = plugins.file.getRemoteFolderIndex('/');
+	 * // the pdf files that where changed in the last day, 50 at a time
+	 * var since = new Date(new Date().getTime() - 24 * 3600000);
+	 * var page = 0;
+	 * var files;
+	 * do {
+	 * 	files = index.query('.pdf', null, since, 1, page * 50, 50);
+	 * 	page++;
+	 * } while (files.length == 50);
+	 * index.close();
+	 *
+	 * @param targetFolder Folder path or remote JSFile
+	 * @return the folder index
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSFolderIndex getRemoteFolderIndex(Object targetFolder) throws Exception
+	{
+		File mainFolder = getDefaultFolder(plugin.getClientPluginAccess().getClientID());
+		return openFolderIndex(getRemoteFolder(targetFolder, mainFolder, "getRemoteFolderIndex"), mainFolder); //$NON-NLS-1$
+	}
+
+	@SuppressWarnings("nls")
+	private File getRemoteFolder(Object targetFolder, File mainFolder, String method)
+	{
+		if (targetFolder == null) throw new IllegalArgumentException("Folder cannot be null");
+		if (targetFolder instanceof JSFile)
+		{
+			IAbstractFile abstractFile = ((JSFile)targetFolder).getAbstractFile();
+			if (!(abstractFile instanceof RemoteFile))
+			{
+				throw new IllegalArgumentException("Local file path doesn't make sense for the " + method + " method");
+			}
+			return ((RemoteFile)abstractFile).getFile();
+		}
+		return new File(mainFolder, targetFolder.toString());
+	}
+
+	/**
+	 * @clonedesc iterateFolder(Object,String,int)
+	 * @sampleas iterateFolder(Object,String,int)
+	 *
+	 * @param targetFolder File path or JSFile of the folder
+	 * @param filter a glob pattern like '*.txt' or '*.{jpg,png}' for the names, null for all
+	 * @return the folder iterator
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSFolderIterator iterateFolder(Object targetFolder, String filter) throws Exception
+	{
+		return iterateFolder(targetFolder, filter, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * Returns an iterator over the contents of the given folder. Unlike getFolderContents() the folder is read while iterating,
+	 * the entries are returned one by one or in pages, so only the current page is kept in memory regardless of the size of the folder.
+	 * The filter is a glob pattern that is applied while reading the folder.
+	 * The iterator is closed when all the entries are read, or should be closed when it is not needed anymore,
+	 * otherwise it is closed when the solution is closed.
+	 *
+	 * @sample
+	 * var it = plugins.file.iterateFolder('/data/uploads', '*.{jpg,png}', 500);
+	 * while (it.hasNext()) {
+	 * 	var page = it.nextPage();
+	 * 	for (var i = 0; i < page.length; i++) {
+	 * 		application.output(page[i].getName());
+	 * 	}
+	 * }
+	 *
+	 * @param targetFolder File path or JSFile of the folder
+	 * @param filter a glob pattern like '*.txt' or '*.{jpg,png}' for the names, null for all
+	 * @param pageSize the number of entries nextPage() returns
+	 * @return the folder iterator
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSFolderIterator iterateFolder(Object targetFolder, String filter, int pageSize) throws Exception
+	{
+		File folder = convertToFile(targetFolder);
+		if (folder == null) throw new IllegalArgumentException("Folder cannot be null"); //$NON-NLS-1$
+		return openFolderIterator(folder, null, filter, pageSize);
+	}
+
+	/**
+	 * @clonedesc iterateRemoteFolder(Object,String,int)
+	 * @sampleas iterateRemoteFolder(Object,String,int)
+	 *
+	 * @param targetFolder Folder path or remote JSFile
+	 * @param filter a glob pattern like '*.txt' or '*.{jpg,png}' for the names, null for all
+	 * @return the folder iterator
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSFolderIterator iterateRemoteFolder(Object targetFolder, String filter) throws Exception
+	{
+		return iterateRemoteFolder(targetFolder, filter, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * Returns an iterator over the contents of the given folder on the server side (relative to the default upload folder).
+	 * Unlike getRemoteFolderContents() the folder is read while iterating, the entries are returned one by one or in pages,
+	 * so only the current page is kept in memory regardless of the size of the folder.
+	 * The filter is a glob pattern that is applied while reading the folder.
+	 * The iterator is closed when all the entries are read, or should be closed when it is not needed anymore,
+	 * otherwise it is closed when the solution is closed.
+	 *
+	 * @sample
+	 * var it = plugins.file.iterateRemoteFolder('/', '*.pdf', 100);
+	 * var page = it.nextPage();
+	 * it.close();
+	 *
+	 * @param targetFolder Folder path or remote JSFile
+	 * @param filter a glob pattern like '*.txt' or '*.{jpg,png}' for the names, null for all
+	 * @param pageSize the number of entries nextPage() returns
+	 * @return the folder iterator
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSFolderIterator iterateRemoteFolder(Object targetFolder, String filter, int pageSize) throws Exception
+	{
+		File mainFolder = getDefaultFolder(plugin.getClientPluginAccess().getClientID());
+		return openFolderIterator(getRemoteFolder(targetFolder, mainFolder, "iterateRemoteFolder"), mainFolder, filter, pageSize); //$NON-NLS-1$
+	}
+
+	/**
+	 * @clonedesc openTextReader(Object,String)
+	 * @sampleas openTextReader(Object,String)
+	 *
+	 * @param file File path or JSFile of the text file
+	 * @return the text reader
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSTextReader openTextReader(Object file) throws Exception
+	{
+		return openTextReader(file, null);
+	}
+
+	/**
+	 * Opens a reader on a text file that reads the file line by line or in chunks. Unlike readTXTFile() the file is not read in memory at once,
+	 * the memory that is used stays the same regardless of the size of the file. A UTF-8 byte order mark at the start of the file is skipped.
+	 * The reader should be closed when it is not needed anymore, otherwise it is closed when the solution is closed.
+	 *
+	 * @sample
+	 * var reader = plugins.file.openTextReader('/data/big.log', 'UTF-8');
+	 * try {
+	 * 	var line;
+	 * 	while ((line = reader.readLine()) != null) {
+	 * 		// process the line
+	 * 	}
+	 * } finally {
+	 * 	reader.close();
+	 * }
+	 *
+	 * @param file File path or JSFile of the text file
+	 * @param charsetname Charset name, null for the default charset of the system
+	 * @return the text reader
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSTextReader openTextReader(Object file, String charsetname) throws Exception
+	{
+		File f = convertToFile(file);
+		if (f == null) throw new IllegalArgumentException("File cannot be null"); //$NON-NLS-1$
+		Charset charset = charsetname != null ? Charset.forName(charsetname) : Charset.defaultCharset();
+		return registerHandle(new JSTextReader(this, plugin.getClientPluginAccess(), f, charset));
+	}
+
+	/**
+	 * Opens a reader on a binary file for reads at any offset. Unlike readFile() the file is not copied into memory,
+	 * it is memory mapped so only the parts that are read are loaded by the operating system.
+	 * Next to reading bytes, integers, longs and doubles can be read (in big or little endian byte order) and bytes can be searched for.
+	 * The reader should be closed when it is not needed anymore, otherwise it is closed when the solution is closed.
+	 *
+	 * @sample
+	 * var reader = plugins.file.openBinaryReader('/data/index.bin');
+	 * try {
+	 * 	reader.setLittleEndian(true);
+	 * 	var entries = reader.readInt(0);
+	 * 	var firstEntry = reader.read(4, 32);
+	 * 	var trailer = reader.indexOf([0x50, 0x4B, 0x05, 0x06], 0);
+	 * } finally {
+	 * 	reader.close();
+	 * }
+	 *
+	 * @param file File path or JSFile of the binary file
+	 * @return the binary reader
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSBinaryReader openBinaryReader(Object file) throws Exception
+	{
+		File f = convertToFile(file);
+		if (f == null) throw new IllegalArgumentException("File cannot be null"); //$NON-NLS-1$
+		return registerHandle(new JSBinaryReader(this, f));
+	}
+
+	/**
+	 * @clonedesc openWriter(Object,String,boolean)
+	 * @sampleas openWriter(Object,String,boolean)
+	 *
+	 * @param file File path or JSFile of the text file
+	 * @param charsetname Charset name, null for the default charset of the system
+	 * @return the file writer
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSFileWriter openWriter(Object file, String charsetname) throws Exception
+	{
+		return openWriter(file, charsetname, false);
+	}
+
+	/**
+	 * Opens a writer on a text file that stays open until it is closed. Unlike appendToTXTFile() the file is not opened and closed for every write,
+	 * the text is buffered and written when the buffer is full, on flush() or close(), or periodically when auto flush is enabled.
+	 * With sync on flush enabled every flush also waits until the data is on the storage device.
+	 * The writer should be closed when it is not needed anymore, otherwise it is closed (and flushed) when the solution is closed.
+	 *
+	 * @sample
+	 * var writer = plugins.file.openWriter('/logs/audit.log', 'UTF-8', true);
+	 * writer.setAutoFlush(1000);
+	 * for (var i = 1; i <= foundset.getSize(); i++) {
+	 * 	writer.writeLine(foundset.getRecord(i).order_id + ' exported');
+	 * }
+	 * writer.close();
+	 *
+	 * @param file File path or JSFile of the text file
+	 * @param charsetname Charset name, null for the default charset of the system
+	 * @param append true to add to the end of the file, false to overwrite the file
+	 * @return the file writer
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = true, sc = true)
+	public JSFileWriter openWriter(Object file, String charsetname, boolean append) throws Exception
+	{
+		File f = convertToFile(file);
+		if (f == null) throw new IllegalArgumentException("File cannot be null"); //$NON-NLS-1$
+		Charset charset = charsetname != null ? Charset.forName(charsetname) : Charset.defaultCharset();
+		return registerHandle(new JSFileWriter(this, timer, f, charset, append));
+	}
+
+	private JSFolderIterator openFolderIterator(File folder, File mainFolder, String filter, int pageSize) throws IOException
+	{
+		DirectoryStream<Path> stream = Files.newDirectoryStream(folder.toPath(), filter == null || filter.length() == 0 ? "*" : filter); //$NON-NLS-1$
+		return registerHandle(
+			new JSFolderIterator(this, plugin.getClientPluginAccess(), stream, mainFolder, pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE));
+	}
+
+	private JSFolderIndex openFolderIndex(File folder, File mainFolder) throws IOException
+	{
+		return registerHandle(new JSFolderIndex(this, plugin.getClientPluginAccess(), FolderIndex.acquire(folder.toPath()), mainFolder));
+	}
+
+	/**
+	 * Keeps track of a handle that is given to the scripting, so it can be closed when the solution is closed.
+	 */
+	<T extends Closeable> T registerHandle(T handle)
+	{
+		synchronized (openHandles)
+		{
+			openHandles.add(handle);
+		}
+		return handle;
+	}
+
+	void handleClosed(Closeable handle)
+	{
+		synchronized (openHandles)
+		{
+			openHandles.remove(handle);
+		}
+	}
+
+	private void closeHandles()
+	{
+		List<Closeable> handles;
+		synchronized (openHandles)
+		{
+			handles = new ArrayList<>(openHandles);
+			openHandles.clear();
+		}
+		for (Closeable handle : handles)
+		{
+			try
+			{
+				handle.close();
+			}
+			catch (IOException e)
+			{
+				Debug.error(e);
+			}
+		}
+	}
+
+	/**
+	 * Retrieves an array of files/folders from the server
+	 *
+	 * @deprecated Replaced by {@link #getRemoteFolderContents(Object[])}.
+	 *
+	 * @since Servoy 5.2
 	 *
 	 * @param serverPath the path of a remote directory (relative to the defaultFolder)
 	 *
@@ -2641,6 +3563,8 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 
 	/**
 	 * Overloaded method, defines file(s) to be streamed, a callback function and file name(s) to use on the server
+	 * Multiple files are transferred at the same time, a failed transfer of a big file resumes from the last verified part
+	 * when the same file is streamed again to the same server file. The current file values of the monitor are of the last started file.
 	 *
 	 * @since Servoy 5.2
 	 *
@@ -3024,6 +3948,71 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 			return;
 		}
 
+		File realFile = getStreamableFile(file);
+		UUID uuid = FileServlet.registerFile(realFile);
+		streamedFiles.add(uuid);
+		String url = createStreamUrl(uuid.toString(), null, contentDisposition);
+		plugin.getClientPluginAccess().showUrl(url, browserTarget == null ? "_self" : browserTarget);
+	}
+
+	/**
+	 * Returns an url that streams the given server file(path) to the browser, like streamFile() does, but without showing it.
+	 * The url can only be used for the given number of seconds and, when maxDownloads is bigger then 0, only that many times.
+	 * Every request that gets content counts as a download, also a range request that resumes or seeks in the file,
+	 * so give media that the browser plays with range requests a higher maxDownloads or no limit.
+	 * The url is also invalidated when the client is closed.
+	 * This will throw an exception if the given file is not valid/found.
+	 *
+	 * @sample
+	 * // an url that can be used once in the next 5 minutes
+	 * var url = plugins.file.getStreamUrl('/path/on/server/report.pdf', 'inline', 300, 1);
+	 * application.showURL(url, '_blank');
+	 *
+	 * @param file A path string, JSFile or RemoteFile
+	 * @param contentDisposition can be 'inline' or 'attachment'
+	 * @param timeout the number of seconds the url can be used, 0 for the server default (servoy.FileServerService.urlTimeout)
+	 * @param maxDownloads the number of times the file can be downloaded, 0 for no limit
+	 * @return the url
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = false, sc = false)
+	public String getStreamUrl(Object file, String contentDisposition, int timeout, int maxDownloads) throws Exception
+	{
+		File realFile = getStreamableFile(file);
+		UUID uuid = FileServlet.registerFile(realFile, TimeUnit.SECONDS.toMillis(Math.max(0, timeout)), maxDownloads);
+		streamedFiles.add(uuid);
+		return createStreamUrl(uuid.toString(), null, contentDisposition);
+	}
+
+	/**
+	 * Returns a signed url that streams the given server file(path) to the browser.
+	 * The server doesn't keep any state for this url, it just validates the signature and the expire time.
+	 * So it also stays valid when the client is closed, and when the servoy.FileServerService.urlSigningKey property is set to the same value
+	 * on all servers it can be used on any server of a cluster.
+	 * Note that the full path of the file is encoded (not encrypted) in the url.
+	 * This will throw an exception if the given file is not valid/found.
+	 *
+	 * @sample
+	 * // an url that can be used for a day, for example in a mail
+	 * var url = plugins.file.getSignedStreamUrl('/path/on/server/invoice.pdf', 'attachment', 24 * 60 * 60);
+	 *
+	 * @param file A path string, JSFile or RemoteFile
+	 * @param contentDisposition can be 'inline' or 'attachment'
+	 * @param timeout the number of seconds the url can be used, 0 for the server default (servoy.FileServerService.urlTimeout)
+	 * @return the url
+	 */
+	@JSFunction
+	@ServoyClientSupport(ng = true, wc = false, sc = false)
+	public String getSignedStreamUrl(Object file, String contentDisposition, int timeout) throws Exception
+	{
+		File realFile = getStreamableFile(file);
+		long expires = System.currentTimeMillis() + (timeout > 0 ? TimeUnit.SECONDS.toMillis(timeout) : FileServlet.getDefaultTimeout());
+		return createStreamUrl(realFile.getName(), FileServlet.createSignedToken(realFile, expires), contentDisposition);
+	}
+
+	@SuppressWarnings("nls")
+	private File getStreamableFile(Object file)
+	{
 		File realFile = null;
 		if (file instanceof IFile)
 		{
@@ -3033,22 +4022,24 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 		{
 			realFile = new File((String)file);
 		}
-		if (realFile != null && realFile.exists())
-		{
-			UUID uuid = FileServlet.registerFile(realFile);
-			streamedFiles.add(uuid);
-
-			String serverURL = plugin.getClientPluginAccess().getServerURL().toURI().toString();
-			serverURL = serverURL.endsWith("/") ? serverURL : serverURL + '/';
-			String url = serverURL + "servoy-service/file/" + uuid.toString();
-			if ("attachment".equals(contentDisposition)) url += "?c=a";
-			else if ("inline".equals(contentDisposition)) url += "?c=i";
-			plugin.getClientPluginAccess().showUrl(url, browserTarget == null ? "_self" : browserTarget);
-		}
-		else
+		if (realFile == null || !realFile.exists())
 		{
 			throw new RuntimeException("Can't stream " + file + " because the file does not exists");
 		}
+		return realFile;
+	}
+
+	@SuppressWarnings("nls")
+	private String createStreamUrl(String name, String token, String contentDisposition) throws Exception
+	{
+		URL serverUrl = plugin.getClientPluginAccess().getServerURL();
+		String serverPath = serverUrl.getPath().endsWith("/") ? serverUrl.getPath() : serverUrl.getPath() + '/';
+		StringBuilder query = new StringBuilder();
+		if (token != null) query.append("t=").append(token);
+		if ("attachment".equals(contentDisposition)) query.append(query.length() > 0 ? "&" : "").append("c=a");
+		else if ("inline".equals(contentDisposition)) query.append(query.length() > 0 ? "&" : "").append("c=i");
+		return new URI(serverUrl.getProtocol(), serverUrl.getAuthority(), serverPath + "servoy-service/file/" + name,
+			query.length() > 0 ? query.toString() : null, null).toURL().toString();
 	}
 
 	/**
@@ -3085,6 +4076,7 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 			file.delete();
 		}
 		tempFiles.clear();
+		closeHandles();
 	}
 
 
@@ -3096,6 +4088,7 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 		}
 		streamedFiles.forEach(uuid -> FileServlet.unregisterFile(uuid));
 		streamedFiles.clear();
+		closeHandles();
 	}
 
 	private final class FromServerWorker implements Runnable
@@ -3152,7 +4145,7 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 									int read;
 									while (((read = is.read(buffer)) != -1) && !progressMonitor.js_isCanceled())
 									{
-										os.write(buffer);
+										os.write(buffer, 0, read);
 										totalTransfered += read;
 										currentTransferred += read;
 										progressMonitor.setTotalTransferred(totalTransfered);
@@ -3238,124 +4231,58 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 			this.progressMonitor = progressMonitor;
 		}
 
+		/**
+		 * Copies the files on a bounded {@link ChunkedTransfer} pool of this transfer, so multiple files are copied at once.
+		 * This thread waits for all of them to be finished.
+		 */
 		public void run()
 		{
+			ExecutorService executor = ChunkedTransfer.newExecutor();
 			try
 			{
-				long totalTransfered = 0L;
+				File mainFolder = null;
+				try
+				{
+					mainFolder = getDefaultFolder(plugin.getClientPluginAccess().getClientID());
+				}
+				catch (Exception e)
+				{
+					Debug.error(e);
+				}
+				List<Future< ? >> transfers = new ArrayList<>();
 				for (int i = 0; i < files.length; i++)
 				{
 					final File file = files[i];
 					if (file != null)
 					{
-						// the serverName can be derived from an Array of String, at the same index as the file
-						String serverFileName = null;
-						if (serverFiles != null && i < serverFiles.length)
-						{
-							if (serverFiles[i] instanceof JSFile)
-							{
-								JSFile jsFile = (JSFile)serverFiles[i];
-								IAbstractFile abstractFile = jsFile.getAbstractFile();
-								if (abstractFile instanceof RemoteFile)
-								{
-									serverFileName = ((RemoteFile)abstractFile).getAbsolutePath();
-								}
-								else
-								{
-									serverFileName = abstractFile.getName();
-								}
-							}
-							else
-							{
-								serverFileName = serverFiles[i].toString();
-							}
-						}
-						else
-						{
-							serverFileName = "/" + file.getName(); //$NON-NLS-1$
-						}
-
-						long currentTransferred = 0L;
-						progressMonitor.setCurrentFileName(file.getAbsolutePath());
-						progressMonitor.setCurrentBytes(file.length());
-						progressMonitor.setCurrentFileIndex(i + 1);
-						progressMonitor.setCurrentTransferred(0L);
-
-						final String clientId = plugin.getClientPluginAccess().getClientID();
-						File mainFolder = null;
-						try
-						{
-							mainFolder = getDefaultFolder(plugin.getClientPluginAccess().getClientID());
-						}
-						catch (Exception e)
-						{
-							Debug.error(e);
-						}
-						File remoteFile = new File(mainFolder, serverFileName);
-						InputStream is = null;
-						OutputStream os = null;
-						Exception ex = null;
-						try
-						{
-							is = new FileInputStream(file);
-							os = new FileOutputStream(remoteFile);
-							byte[] buffer = new byte[CHUNK_BUFFER_SIZE];
-							int read = is.read(buffer);
-							while (read > -1 && !progressMonitor.js_isCanceled())
-							{
-								os.write(buffer);
-								totalTransfered += read;
-								currentTransferred += read;
-								progressMonitor.setTotalTransferred(totalTransfered);
-								progressMonitor.setCurrentTransferred(currentTransferred);
-
-								if (progressMonitor.getDelay() > 0)
-								{
-									Thread.sleep(progressMonitor.getDelay()); // to test the process
-								}
-
-								read = is.read(buffer);
-							}
-						}
-						catch (final Exception e)
-						{
-							Debug.error(e);
-							ex = e;
-						}
-						finally
-						{
-							try
-							{
-								if (os != null) os.close();
-							}
-							catch (final IOException ignore)
-							{
-							}
-							try
-							{
-								if (is != null) is.close();
-							}
-							catch (final IOException ignore)
-							{
-							}
-							if (function != null && !progressMonitor.js_isCanceled())
-							{
-								final JSFile returnedFile = (remoteFile == null) ? null
-									: new JSFile(new RemoteFile(remoteFile, mainFolder, plugin.getClientPluginAccess()), plugin.getClientPluginAccess());
-								function.executeAsync(plugin.getClientPluginAccess(), new Object[] { returnedFile, ex });
-							}
-							if (progressMonitor.js_isCanceled())
-							{
-								remoteFile.delete();
-								progressMonitor.run();
-								break;
-							}
-						}
+						File remoteFile = new File(mainFolder, getServerFileName(i, file));
+						transfers.add(executor.submit(new FileTransfer(file, remoteFile, mainFolder, i + 1)));
 					}
 				}
+				for (Future< ? > transfer : transfers)
+				{
+					try
+					{
+						transfer.get();
+					}
+					catch (ExecutionException e)
+					{
+						Debug.error(e);
+					}
+				}
+				if (progressMonitor.js_isCanceled())
+				{
+					progressMonitor.run();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				progressMonitor.js_cancel();
+				Thread.currentThread().interrupt();
 			}
 			finally
 			{
+				executor.shutdown();
 				if (!progressMonitor.js_isCanceled())
 				{
 					progressMonitor.setFinished(true);
@@ -3364,6 +4291,84 @@ public class FileProvider implements IReturnedTypesProvider, IScriptable
 				progressMonitor.cancel(); // stops the TimerTask
 			}
 		}
+
+		/**
+		 * The serverName can be derived from an Array of String, at the same index as the file
+		 */
+		private String getServerFileName(int index, File file)
+		{
+			if (serverFiles != null && index < serverFiles.length)
+			{
+				if (serverFiles[index] instanceof JSFile)
+				{
+					JSFile jsFile = (JSFile)serverFiles[index];
+					IAbstractFile abstractFile = jsFile.getAbstractFile();
+					if (abstractFile instanceof RemoteFile)
+					{
+						return ((RemoteFile)abstractFile).getAbsolutePath();
+					}
+					return abstractFile.getName();
+				}
+				return serverFiles[index].toString();
+			}
+			return "/" + file.getName(); //$NON-NLS-1$
+		}
+
+		private final class FileTransfer implements Runnable
+		{
+			private final File file;
+			private final File remoteFile;
+			private final File mainFolder;
+			private final int index;
+
+			FileTransfer(File file, File remoteFile, File mainFolder, int index)
+			{
+				this.file = file;
+				this.remoteFile = remoteFile;
+				this.mainFolder = mainFolder;
+				this.index = index;
+			}
+
+			public void run()
+			{
+				if (progressMonitor.js_isCanceled()) return;
+
+				// with files transferred at once, the current values are of the last started file,
+				// the index is set last so only this file updates the current transferred bytes from now on
+				progressMonitor.setCurrentFileName(file.getAbsolutePath());
+				progressMonitor.setCurrentBytes(file.length());
+				progressMonitor.setCurrentTransferred(0L);
+				progressMonitor.setCurrentFileIndex(index);
+
+				Exception ex = null;
+				try
+				{
+					ChunkedTransfer.copy(file, remoteFile, progressMonitor, index);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					ex = e;
+				}
+				catch (final Exception e)
+				{
+					// the checkpoint file is kept, so the next transfer of this file can resume
+					Debug.error(e);
+					ex = e;
+				}
+				if (progressMonitor.js_isCanceled())
+				{
+					remoteFile.delete();
+					ChunkedTransfer.getCheckpointFile(remoteFile).delete();
+				}
+				else if (function != null)
+				{
+					final JSFile returnedFile = new JSFile(new RemoteFile(remoteFile, mainFolder, plugin.getClientPluginAccess()),
+						plugin.getClientPluginAccess());
+					function.executeAsync(plugin.getClientPluginAccess(), new Object[] { returnedFile, ex });
+				}
+			}
+		}
 	}
 
 	/**
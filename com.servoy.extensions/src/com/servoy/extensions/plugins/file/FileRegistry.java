@@ -0,0 +1,193 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Table of the files that are registered to be served by the {@link FileServlet}.<br/>
+ * A registration can expire after a timeout and can be limited to a number of downloads,
+ * the table itself is bounded and drops the oldest registrations when it is full.
+ * A background timer sweeps out the expired registrations.
+ *
+ * @author jcompagner
+ */
+final class FileRegistry
+{
+	static final long DEFAULT_TIMEOUT = TimeUnit.HOURS.toMillis(12);
+	static final int DEFAULT_MAX_SIZE = 10000;
+	private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+	// insertion ordered, so the eldest entry is the oldest registration
+	private final LinkedHashMap<String, Registration> registrations = new LinkedHashMap<>();
+
+	private long defaultTimeout = DEFAULT_TIMEOUT;
+	private int maxSize = DEFAULT_MAX_SIZE;
+	private Timer sweeper;
+
+	synchronized void configure(long timeout, int size)
+	{
+		this.defaultTimeout = timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+		this.maxSize = size > 0 ? size : DEFAULT_MAX_SIZE;
+		while (registrations.size() > maxSize)
+		{
+			removeEldest();
+		}
+	}
+
+	synchronized long getDefaultTimeout()
+	{
+		return defaultTimeout;
+	}
+
+	/**
+	 * @param timeout the time in milliseconds this registration is valid, 0 for the default timeout, less than 0 to never expire
+	 * @param maxDownloads the number of times the file can be downloaded, 0 or less for no limit
+	 */
+	synchronized UUID register(File file, long timeout, int maxDownloads)
+	{
+		long now = System.currentTimeMillis();
+		if (registrations.size() >= maxSize)
+		{
+			removeExpired(now);
+			while (registrations.size() >= maxSize)
+			{
+				removeEldest();
+			}
+		}
+		UUID uuid = UUID.randomUUID();
+		long expires = timeout < 0 ? Long.MAX_VALUE : now + (timeout > 0 ? timeout : defaultTimeout);
+		registrations.put(uuid.toString(), new Registration(file, expires, maxDownloads > 0 ? maxDownloads : -1));
+		return uuid;
+	}
+
+	synchronized void unregister(UUID uuid)
+	{
+		registrations.remove(uuid.toString());
+	}
+
+	/**
+	 * @return the registration if it is still valid, null otherwise
+	 */
+	synchronized Registration get(String uuid)
+	{
+		Registration registration = registrations.get(uuid);
+		if (registration != null && registration.isExpired(System.currentTimeMillis()))
+		{
+			registrations.remove(uuid);
+			return null;
+		}
+		return registration;
+	}
+
+	/**
+	 * Counts a download of the registration, removes it when it reached its maximum number of downloads.
+	 *
+	 * @return false if the registration has no downloads left (or is already removed)
+	 */
+	synchronized boolean consume(String uuid, Registration registration)
+	{
+		if (registrations.get(uuid) != registration) return false;
+		if (registration.remainingDownloads == -1) return true;
+		if (--registration.remainingDownloads <= 0)
+		{
+			registrations.remove(uuid);
+		}
+		return true;
+	}
+
+	synchronized int size()
+	{
+		return registrations.size();
+	}
+
+	synchronized void startSweeper()
+	{
+		if (sweeper == null)
+		{
+			sweeper = new Timer("FileServlet registration sweeper", true); //$NON-NLS-1$
+			sweeper.schedule(new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					sweep();
+				}
+			}, SWEEP_INTERVAL, SWEEP_INTERVAL);
+		}
+	}
+
+	synchronized void stopSweeper()
+	{
+		if (sweeper != null)
+		{
+			sweeper.cancel();
+			sweeper = null;
+		}
+	}
+
+	synchronized void sweep()
+	{
+		removeExpired(System.currentTimeMillis());
+	}
+
+	private void removeExpired(long now)
+	{
+		Iterator<Registration> it = registrations.values().iterator();
+		while (it.hasNext())
+		{
+			if (it.next().isExpired(now)) it.remove();
+		}
+	}
+
+	private void removeEldest()
+	{
+		Iterator<Map.Entry<String, Registration>> it = registrations.entrySet().iterator();
+		if (it.hasNext())
+		{
+			it.next();
+			it.remove();
+		}
+	}
+
+	static final class Registration
+	{
+		final File file;
+		final long expires;
+		private int remainingDownloads;
+
+		private Registration(File file, long expires, int maxDownloads)
+		{
+			this.file = file;
+			this.expires = expires;
+			this.remainingDownloads = maxDownloads;
+		}
+
+		boolean isExpired(long now)
+		{
+			return now >= expires;
+		}
+	}
+}
@@ -18,12 +18,14 @@
 package com.servoy.extensions.plugins.file;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.rmi.RemoteException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import com.servoy.j2db.plugins.IServerAccess;
 import com.servoy.j2db.plugins.IServerPlugin;
@@ -52,6 +54,11 @@ public class FileServerPlugin implements IServerPlugin, IFileService
 		final Map<String, String> req = new HashMap<String, String>();
 		req.put(IFileService.DEFAULT_FOLDER_PROPERTY,
 			"Set the default folder path (absolute path on the server) to save files sent by clients (will default to user.home/.servoy/uploads/UUID/)");
+		req.put(IFileService.URL_TIMEOUT_PROPERTY, "The default number of minutes an url of getStreamUrl() or getSignedStreamUrl() can be used when no timeout is given (default 720)");
+		req.put(IFileService.MAX_REGISTERED_FILES_PROPERTY,
+			"The maximum number of streamed file urls that are kept, the oldest are dropped when there are more (default 10000)");
+		req.put(IFileService.URL_SIGNING_KEY_PROPERTY,
+			"Secret used to sign file urls, set the same value on all servers of a cluster (default a random key per server start)");
 		return req;
 	}
 
@@ -62,6 +69,7 @@ public class FileServerPlugin implements IServerPlugin, IFileService
 	{
 		this.application = app;
 		setDefaultFolder(app.getSettings().getProperty(IFileService.DEFAULT_FOLDER_PROPERTY));
+		configureRegistry(app.getSettings());
 		try
 		{
 			app.registerRemoteService(IFileService.class.getName(), this);
@@ -73,6 +81,29 @@ public class FileServerPlugin implements IServerPlugin, IFileService
 		app.registerWebService("file", new FileServlet(this, app));
 	}
 
+	@SuppressWarnings("nls")
+	private void configureRegistry(Properties settings)
+	{
+		long timeout = FileRegistry.DEFAULT_TIMEOUT;
+		int maxSize = FileRegistry.DEFAULT_MAX_SIZE;
+		try
+		{
+			String value = settings.getProperty(IFileService.URL_TIMEOUT_PROPERTY);
+			if (value != null && value.trim().length() > 0) timeout = TimeUnit.MINUTES.toMillis(Long.parseLong(value.trim()));
+			value = settings.getProperty(IFileService.MAX_REGISTERED_FILES_PROPERTY);
+			if (value != null && value.trim().length() > 0) maxSize = Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			Debug.error("File plugin, invalid value for " + IFileService.URL_TIMEOUT_PROPERTY + " or " + IFileService.MAX_REGISTERED_FILES_PROPERTY, e);
+		}
+		FileServlet.getRegistry().configure(timeout, maxSize);
+		FileServlet.getRegistry().startSweeper();
+
+		String key = settings.getProperty(IFileService.URL_SIGNING_KEY_PROPERTY);
+		FileServlet.setSigningKey(key != null ? key.getBytes(StandardCharsets.UTF_8) : null);
+	}
+
 	/**
 	 * Initializes the default folder (where the files will be saved)<br/>
 	 * First tries to use the folder received in parameter (if not null)<br/>
@@ -159,6 +190,7 @@ public class FileServerPlugin implements IServerPlugin, IFileService
 	public void unload() throws PluginException
 	{
 		defaultFolder = null;
+		FileServlet.getRegistry().stopSweeper();
 	}
 
 	/*
@@ -17,30 +17,51 @@
 
 package com.servoy.extensions.plugins.file;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.servoy.j2db.plugins.IServerAccess;
-import com.servoy.j2db.util.Utils;
+import com.servoy.j2db.util.Debug;
 
 /**
+ * Serves registered, signed url and default folder files, supports conditional GET (ETag/Last-Modified) and single byte ranges.
+ *
  * @author jcompagner
  *
  */
 public class FileServlet extends HttpServlet
 {
-	private final static ConcurrentMap<String, File> registeredFiles = new ConcurrentHashMap<>();
+	private final static FileRegistry registeredFiles = new FileRegistry();
+
+	private static final String HMAC_ALGORITHM = "HmacSHA256"; //$NON-NLS-1$
+
+	/**
+	 * Key used to sign the urls of {@link #createSignedToken(File, long)}, a random one when no key is configured on the server.
+	 */
+	private static volatile SecretKeySpec signingKey = new SecretKeySpec(randomKey(), HMAC_ALGORITHM);
+
+	/**
+	 * Marker returned by {@link #parseRange(String, long)} when the range can't be satisfied for the file length.
+	 */
+	private static final long[] UNSATISFIABLE_RANGE = new long[0];
 
 	private final FileServerPlugin fileServerPlugin;
 	private final IServerAccess app;
@@ -55,25 +76,93 @@ public class FileServlet extends HttpServlet
 		this.app = app;
 	}
 
-	@SuppressWarnings("nls")
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+	{
+		serveFile(req, resp, true);
+	}
+
+	@Override
+	protected void doHead(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+	{
+		// only the headers, don't read in the file like the default HttpServlet.doHead() would do
+		serveFile(req, resp, false);
+	}
+
+	@SuppressWarnings("nls")
+	private void serveFile(HttpServletRequest req, HttpServletResponse resp, boolean sendContent) throws IOException
 	{
 		String pathInfo = Paths.get(req.getPathInfo()).normalize().toString().replace('\\', '/');
 		if (pathInfo.startsWith("/file/"))
 		{
 			String filePath = pathInfo.substring(5);
 			String uuidString = filePath.substring(1);
-			File file = registeredFiles.get(uuidString);
-			if (file == null)
+			FileRegistry.Registration registration = null;
+			File file;
+			String token = req.getParameter("t");
+			if (token != null)
+			{
+				// signed url, the path after /file/ is only there to give the browser a nice file name
+				file = verifySignedToken(token);
+				if (file == null)
+				{
+					resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
+					return;
+				}
+			}
+			else
 			{
-				file = new File(fileServerPlugin.getDefaultFolder(app.getServerLocalClientID()), filePath);
+				registration = registeredFiles.get(uuidString);
+				file = registration != null ? registration.file
+					: new File(fileServerPlugin.getDefaultFolder(app.getServerLocalClientID()), filePath);
 			}
-			if (file != null && file.exists() && file.isFile())
+			if (file != null && file.isFile() && file.canRead())
 			{
+				long length = file.length();
+				long lastModified = file.lastModified();
+				String etag = createETag(length, lastModified);
+
+				resp.setHeader("Accept-Ranges", "bytes");
+				resp.setHeader("ETag", etag);
+				resp.setDateHeader("Last-Modified", lastModified);
+
+				if (isNotModified(req, etag, lastModified))
+				{
+					resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					return;
+				}
+
+				long start = 0;
+				long count = length;
+				String range = req.getHeader("Range");
+				if (range != null && isRangeApplicable(req, etag, lastModified))
+				{
+					long[] byteRange = parseRange(range, length);
+					if (byteRange == UNSATISFIABLE_RANGE)
+					{
+						resp.setHeader("Content-Range", "bytes */" + length);
+						resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+						return;
+					}
+					if (byteRange != null)
+					{
+						start = byteRange[0];
+						count = byteRange[1] - byteRange[0] + 1;
+						resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+						resp.setHeader("Content-Range", "bytes " + byteRange[0] + "-" + byteRange[1] + "/" + length);
+					}
+				}
+
+				// every response with content counts, also a range, otherwise a range that doesn't start at 0 can download the file without limit
+				if (registration != null && sendContent && count > 0 && !registeredFiles.consume(uuidString, registration))
+				{
+					resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+					return;
+				}
+
 				String contentType = AbstractFile.getContentType(file);
 				if (contentType != null) resp.setContentType(contentType);
-				resp.setContentLengthLong(file.length());
+				resp.setContentLengthLong(count);
 				String contentDisposition = req.getParameter("c");
 				if (contentDisposition != null)
 				{
@@ -82,14 +171,9 @@ public class FileServlet extends HttpServlet
 						contentDisposition + "; filename=\"" + file.getName() + "\"; filename*=UTF-8''" + Rfc5987Util.encode(file.getName(), "UTF8") + "");
 				}
 
-				BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
-				try
-				{
-					Utils.streamCopy(bis, resp.getOutputStream());
-				}
-				finally
+				if (sendContent && count > 0)
 				{
-					bis.close();
+					transfer(file, start, count, resp);
 				}
 			}
 			else
@@ -103,15 +187,222 @@ public class FileServlet extends HttpServlet
 		}
 	}
 
+	/**
+	 * Copies the given part of the file to the response through {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+	 * so no extra user space buffering is done when the container can hand over the bytes directly.
+	 */
+	private static void transfer(File file, long start, long count, HttpServletResponse resp) throws IOException
+	{
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			// don't close this channel, that would close the servlet output stream which is the container's job.
+			WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+			long position = start;
+			long remaining = count;
+			while (remaining > 0)
+			{
+				long transferred = fileChannel.transferTo(position, remaining, out);
+				if (transferred <= 0) break; // file got truncated while sending
+				position += transferred;
+				remaining -= transferred;
+			}
+		}
+	}
+
+	@SuppressWarnings("nls")
+	static String createETag(long length, long lastModified)
+	{
+		return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+	}
+
+	/**
+	 * Checks the If-None-Match and If-Modified-Since headers, If-None-Match takes precedence when both are given.
+	 */
+	@SuppressWarnings("nls")
+	private static boolean isNotModified(HttpServletRequest req, String etag, long lastModified)
+	{
+		String ifNoneMatch = req.getHeader("If-None-Match");
+		if (ifNoneMatch != null)
+		{
+			for (String tag : ifNoneMatch.split(","))
+			{
+				tag = tag.trim();
+				if (tag.equals("*")) return true;
+				// weak comparison
+				if (tag.startsWith("W/")) tag = tag.substring(2);
+				if (tag.equals(etag)) return true;
+			}
+			return false;
+		}
+		long ifModifiedSince = getDateHeader(req, "If-Modified-Since");
+		// http dates have a second precision
+		return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/**
+	 * A Range header is only applied when there is no If-Range header or the If-Range validator still matches the file.
+	 */
+	@SuppressWarnings("nls")
+	private static boolean isRangeApplicable(HttpServletRequest req, String etag, long lastModified)
+	{
+		String ifRange = req.getHeader("If-Range");
+		if (ifRange == null) return true;
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+		{
+			// strong comparison, a weak validator never matches
+			return ifRange.equals(etag);
+		}
+		long date = getDateHeader(req, "If-Range");
+		return date != -1 && lastModified / 1000 == date / 1000;
+	}
+
+	private static long getDateHeader(HttpServletRequest req, String name)
+	{
+		try
+		{
+			return req.getDateHeader(name);
+		}
+		catch (IllegalArgumentException e)
+		{
+			// not a valid date, just ignore the header
+			return -1;
+		}
+	}
+
+	/**
+	 * Parses a single byte range header value.
+	 *
+	 * @return the first and last (inclusive) byte position, null if the header should be ignored (invalid or multiple ranges)
+	 * or {@link #UNSATISFIABLE_RANGE} if it doesn't overlap the file.
+	 */
+	@SuppressWarnings("nls")
+	static long[] parseRange(String range, long length)
+	{
+		String value = range.trim();
+		if (!value.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+		value = value.substring(6).trim();
+		// multiple ranges would need a multipart/byteranges response, sending the full file is also allowed.
+		if (value.indexOf(',') != -1) return null;
+		int dash = value.indexOf('-');
+		if (dash == -1) return null;
+		try
+		{
+			String first = value.substring(0, dash).trim();
+			String last = value.substring(dash + 1).trim();
+			if (first.isEmpty())
+			{
+				// suffix range, the last n bytes
+				if (last.isEmpty()) return null;
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0 || length == 0) return UNSATISFIABLE_RANGE;
+				return new long[] { Math.max(0, length - suffix), length - 1 };
+			}
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+			if (start < 0 || end < start) return null;
+			if (start >= length) return UNSATISFIABLE_RANGE;
+			return new long[] { start, Math.min(end, length - 1) };
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Registers the file without an expiry or download limit, it stays registered until it is unregistered (or dropped when the registry is full).
+	 */
 	static UUID registerFile(File file)
 	{
-		UUID uuid = UUID.randomUUID();
-		registeredFiles.put(uuid.toString(), file);
-		return uuid;
+		return registeredFiles.register(file, -1, 0);
+	}
+
+	/**
+	 * @param timeout the time in milliseconds the file can be downloaded, 0 for the configured default
+	 * @param maxDownloads the number of times the file can be downloaded, 0 or less for no limit
+	 */
+	static UUID registerFile(File file, long timeout, int maxDownloads)
+	{
+		return registeredFiles.register(file, timeout, maxDownloads);
 	}
 
 	static void unregisterFile(UUID uuid)
 	{
-		registeredFiles.remove(uuid.toString());
+		registeredFiles.unregister(uuid);
+	}
+
+	static FileRegistry getRegistry()
+	{
+		return registeredFiles;
+	}
+
+	static long getDefaultTimeout()
+	{
+		return registeredFiles.getDefaultTimeout();
+	}
+
+	static void setSigningKey(byte[] key)
+	{
+		signingKey = new SecretKeySpec(key != null && key.length > 0 ? key : randomKey(), HMAC_ALGORITHM);
+	}
+
+	/**
+	 * Creates a token that is given as the t parameter to the servlet, it holds the file path and expire time and is signed
+	 * so the servlet can validate it without keeping any state. The path is only encoded, not encrypted.
+	 */
+	static String createSignedToken(File file, long expires)
+	{
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		String payload = encoder.encodeToString(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8)) + '.' + Long.toString(expires, 36);
+		return payload + '.' + encoder.encodeToString(sign(payload));
+	}
+
+	/**
+	 * @return the file of the token, null if the token is invalid or expired
+	 */
+	static File verifySignedToken(String token)
+	{
+		int signatureIndex = token.lastIndexOf('.');
+		int expiresIndex = signatureIndex > 0 ? token.lastIndexOf('.', signatureIndex - 1) : -1;
+		if (expiresIndex <= 0) return null;
+		try
+		{
+			String payload = token.substring(0, signatureIndex);
+			byte[] signature = Base64.getUrlDecoder().decode(token.substring(signatureIndex + 1));
+			// constant time compare
+			if (!MessageDigest.isEqual(sign(payload), signature)) return null;
+			long expires = Long.parseLong(token.substring(expiresIndex + 1, signatureIndex), 36);
+			if (System.currentTimeMillis() >= expires) return null;
+			return new File(new String(Base64.getUrlDecoder().decode(token.substring(0, expiresIndex)), StandardCharsets.UTF_8));
+		}
+		catch (IllegalArgumentException e)
+		{
+			// NumberFormatException or a bad base64 value
+			return null;
+		}
+	}
+
+	private static byte[] sign(String payload)
+	{
+		try
+		{
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(signingKey);
+			return mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+		}
+		catch (GeneralSecurityException e)
+		{
+			// HmacSHA256 is always available
+			Debug.error(e);
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] randomKey()
+	{
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		return key;
 	}
 }
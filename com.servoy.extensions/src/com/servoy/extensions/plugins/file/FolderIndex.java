@@ -0,0 +1,306 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.servoy.j2db.util.Debug;
+
+/**
+ * An in memory index of the direct children of a folder (name, size, modification time), kept up to date with a {@link WatchService}.<br/>
+ * Indexes are shared, every folder is indexed once and reference counted through {@link #acquire(Path)} and {@link #release()}.
+ * One daemon thread handles the watch events of all the indexes.
+ *
+ * @author jcompagner
+ */
+final class FolderIndex
+{
+	private static final Map<Path, FolderIndex> indexes = new HashMap<>();
+	private static final Map<WatchKey, FolderIndex> watchKeys = new HashMap<>();
+	private static WatchService watchService;
+
+	private final Path folder;
+	private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+	private WatchKey watchKey;
+	private int references;
+
+	private FolderIndex(Path folder)
+	{
+		this.folder = folder;
+	}
+
+	/**
+	 * Returns the index of the folder, creating and filling it when it is the first one for that folder.
+	 * Every acquire must be paired with a {@link #release()}.
+	 */
+	static FolderIndex acquire(Path folder) throws IOException
+	{
+		Path key = folder.toAbsolutePath().normalize();
+		synchronized (indexes)
+		{
+			FolderIndex index = indexes.get(key);
+			if (index == null)
+			{
+				if (!Files.isDirectory(key)) throw new IOException("Can't index " + key + ", it is not a folder"); //$NON-NLS-1$ //$NON-NLS-2$
+				if (watchService == null)
+				{
+					watchService = FileSystems.getDefault().newWatchService();
+					Thread thread = new Thread(new Watcher(watchService), "File plugin folder index watcher"); //$NON-NLS-1$
+					thread.setDaemon(true);
+					thread.start();
+				}
+				index = new FolderIndex(key);
+				// first register, so no changes are missed while the folder is scanned
+				index.watchKey = key.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				watchKeys.put(index.watchKey, index);
+				index.scan();
+				indexes.put(key, index);
+			}
+			index.references++;
+			return index;
+		}
+	}
+
+	void release()
+	{
+		synchronized (indexes)
+		{
+			if (--references > 0) return;
+			watchKey.cancel();
+			watchKeys.remove(watchKey);
+			indexes.remove(folder);
+			entries.clear();
+			if (indexes.isEmpty())
+			{
+				try
+				{
+					// stops the watcher thread, a new one is made for the next index
+					watchService.close();
+				}
+				catch (IOException e)
+				{
+					Debug.error(e);
+				}
+				watchService = null;
+			}
+		}
+	}
+
+	Path getFolder()
+	{
+		return folder;
+	}
+
+	int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Queries the index, entries are sorted by name.
+	 *
+	 * @param extensions only names ending with one of these (case insensitive), null for all
+	 * @param prefix only names starting with this, null for all
+	 * @param modifiedSince only entries modified after this time, 0 or less for all
+	 * @param fileOption {@link AbstractFile#ALL}, {@link AbstractFile#FILES} or {@link AbstractFile#FOLDERS}
+	 * @param offset the number of matching entries to skip
+	 * @param limit the maximum number of entries to return, 0 or less for all
+	 */
+	List<String> query(String[] extensions, String prefix, long modifiedSince, int fileOption, int offset, int limit)
+	{
+		NavigableMap<String, Entry> view = entries;
+		if (prefix != null && prefix.length() > 0)
+		{
+			view = entries.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+		}
+		String[] lowerCaseExtensions = null;
+		if (extensions != null)
+		{
+			lowerCaseExtensions = new String[extensions.length];
+			for (int i = 0; i < extensions.length; i++)
+			{
+				lowerCaseExtensions[i] = extensions[i].toLowerCase(Locale.ENGLISH);
+			}
+		}
+		List<String> result = new ArrayList<>(limit > 0 ? Math.min(limit, 1024) : 16);
+		int skip = Math.max(0, offset);
+		for (Map.Entry<String, Entry> mapEntry : view.entrySet())
+		{
+			Entry entry = mapEntry.getValue();
+			if (fileOption == AbstractFile.FILES && entry.directory) continue;
+			if (fileOption == AbstractFile.FOLDERS && !entry.directory) continue;
+			if (modifiedSince > 0 && entry.lastModified <= modifiedSince) continue;
+			if (lowerCaseExtensions != null && !endsWith(mapEntry.getKey().toLowerCase(Locale.ENGLISH), lowerCaseExtensions)) continue;
+			if (skip > 0)
+			{
+				skip--;
+				continue;
+			}
+			result.add(mapEntry.getKey());
+			if (limit > 0 && result.size() == limit) break;
+		}
+		return result;
+	}
+
+	Entry get(String name)
+	{
+		return entries.get(name);
+	}
+
+	private static boolean endsWith(String name, String[] extensions)
+	{
+		for (String extension : extensions)
+		{
+			if (name.endsWith(extension)) return true;
+		}
+		return false;
+	}
+
+	private void scan() throws IOException
+	{
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder))
+		{
+			for (Path child : stream)
+			{
+				update(child);
+			}
+		}
+	}
+
+	private void update(Path child)
+	{
+		String name = child.getFileName().toString();
+		try
+		{
+			BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			entries.put(name, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.isDirectory()));
+		}
+		catch (NoSuchFileException e)
+		{
+			entries.remove(name);
+		}
+		catch (IOException e)
+		{
+			Debug.error(e);
+		}
+	}
+
+	private void handleEvents(List<WatchEvent< ? >> events)
+	{
+		for (WatchEvent< ? > event : events)
+		{
+			if (event.kind() == OVERFLOW)
+			{
+				// events got lost, start over
+				entries.clear();
+				try
+				{
+					scan();
+				}
+				catch (IOException e)
+				{
+					Debug.error(e);
+				}
+				return;
+			}
+			Path child = folder.resolve((Path)event.context());
+			if (event.kind() == ENTRY_DELETE)
+			{
+				entries.remove(child.getFileName().toString());
+			}
+			else
+			{
+				update(child);
+			}
+		}
+	}
+
+	static final class Entry
+	{
+		final long size;
+		final long lastModified;
+		final boolean directory;
+
+		Entry(long size, long lastModified, boolean directory)
+		{
+			this.size = size;
+			this.lastModified = lastModified;
+			this.directory = directory;
+		}
+	}
+
+	private static final class Watcher implements Runnable
+	{
+		private final WatchService service;
+
+		Watcher(WatchService service)
+		{
+			this.service = service;
+		}
+
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					WatchKey key = service.take();
+					FolderIndex index;
+					synchronized (indexes)
+					{
+						index = watchKeys.get(key);
+					}
+					List<WatchEvent< ? >> events = key.pollEvents();
+					if (index != null) index.handleEvents(events);
+					if (!key.reset() && index != null)
+					{
+						// the folder itself is gone
+						index.entries.clear();
+					}
+				}
+			}
+			catch (ClosedWatchServiceException | InterruptedException e)
+			{
+				// the last index is released
+			}
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.servoy.j2db.util.Debug;
+
+/**
+ * Recursive search, copy and move of folders.<br/>
+ * Files of a folder copy are copied in parallel on a bounded {@link ForkJoinPool},
+ * progress is reported to and cancellation is checked on a {@link JSProgressMonitor}.
+ *
+ * @author jcompagner
+ */
+final class FolderOperations
+{
+	private static final int PARALLELISM = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private static final ForkJoinPool pool = new ForkJoinPool(PARALLELISM, forkJoinPool -> {
+		ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+		thread.setName("File plugin folder copy " + thread.getPoolIndex()); //$NON-NLS-1$
+		thread.setDaemon(true);
+		return thread;
+	}, null, false);
+
+	/**
+	 * Lists of files smaller than this are copied by one task.
+	 */
+	private static final int COPY_BATCH_SIZE = 16;
+
+	private FolderOperations()
+	{
+	}
+
+	/**
+	 * Creates the matcher for a search pattern, a pattern with a glob: or regex: prefix is given as is to
+	 * {@link java.nio.file.FileSystem#getPathMatcher(String)}, otherwise it is a glob.
+	 */
+	static PathMatcher createMatcher(String pattern)
+	{
+		if (pattern == null || pattern.length() == 0) return null;
+		if (pattern.startsWith("glob:") || pattern.startsWith("regex:")) return FileSystems.getDefault().getPathMatcher(pattern); //$NON-NLS-1$ //$NON-NLS-2$
+		return FileSystems.getDefault().getPathMatcher("glob:" + pattern); //$NON-NLS-1$
+	}
+
+	/**
+	 * Walks the folder tree and returns the files that match.
+	 * A pattern that contains a / is matched against the path relative to the folder, otherwise against the file name.
+	 *
+	 * @param minSize the minimum size of the file, -1 for no minimum
+	 * @param maxSize the maximum size of the file, -1 for no maximum
+	 * @param modifiedAfter only files modified after this time, 0 for all
+	 * @param modifiedBefore only files modified before this time, 0 for all
+	 */
+	static List<Path> search(final Path folder, String pattern, final long minSize, final long maxSize, final long modifiedAfter,
+		final long modifiedBefore, final JSProgressMonitor monitor) throws IOException
+	{
+		final PathMatcher matcher = createMatcher(pattern);
+		final boolean matchRelativePath = pattern != null && pattern.indexOf('/') != -1;
+		final List<Path> result = new ArrayList<>();
+		Files.walkFileTree(folder, new SimpleFileVisitor<Path>()
+		{
+			private int visited = 0;
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+			{
+				if (monitor.js_isCanceled()) return FileVisitResult.TERMINATE;
+				monitor.setCurrentFileName(file.toString());
+				monitor.setCurrentFileIndex(++visited);
+				if (!attributes.isRegularFile()) return FileVisitResult.CONTINUE;
+				long size = attributes.size();
+				if (minSize >= 0 && size < minSize) return FileVisitResult.CONTINUE;
+				if (maxSize >= 0 && size > maxSize) return FileVisitResult.CONTINUE;
+				long lastModified = attributes.lastModifiedTime().toMillis();
+				if (modifiedAfter > 0 && lastModified <= modifiedAfter) return FileVisitResult.CONTINUE;
+				if (modifiedBefore > 0 && lastModified >= modifiedBefore) return FileVisitResult.CONTINUE;
+				if (matcher != null && !matcher.matches(matchRelativePath ? folder.relativize(file) : file.getFileName()))
+				{
+					return FileVisitResult.CONTINUE;
+				}
+				result.add(file);
+				monitor.setTotalFiles(result.size());
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc)
+			{
+				// skip the files and folders that can't be read
+				Debug.trace("Can't read " + file + " while searching", exc); //$NON-NLS-1$ //$NON-NLS-2$
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Returns true if the target is the source or a folder inside it, both paths are compared absolute and normalized.
+	 */
+	static boolean isSameOrInside(Path source, Path target)
+	{
+		return target.toAbsolutePath().normalize().startsWith(source.toAbsolutePath().normalize());
+	}
+
+	/**
+	 * Copies the folder tree, the folders are created first, then the files are copied in parallel.
+	 *
+	 * @return false if it was canceled
+	 */
+	static boolean copy(Path source, Path target, JSProgressMonitor monitor) throws IOException
+	{
+		if (isSameOrInside(source, target)) throw new IOException("Can't copy " + source + " into itself: " + target); //$NON-NLS-1$ //$NON-NLS-2$
+		final List<Path> files = new ArrayList<>();
+		final long[] totalBytes = { 0 };
+		final Path sourceRoot = source;
+		final Path targetRoot = target;
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException
+			{
+				Files.createDirectories(targetRoot.resolve(sourceRoot.relativize(dir)));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+			{
+				files.add(file);
+				totalBytes[0] += attributes.size();
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		monitor.setTotalBytes(totalBytes[0]);
+		monitor.setTotalFiles(files.size());
+		try
+		{
+			pool.invoke(new CopyTask(source, target, files, 0, files.size(), new AtomicInteger(), monitor));
+		}
+		catch (FolderOperationException e)
+		{
+			throw e.getCause();
+		}
+		return !monitor.js_isCanceled();
+	}
+
+	/**
+	 * Moves the folder tree, this is a rename when source and target are on the same file system, otherwise a copy and delete.
+	 *
+	 * @return false if it was canceled
+	 */
+	static boolean move(Path source, Path target, JSProgressMonitor monitor) throws IOException
+	{
+		if (isSameOrInside(source, target)) throw new IOException("Can't move " + source + " into itself: " + target); //$NON-NLS-1$ //$NON-NLS-2$
+		// an existing target is merged, a rename would fail or replace it
+		if (!Files.exists(target))
+		{
+			try
+			{
+				Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+				return true;
+			}
+			catch (FileSystemException e)
+			{
+				// other file system, or the target was created in the meantime, the exception type for that differs per platform
+				Debug.trace("Can't rename " + source + " to " + target + ", copying it", e); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+		}
+		if (!copy(source, target, monitor)) return false;
+		delete(source);
+		return true;
+	}
+
+	static void delete(Path folder) throws IOException
+	{
+		Files.walkFileTree(folder, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+			{
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+			{
+				if (exc != null) throw exc;
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static final class CopyTask extends RecursiveAction
+	{
+		private final Path source;
+		private final Path target;
+		private final List<Path> files;
+		private final int from;
+		private final int to;
+		private final AtomicInteger copied;
+		private final JSProgressMonitor monitor;
+
+		CopyTask(Path source, Path target, List<Path> files, int from, int to, AtomicInteger copied, JSProgressMonitor monitor)
+		{
+			this.source = source;
+			this.target = target;
+			this.files = files;
+			this.from = from;
+			this.to = to;
+			this.copied = copied;
+			this.monitor = monitor;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from > COPY_BATCH_SIZE)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new CopyTask(source, target, files, from, middle, copied, monitor),
+					new CopyTask(source, target, files, middle, to, copied, monitor));
+				return;
+			}
+			for (int i = from; i < to && !monitor.js_isCanceled(); i++)
+			{
+				Path file = files.get(i);
+				monitor.setCurrentFileName(file.toString());
+				try
+				{
+					long size = Files.size(file);
+					monitor.setCurrentBytes(size);
+					Files.copy(file, target.resolve(source.relativize(file)), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+					monitor.addTransferred(size);
+				}
+				catch (IOException e)
+				{
+					throw new FolderOperationException(e);
+				}
+				monitor.setCurrentFileIndex(copied.incrementAndGet());
+			}
+		}
+	}
+
+	/**
+	 * Wraps the IOException of a copy task, so it is rethrown by the pool.
+	 */
+	static final class FolderOperationException extends RuntimeException
+	{
+		FolderOperationException(IOException cause)
+		{
+			super(cause);
+		}
+
+		@Override
+		public synchronized IOException getCause()
+		{
+			return (IOException)super.getCause();
+		}
+	}
+}
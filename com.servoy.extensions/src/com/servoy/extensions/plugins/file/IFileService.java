@@ -38,6 +38,21 @@ public interface IFileService extends Remote
 	 */
 	public static final String DEFAULT_FOLDER_PROPERTY = "servoy.FileServerService.defaultFolder";
 
+	/**
+	 * The server property key for the default number of minutes a stream url that is created with an expiry stays valid
+	 */
+	public static final String URL_TIMEOUT_PROPERTY = "servoy.FileServerService.urlTimeout";
+
+	/**
+	 * The server property key for the maximum number of streamed file urls that are kept at once
+	 */
+	public static final String MAX_REGISTERED_FILES_PROPERTY = "servoy.FileServerService.maxRegisteredFiles";
+
+	/**
+	 * The server property key for the secret used to sign file urls
+	 */
+	public static final String URL_SIGNING_KEY_PROPERTY = "servoy.FileServerService.urlSigningKey";
+
 
 	/**
 	 * Returns the defaultFolder location as a String (canonical representation of the folder)
@@ -0,0 +1,380 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.servoy.j2db.documentation.ServoyDocumented;
+import com.servoy.j2db.scripting.IJavaScriptType;
+import com.servoy.j2db.scripting.IScriptable;
+import com.servoy.j2db.util.Debug;
+
+/**
+ * Random access reads of a binary file, returned by openBinaryReader().<br/>
+ * The file is memory mapped read only in segments of 1GB that are mapped when they are first used,
+ * so reading doesn't copy the file into the heap. The segments are unmapped when the reader is closed, so the file isn't locked after that
+ * (on Windows a mapped file can't be deleted or renamed); reads and close are synchronized, a segment is never unmapped while it is read.
+ *
+ * @author jcompagner
+ */
+@ServoyDocumented
+public class JSBinaryReader implements IScriptable, IJavaScriptType, Closeable
+{
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+	private static final int INDEX_OF_CHUNK_SIZE = 64 * 1024;
+
+	private final FileProvider provider;
+	private final File file;
+	private final FileChannel channel;
+	private final long size;
+	private final MappedByteBuffer[] segments;
+	private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+	private volatile boolean closed;
+
+	/**
+	 * For developer scripting introspection only
+	 */
+	public JSBinaryReader()
+	{
+		this.provider = null;
+		this.file = null;
+		this.channel = null;
+		this.size = 0;
+		this.segments = null;
+	}
+
+	JSBinaryReader(FileProvider provider, File file) throws IOException
+	{
+		this.provider = provider;
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.size = channel.size();
+		this.segments = new MappedByteBuffer[(int)((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+	}
+
+	/**
+	 * Returns the size of the file in bytes, this is the size when the reader was opened.
+	 *
+	 * @sample
+	 * var reader = plugins.file.openBinaryReader('/data/records.bin');
+	 * try {
+	 * 	reader.setLittleEndian(true);
+	 * 	var count = reader.readInt(0);
+	 * 	for (var i = 0; i < count; i++) {
+	 * 		var offset = 4 + i * 16;
+	 * 		var id = reader.readLong(offset);
+	 * 		var amount = reader.readDouble(offset + 8);
+	 * 	}
+	 * 	application.output('file of ' + reader.getSize() + ' bytes');
+	 * } finally {
+	 * 	reader.close();
+	 * }
+	 *
+	 * @return the size of the file
+	 */
+	public long js_getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Reads the bytes at the given offset. Less bytes are returned when the end of the file is reached.
+	 *
+	 * @sample
+	 * var reader = plugins.file.openBinaryReader('/data/archive.bin');
+	 * // read the 512 byte header that starts at 1MB
+	 * var header = reader.read(1024 * 1024, 512);
+	 * reader.close();
+	 *
+	 * @param offset the offset in the file
+	 * @param length the number of bytes to read
+	 *
+	 * @return the bytes that are read
+	 */
+	public synchronized byte[] js_read(long offset, int length) throws IOException
+	{
+		checkOffset(offset, 0);
+		int count = (int)Math.min(Math.max(length, 0), size - offset);
+		byte[] bytes = new byte[count];
+		copy(offset, bytes, count);
+		return bytes;
+	}
+
+	/**
+	 * Reads the byte at the given offset, as a value between 0 and 255.
+	 *
+	 * @sample
+	 * var version = reader.readByte(4);
+	 *
+	 * @param offset the offset in the file
+	 *
+	 * @return the value of the byte
+	 */
+	public synchronized int js_readByte(long offset) throws IOException
+	{
+		checkOffset(offset, 1);
+		return segment(offset).get((int)(offset & SEGMENT_MASK)) & 0xFF;
+	}
+
+	/**
+	 * Reads a 4 byte integer at the given offset, in the byte order of this reader.
+	 *
+	 * @sampleas js_getSize()
+	 *
+	 * @param offset the offset in the file
+	 *
+	 * @return the integer value
+	 */
+	public synchronized int js_readInt(long offset) throws IOException
+	{
+		return typed(offset, Integer.BYTES).getInt();
+	}
+
+	/**
+	 * Reads an 8 byte integer at the given offset, in the byte order of this reader.
+	 *
+	 * @sampleas js_getSize()
+	 *
+	 * @param offset the offset in the file
+	 *
+	 * @return the long value
+	 */
+	public synchronized long js_readLong(long offset) throws IOException
+	{
+		return typed(offset, Long.BYTES).getLong();
+	}
+
+	/**
+	 * Reads an 8 byte floating point number at the given offset, in the byte order of this reader.
+	 *
+	 * @sampleas js_getSize()
+	 *
+	 * @param offset the offset in the file
+	 *
+	 * @return the double value
+	 */
+	public synchronized double js_readDouble(long offset) throws IOException
+	{
+		return typed(offset, Double.BYTES).getDouble();
+	}
+
+	/**
+	 * Returns true if readInt(), readLong() and readDouble() use the little endian byte order, false (the default) for big endian.
+	 *
+	 * @sample
+	 * if (!reader.isLittleEndian()) reader.setLittleEndian(true);
+	 *
+	 * @return true if the byte order is little endian
+	 */
+	public boolean js_isLittleEndian()
+	{
+		return byteOrder == ByteOrder.LITTLE_ENDIAN;
+	}
+
+	/**
+	 * Sets the byte order of readInt(), readLong() and readDouble(), true for little endian, false for big endian (the default).
+	 *
+	 * @sampleas js_getSize()
+	 *
+	 * @param littleEndian true for little endian
+	 */
+	public void js_setLittleEndian(boolean littleEndian)
+	{
+		byteOrder = littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	}
+
+	/**
+	 * Searches for the bytes starting at the given offset, returns the offset where they are found or -1 if they are not found.
+	 *
+	 * @sample
+	 * var reader = plugins.file.openBinaryReader('/data/dump.bin');
+	 * var marker = reader.read(0, 4);
+	 * var offset = 4;
+	 * while ((offset = reader.indexOf(marker, offset)) != -1) {
+	 * 	application.output('record at ' + offset);
+	 * 	offset += marker.length;
+	 * }
+	 * reader.close();
+	 *
+	 * @param pattern the bytes to search for
+	 * @param fromOffset the offset in the file to start searching
+	 *
+	 * @return the offset of the bytes, -1 if not found
+	 */
+	public synchronized long js_indexOf(byte[] pattern, long fromOffset) throws IOException
+	{
+		checkClosed();
+		if (pattern == null || pattern.length == 0) return -1;
+		byte first = pattern[0];
+		long last = size - pattern.length;
+		// the file is copied in chunks with a bulk get and searched in the chunk, the chunks overlap so a match can cross them
+		byte[] chunk = new byte[Math.max(INDEX_OF_CHUNK_SIZE, pattern.length * 2)];
+		long position = Math.max(0, fromOffset);
+		while (position <= last)
+		{
+			int count = (int)Math.min(chunk.length, size - position);
+			copy(position, chunk, count);
+			int end = count - pattern.length;
+			for (int start = 0; start <= end; start++)
+			{
+				if (chunk[start] != first) continue;
+				int i = 1;
+				while (i < pattern.length && chunk[start + i] == pattern[i])
+				{
+					i++;
+				}
+				if (i == pattern.length) return position + start;
+			}
+			position += end + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Closes the reader, it can't be used anymore after this.
+	 * Readers that are not closed are closed when the solution is closed.
+	 *
+	 * @sampleas js_getSize()
+	 */
+	public void js_close()
+	{
+		close();
+		if (provider != null) provider.handleClosed(this);
+	}
+
+	public synchronized void close()
+	{
+		if (closed) return;
+		closed = true;
+		for (int i = 0; i < segments.length; i++)
+		{
+			if (segments[i] != null) unmap(segments[i]);
+			segments[i] = null;
+		}
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			// ignore
+		}
+	}
+
+	/**
+	 * Copies count bytes at the offset into the start of bytes, across segments when needed.
+	 */
+	private void copy(long offset, byte[] bytes, int count) throws IOException
+	{
+		int done = 0;
+		while (done < count)
+		{
+			long position = offset + done;
+			ByteBuffer segment = segment(position).duplicate();
+			segment.position((int)(position & SEGMENT_MASK));
+			int part = Math.min(count - done, segment.remaining());
+			segment.get(bytes, done, part);
+			done += part;
+		}
+	}
+
+	/**
+	 * Returns a buffer with the given number of bytes at the offset, in the byte order of this reader.
+	 */
+	private ByteBuffer typed(long offset, int length) throws IOException
+	{
+		checkOffset(offset, length);
+		int index = (int)(offset & SEGMENT_MASK);
+		ByteBuffer segment = segment(offset);
+		if (index + length <= segment.limit())
+		{
+			return segment.duplicate().position(index).order(byteOrder);
+		}
+		// the value crosses the end of a segment
+		return ByteBuffer.wrap(js_read(offset, length)).order(byteOrder);
+	}
+
+	/**
+	 * Returns the segment of the position, mapping it if it isn't yet. Only called while holding the lock of this reader.
+	 */
+	private MappedByteBuffer segment(long position) throws IOException
+	{
+		checkClosed();
+		int index = (int)(position >>> SEGMENT_SHIFT);
+		MappedByteBuffer segment = segments[index];
+		if (segment == null)
+		{
+			long start = (long)index << SEGMENT_SHIFT;
+			segment = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+			segments[index] = segment;
+		}
+		return segment;
+	}
+
+	/**
+	 * Releases the mapped memory now instead of when the buffer is garbage collected, the buffer must not be used anymore after this.
+	 */
+	@SuppressWarnings("nls")
+	private static void unmap(MappedByteBuffer buffer)
+	{
+		try
+		{
+			Class< ? > unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		}
+		catch (Exception e)
+		{
+			// the mapped memory is released when the buffer is garbage collected
+			Debug.trace("Can't unmap a segment of a binary reader", e);
+		}
+	}
+
+	private void checkOffset(long offset, int length) throws IOException
+	{
+		checkClosed();
+		if (offset < 0 || offset + length > size)
+		{
+			throw new IllegalArgumentException("Offset " + offset + " is outside of " + file + " (size " + size + ")"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		}
+	}
+
+	private void checkClosed() throws IOException
+	{
+		if (closed) throw new IOException("Reader of " + file + " is closed"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Override
+	public String toString()
+	{
+		return "JSBinaryReader[" + file + "," + size + (closed ? ",closed]" : "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.servoy.j2db.documentation.ServoyDocumented;
+import com.servoy.j2db.scripting.IJavaScriptType;
+import com.servoy.j2db.scripting.IScriptable;
+import com.servoy.j2db.util.Debug;
+
+/**
+ * Writes text to a file that is kept open, returned by openWriter().<br/>
+ * The text is encoded into a buffer that is written to the file when it is full, when flush() is called,
+ * periodically when auto flush is enabled and when the writer is closed.
+ *
+ * @author jcompagner
+ */
+@ServoyDocumented
+public class JSFileWriter implements IScriptable, IJavaScriptType, Closeable
+{
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator"); //$NON-NLS-1$
+
+	private final FileProvider provider;
+	private final Timer timer;
+	private final File file;
+	private final FileChannel channel;
+	private final CharsetEncoder encoder;
+	// encoded bytes that are not written to the file yet, in write mode
+	private final ByteBuffer buffer;
+	// the high surrogate at the end of the last write, it is encoded together with the next write
+	private char pendingSurrogate;
+	private TimerTask autoFlushTask;
+	private int autoFlushInterval;
+	private boolean syncOnFlush;
+	private long bytesWritten;
+	private boolean unsynced;
+	private boolean closed;
+
+	/**
+	 * For developer scripting introspection only
+	 */
+	public JSFileWriter()
+	{
+		this.provider = null;
+		this.timer = null;
+		this.file = null;
+		this.channel = null;
+		this.encoder = null;
+		this.buffer = null;
+	}
+
+	JSFileWriter(FileProvider provider, Timer timer, File file, Charset charset, boolean append) throws IOException
+	{
+		this.provider = provider;
+		this.timer = timer;
+		this.file = file;
+		this.channel = append
+			? FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+			: FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		// appending to existing UTF-16 text must not write a byte order mark again, the encoder writes big endian after its mark
+		Charset encodeCharset = append && StandardCharsets.UTF_16.equals(charset) && channel.size() > 0 ? StandardCharsets.UTF_16BE : charset;
+		// the encoder is only reset here, it writes the byte order mark (for UTF-16) at its start
+		this.encoder = encodeCharset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.buffer = ByteBuffer.allocate(FileProvider.CHUNK_BUFFER_SIZE);
+	}
+
+	/**
+	 * Writes the text, the text is buffered so it is only in the file after a flush() or close().
+	 *
+	 * @sample
+	 * var writer = plugins.file.openWriter('/logs/audit.log', 'UTF-8', true);
+	 * // write what is buffered every 5 seconds
+	 * writer.setAutoFlush(5000);
+	 * writer.write('user: ' + security.getUserName() + ' ');
+	 * writer.writeLine('logged in at ' + new Date());
+	 * // ... keep using the writer for the rest of the session
+	 * writer.close();
+	 *
+	 * @param text the text to write
+	 */
+	public synchronized void js_write(String text) throws IOException
+	{
+		checkClosed();
+		if (text == null || text.length() == 0) return;
+		CharBuffer in = CharBuffer.wrap(pendingSurrogate != 0 ? pendingSurrogate + text : text);
+		pendingSurrogate = 0;
+		encode(in, false);
+		// only a high surrogate without its low surrogate is left
+		if (in.hasRemaining()) pendingSurrogate = in.get();
+	}
+
+	private void encode(CharBuffer in, boolean endOfInput) throws IOException
+	{
+		while (true)
+		{
+			CoderResult result = encoder.encode(in, buffer, endOfInput);
+			if (result.isUnderflow()) break;
+			if (result.isOverflow()) drain();
+			else result.throwException();
+		}
+	}
+
+	/**
+	 * Writes the text followed by the line separator of the system.
+	 *
+	 * @sampleas js_write(String)
+	 *
+	 * @param text the text of the line
+	 */
+	public synchronized void js_writeLine(String text) throws IOException
+	{
+		js_write(text != null ? text + LINE_SEPARATOR : LINE_SEPARATOR);
+	}
+
+	/**
+	 * Writes all the buffered text to the file.
+	 * When sync on flush is enabled, this also waits until the file is written to the storage device.
+	 *
+	 * @sample
+	 * writer.writeLine('payment ' + paymentId + ' processed');
+	 * writer.flush();
+	 */
+	public synchronized void js_flush() throws IOException
+	{
+		checkClosed();
+		flush();
+	}
+
+	/**
+	 * Enables the periodic flush of the buffered text, 0 or less disables it (the default).
+	 *
+	 * @sampleas js_write(String)
+	 *
+	 * @param interval the time between flushes in milliseconds
+	 */
+	public synchronized void js_setAutoFlush(int interval)
+	{
+		if (autoFlushTask != null)
+		{
+			autoFlushTask.cancel();
+			autoFlushTask = null;
+		}
+		autoFlushInterval = Math.max(0, interval);
+		if (autoFlushInterval > 0 && !closed && timer != null)
+		{
+			autoFlushTask = new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					autoFlush();
+				}
+			};
+			timer.schedule(autoFlushTask, autoFlushInterval, autoFlushInterval);
+		}
+	}
+
+	/**
+	 * Returns the interval of the periodic flush in milliseconds, 0 if it is disabled.
+	 *
+	 * @sample
+	 * application.output('auto flush every ' + writer.getAutoFlush() + 'ms');
+	 *
+	 * @return the interval
+	 */
+	public synchronized int js_getAutoFlush()
+	{
+		return autoFlushInterval;
+	}
+
+	/**
+	 * When true, every flush (also the automatic ones and the one of close()) waits until the file is written to the storage device (fsync).
+	 * This makes sure that flushed text is not lost when the machine crashes, but makes flushing a lot slower.
+	 *
+	 * @sample
+	 * var writer = plugins.file.openWriter('/logs/transactions.log', 'UTF-8', true);
+	 * writer.setSyncOnFlush(true);
+	 *
+	 * @param sync true to sync on every flush
+	 */
+	public synchronized void js_setSyncOnFlush(boolean sync)
+	{
+		syncOnFlush = sync;
+	}
+
+	/**
+	 * Returns true if every flush waits until the file is written to the storage device.
+	 *
+	 * @sample
+	 * var synced = writer.isSyncOnFlush();
+	 *
+	 * @return true if it syncs on flush
+	 */
+	public synchronized boolean js_isSyncOnFlush()
+	{
+		return syncOnFlush;
+	}
+
+	/**
+	 * Returns the number of bytes that are written to the file by this writer, including the buffered bytes.
+	 *
+	 * @sample
+	 * if (writer.getBytesWritten() > 10 * 1024 * 1024) {
+	 * 	// start a new log file
+	 * }
+	 *
+	 * @return the number of bytes
+	 */
+	public synchronized long js_getBytesWritten()
+	{
+		return bytesWritten + (buffer != null ? buffer.position() : 0);
+	}
+
+	/**
+	 * Flushes the buffered text and closes the writer, it can't be used anymore after this.
+	 * Writers that are not closed are closed when the solution is closed.
+	 *
+	 * @sampleas js_write(String)
+	 */
+	public void js_close() throws IOException
+	{
+		try
+		{
+			closeChannel();
+		}
+		finally
+		{
+			if (provider != null) provider.handleClosed(this);
+		}
+	}
+
+	public void close()
+	{
+		try
+		{
+			closeChannel();
+		}
+		catch (IOException e)
+		{
+			Debug.error("Error closing the writer of " + file, e); //$NON-NLS-1$
+		}
+	}
+
+	private synchronized void closeChannel() throws IOException
+	{
+		if (closed) return;
+		closed = true;
+		if (autoFlushTask != null)
+		{
+			autoFlushTask.cancel();
+			autoFlushTask = null;
+		}
+		try
+		{
+			encode(pendingSurrogate != 0 ? CharBuffer.wrap(new char[] { pendingSurrogate }) : CharBuffer.allocate(0), true);
+			while (encoder.flush(buffer).isOverflow())
+			{
+				drain();
+			}
+			flush();
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	private synchronized void autoFlush()
+	{
+		if (closed) return;
+		try
+		{
+			flush();
+		}
+		catch (IOException e)
+		{
+			Debug.error("Error flushing the writer of " + file, e); //$NON-NLS-1$
+		}
+	}
+
+	private void flush() throws IOException
+	{
+		if (buffer.position() > 0) drain();
+		if (syncOnFlush && unsynced)
+		{
+			channel.force(false);
+			unsynced = false;
+		}
+	}
+
+	private void drain() throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+		{
+			bytesWritten += channel.write(buffer);
+		}
+		buffer.clear();
+		unsynced = true;
+	}
+
+	private void checkClosed() throws IOException
+	{
+		if (closed) throw new IOException("Writer of " + file + " is closed"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Override
+	public String toString()
+	{
+		return "JSFileWriter[" + file + (closed ? ",closed]" : "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+
+import com.servoy.j2db.documentation.ServoyDocumented;
+import com.servoy.j2db.plugins.IClientPluginAccess;
+import com.servoy.j2db.scripting.IJavaScriptType;
+import com.servoy.j2db.scripting.IScriptable;
+
+/**
+ * A live index of the contents of a folder, returned by getFolderIndex() and getRemoteFolderIndex().<br/>
+ * Queries are answered from memory, the index is kept up to date by watching the folder.
+ * Only the direct children of the folder are indexed.
+ *
+ * @author jcompagner
+ */
+@ServoyDocumented
+public class JSFolderIndex implements IScriptable, IJavaScriptType, Closeable
+{
+	private static final JSFile[] EMPTY = new JSFile[0];
+
+	private final FileProvider provider;
+	private final IClientPluginAccess application;
+	private final FolderIndex index;
+	private final File mainFolder;
+	private volatile boolean closed;
+
+	/**
+	 * For developer scripting introspection only
+	 */
+	public JSFolderIndex()
+	{
+		this(null, null, null, null);
+	}
+
+	/**
+	 * @param mainFolder the default folder of the server when this is an index of a remote folder, null for a local folder
+	 */
+	JSFolderIndex(FileProvider provider, IClientPluginAccess application, FolderIndex index, File mainFolder)
+	{
+		this.provider = provider;
+		this.application = application;
+		this.index = index;
+		this.mainFolder = mainFolder;
+	}
+
+	/**
+	 * Returns the number of files and folders in the indexed folder.
+	 *
+	 * @sample
+	 * var index = plugins.file.getRemoteFolderIndex('/uploads');
+	 * application.output('files: ' + index.getSize());
+	 * // the first page of 100 pdf files
+	 * var files = index.query('.pdf', 0, 100);
+	 * // the pdf files of the last hour whose name starts with 'invoice', skipping the first 100
+	 * files = index.query('.pdf', 'invoice', new Date(new Date().getTime() - 3600000), 1, 100, 100);
+	 * index.close();
+	 *
+	 * @return the number of entries
+	 */
+	public int js_getSize()
+	{
+		checkClosed();
+		return index.size();
+	}
+
+	/**
+	 * Returns a page of the files and folders of the index, sorted by name.
+	 *
+	 * @sampleas js_getSize()
+	 *
+	 * @param fileFilter Filter or array of filters (like '.txt') for the names, null for all
+	 * @param offset the number of matching entries to skip
+	 * @param limit the maximum number of entries to return, 0 for all
+	 *
+	 * @return the files
+	 */
+	public JSFile[] js_query(Object fileFilter, Number offset, Number limit)
+	{
+		return js_query(fileFilter, null, null, AbstractFile.ALL_INTEGER, offset, limit);
+	}
+
+	/**
+	 * Returns a page of the files and folders of the index, sorted by name.
+	 *
+	 * @sampleas js_getSize()
+	 *
+	 * @param fileFilter Filter or array of filters (like '.txt') for the names, null for all
+	 * @param prefix only the names starting with this (case sensitive), null for all
+	 * @param modifiedSince only the entries modified after this date, null for all
+	 * @param fileOption 0=all, 1=files, 2=dirs
+	 * @param offset the number of matching entries to skip
+	 * @param limit the maximum number of entries to return, 0 for all
+	 *
+	 * @return the files
+	 */
+	public JSFile[] js_query(Object fileFilter, String prefix, Date modifiedSince, Number fileOption, Number offset, Number limit)
+	{
+		List<String> names = query(fileFilter, prefix, modifiedSince, fileOption, offset, limit);
+		if (names.isEmpty()) return EMPTY;
+		JSFile[] files = new JSFile[names.size()];
+		for (int i = 0; i < files.length; i++)
+		{
+			File file = new File(index.getFolder().toFile(), names.get(i));
+			files[i] = mainFolder != null ? new JSFile(new RemoteFile(file, mainFolder, application), application) : new JSFile(file, application);
+		}
+		return files;
+	}
+
+	/**
+	 * Returns a page of the names of the files and folders of the index, sorted by name.
+	 * This doesn't create a JSFile for every entry, so it is cheaper then query() if only the names are needed.
+	 *
+	 * @sample
+	 * var index = plugins.file.getFolderIndex('/data/uploads');
+	 * var names = index.queryNames('.txt', null, null, 1, 0, 1000);
+	 * index.close();
+	 *
+	 * @param fileFilter Filter or array of filters (like '.txt') for the names, null for all
+	 * @param prefix only the names starting with this (case sensitive), null for all
+	 * @param modifiedSince only the entries modified after this date, null for all
+	 * @param fileOption 0=all, 1=files, 2=dirs
+	 * @param offset the number of matching entries to skip
+	 * @param limit the maximum number of entries to return, 0 for all
+	 *
+	 * @return the names
+	 */
+	public String[] js_queryNames(Object fileFilter, String prefix, Date modifiedSince, Number fileOption, Number offset, Number limit)
+	{
+		List<String> names = query(fileFilter, prefix, modifiedSince, fileOption, offset, limit);
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Returns the size in bytes of the given file of the index, -1 if there is no such file.
+	 *
+	 * @sample
+	 * var size = index.getFileSize('report.pdf');
+	 *
+	 * @param name the name of the file in the indexed folder
+	 *
+	 * @return the size
+	 */
+	public long js_getFileSize(String name)
+	{
+		checkClosed();
+		FolderIndex.Entry entry = index.get(name);
+		return entry != null ? entry.size : -1;
+	}
+
+	/**
+	 * Returns the last modified date of the given file of the index, null if there is no such file.
+	 *
+	 * @sample
+	 * var date = index.getFileLastModified('report.pdf');
+	 *
+	 * @param name the name of the file in the indexed folder
+	 *
+	 * @return the last modified date
+	 */
+	public Date js_getFileLastModified(String name)
+	{
+		checkClosed();
+		FolderIndex.Entry entry = index.get(name);
+		return entry != null ? new Date(entry.lastModified) : null;
+	}
+
+	/**
+	 * Closes the index, it can't be used anymore after this.
+	 * Indexes that are not closed are closed when the solution is closed.
+	 *
+	 * @sampleas js_getSize()
+	 */
+	public void js_close()
+	{
+		close();
+		if (provider != null) provider.handleClosed(this);
+	}
+
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (closed) return;
+			closed = true;
+		}
+		index.release();
+	}
+
+	private List<String> query(Object fileFilter, String prefix, Date modifiedSince, Number fileOption, Number offset, Number limit)
+	{
+		checkClosed();
+		return index.query(toFilters(fileFilter), prefix, modifiedSince != null ? modifiedSince.getTime() : 0,
+			fileOption != null ? fileOption.intValue() : AbstractFile.ALL, offset != null ? offset.intValue() : 0, limit != null ? limit.intValue() : 0);
+	}
+
+	private void checkClosed()
+	{
+		if (closed) throw new IllegalStateException("Folder index is closed"); //$NON-NLS-1$
+	}
+
+	static String[] toFilters(Object fileFilter)
+	{
+		if (fileFilter == null) return null;
+		if (fileFilter.getClass().isArray())
+		{
+			Object[] tmp = (Object[])fileFilter;
+			String[] filters = new String[tmp.length];
+			for (int i = 0; i < tmp.length; i++)
+			{
+				filters[i] = String.valueOf(tmp[i]);
+			}
+			return filters;
+		}
+		return new String[] { fileFilter.toString() };
+	}
+
+	@Override
+	public String toString()
+	{
+		return "JSFolderIndex[" + (index != null ? index.getFolder() : null) + (closed ? ",closed]" : "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
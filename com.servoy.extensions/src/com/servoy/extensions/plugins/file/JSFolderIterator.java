@@ -0,0 +1,209 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.servoy.j2db.documentation.ServoyDocumented;
+import com.servoy.j2db.plugins.IClientPluginAccess;
+import com.servoy.j2db.scripting.IJavaScriptType;
+import com.servoy.j2db.scripting.IScriptable;
+import com.servoy.j2db.util.Debug;
+
+/**
+ * Lazily iterates over the contents of a folder, returned by iterateFolder() and iterateRemoteFolder().<br/>
+ * The folder is read while iterating, so only the current page is kept in memory regardless of the size of the folder.
+ * The iterator is closed when all the entries are read or reading the folder failed, getError() tells which of the two it was.
+ *
+ * @author jcompagner
+ */
+@ServoyDocumented
+public class JSFolderIterator implements IScriptable, IJavaScriptType, Closeable
+{
+	private static final JSFile[] EMPTY = new JSFile[0];
+	private static final int MAX_INITIAL_PAGE_CAPACITY = 1024;
+
+	private final FileProvider provider;
+	private final IClientPluginAccess application;
+	private final DirectoryStream<Path> stream;
+	private final Iterator<Path> iterator;
+	private final File mainFolder;
+	private final int pageSize;
+	private volatile boolean closed;
+	private String error;
+
+	/**
+	 * For developer scripting introspection only
+	 */
+	public JSFolderIterator()
+	{
+		this.provider = null;
+		this.application = null;
+		this.stream = null;
+		this.iterator = null;
+		this.mainFolder = null;
+		this.pageSize = 0;
+	}
+
+	/**
+	 * @param mainFolder the default folder of the server when this iterates over a remote folder, null for a local folder
+	 */
+	JSFolderIterator(FileProvider provider, IClientPluginAccess application, DirectoryStream<Path> stream, File mainFolder, int pageSize)
+	{
+		this.provider = provider;
+		this.application = application;
+		this.stream = stream;
+		this.iterator = stream.iterator();
+		this.mainFolder = mainFolder;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Returns true if there are more files or folders to read.
+	 *
+	 * @sample
+	 * var it = plugins.file.iterateFolder('/data/uploads', '*.pdf', 500);
+	 * while (it.hasNext()) {
+	 * 	var page = it.nextPage();
+	 * 	for (var i = 0; i < page.length; i++) {
+	 * 		application.output(page[i].getName());
+	 * 	}
+	 * }
+	 *
+	 * @return true if there are more entries
+	 */
+	public synchronized boolean js_hasNext()
+	{
+		if (closed) return false;
+		try
+		{
+			if (iterator.hasNext()) return true;
+		}
+		catch (DirectoryIteratorException e)
+		{
+			Debug.error("Reading the folder failed", e); //$NON-NLS-1$
+			error = e.getCause().getMessage() != null ? e.getCause().getMessage() : e.getCause().toString();
+		}
+		js_close();
+		return false;
+	}
+
+	/**
+	 * Returns the error when reading the folder failed, null if it didn't fail (yet).
+	 * hasNext() returns false after an error as well, so check this after the last entry to know if all the entries were read.
+	 *
+	 * @sample
+	 * var it = plugins.file.iterateFolder('/data/uploads', null);
+	 * var count = 0;
+	 * while (it.next() != null) count++;
+	 * if (it.getError() != null) application.output('Only ' + count + ' files read: ' + it.getError());
+	 *
+	 * @return the error message, null if reading the folder didn't fail
+	 */
+	public synchronized String js_getError()
+	{
+		return error;
+	}
+
+	/**
+	 * Returns the next file or folder, null if there are no more entries.
+	 *
+	 * @sample
+	 * var it = plugins.file.iterateFolder('/data/uploads', '*.txt');
+	 * var file;
+	 * while ((file = it.next()) != null) {
+	 * 	application.output(file.getName());
+	 * }
+	 *
+	 * @return the next file
+	 */
+	public synchronized JSFile js_next()
+	{
+		if (!js_hasNext()) return null;
+		return toJSFile(iterator.next());
+	}
+
+	/**
+	 * Returns the next page of files and folders, the page has the size that was given when creating this iterator or less for the last page.
+	 * An empty array is returned if there are no more entries.
+	 *
+	 * @sampleas js_hasNext()
+	 *
+	 * @return the next page of files
+	 */
+	public synchronized JSFile[] js_nextPage()
+	{
+		if (!js_hasNext()) return EMPTY;
+		// the page size comes from the script, so the page grows with the entries instead of being allocated at that size
+		List<JSFile> page = new ArrayList<JSFile>(Math.min(pageSize, MAX_INITIAL_PAGE_CAPACITY));
+		while (page.size() < pageSize && js_hasNext())
+		{
+			page.add(toJSFile(iterator.next()));
+		}
+		return page.toArray(new JSFile[page.size()]);
+	}
+
+	/**
+	 * Closes the iterator, this is done automatically when all the entries are read.
+	 * Iterators that are not closed are closed when the solution is closed.
+	 *
+	 * @sample
+	 * var it = plugins.file.iterateFolder('/data/uploads', null);
+	 * var first = it.next();
+	 * it.close();
+	 */
+	public void js_close()
+	{
+		close();
+		if (provider != null) provider.handleClosed(this);
+	}
+
+	public synchronized void close()
+	{
+		if (closed) return;
+		closed = true;
+		try
+		{
+			stream.close();
+		}
+		catch (IOException e)
+		{
+			Debug.error(e);
+		}
+	}
+
+	private JSFile toJSFile(Path path)
+	{
+		File file = path.toFile();
+		return mainFolder != null ? new JSFile(new RemoteFile(file, mainFolder, application), application) : new JSFile(file, application);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "JSFolderIterator[pageSize:" + pageSize + (closed ? ",closed]" : "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
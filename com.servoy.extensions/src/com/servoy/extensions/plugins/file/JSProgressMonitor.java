@@ -271,6 +271,31 @@ public class JSProgressMonitor extends TimerTask implements IScriptable, IJavaSc
 		this.currentTransferred.set(currentTransferred);
 	}
 
+	/**
+	 * Adds the bytes to the total and current transferred bytes.
+	 *
+	 * @param bytes the number of bytes that are transferred
+	 */
+	public void addTransferred(long bytes)
+	{
+		this.totalTransferred.addAndGet(bytes);
+		this.currentTransferred.addAndGet(bytes);
+	}
+
+	/**
+	 * Adds the bytes of a file to the total transferred bytes, for transfers that copy multiple files at once.
+	 * The current transferred bytes are only set when the file is the current file, so they are always of one file.
+	 *
+	 * @param fileIndex the index of the file the bytes are of
+	 * @param bytes the number of bytes that are transferred
+	 * @param fileTransferred the number of bytes that are transferred of the file so far
+	 */
+	public void addTransferred(int fileIndex, long bytes, long fileTransferred)
+	{
+		this.totalTransferred.addAndGet(bytes);
+		if (currentFileIndex.get() == fileIndex) this.currentTransferred.set(fileTransferred);
+	}
+
 	/**
 	 * @param currentFileName the currentFileName to set
 	 */
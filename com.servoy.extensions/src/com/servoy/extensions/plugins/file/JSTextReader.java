@@ -0,0 +1,420 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+
+package com.servoy.extensions.plugins.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.Function;
+
+import com.servoy.j2db.documentation.ServoyDocumented;
+import com.servoy.j2db.plugins.IClientPluginAccess;
+import com.servoy.j2db.scripting.FunctionDefinition;
+import com.servoy.j2db.scripting.IJavaScriptType;
+import com.servoy.j2db.scripting.IScriptable;
+
+/**
+ * Reads a text file in a streaming way, returned by openTextReader().<br/>
+ * The file is decoded with a {@link CharsetDecoder} over a {@link FileChannel} using buffers that are reused,
+ * so the memory that is used doesn't depend on the size of the file.
+ *
+ * @author jcompagner
+ */
+@ServoyDocumented
+public class JSTextReader implements IScriptable, IJavaScriptType, Closeable
+{
+	private static final int BUFFER_SIZE = FileProvider.CHUNK_BUFFER_SIZE;
+	private static final byte[] UTF8_BOM = { (byte)0xEF, (byte)0xBB, (byte)0xBF };
+
+	private final FileProvider provider;
+	private final IClientPluginAccess application;
+	private final File file;
+	private final Charset charset;
+	private final FileChannel channel;
+	private final CharsetDecoder decoder;
+	private final int bomLength;
+
+	// bytes that are read from the channel but not decoded yet, in write mode
+	private final ByteBuffer byteBuffer;
+	// chars that are decoded but not returned yet, in read mode
+	private final CharBuffer charBuffer;
+	// the byte offset in the file of the first char in the char buffer
+	private long chunkStart;
+	private boolean endOfInput;
+	private boolean flushed;
+	private boolean closed;
+
+	/**
+	 * For developer scripting introspection only
+	 */
+	public JSTextReader()
+	{
+		this.provider = null;
+		this.application = null;
+		this.file = null;
+		this.charset = null;
+		this.channel = null;
+		this.decoder = null;
+		this.bomLength = 0;
+		this.byteBuffer = null;
+		this.charBuffer = null;
+	}
+
+	JSTextReader(FileProvider provider, IClientPluginAccess application, File file, Charset charset) throws IOException
+	{
+		this.provider = provider;
+		this.application = application;
+		this.file = file;
+		this.charset = charset;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		ByteBuffer bom = ByteBuffer.allocate(UTF8_BOM.length);
+		channel.read(bom, 0);
+		Charset decodeCharset = charset;
+		int bomBytes = 0;
+		if (StandardCharsets.UTF_8.equals(charset))
+		{
+			if (bom.position() == UTF8_BOM.length && bom.get(0) == UTF8_BOM[0] && bom.get(1) == UTF8_BOM[1] && bom.get(2) == UTF8_BOM[2]) bomBytes = 3;
+		}
+		else if (StandardCharsets.UTF_16.equals(charset))
+		{
+			// decode with the byte order of the mark, so decoding can start at every position and not only at the mark
+			boolean littleEndian = bom.position() >= 2 && bom.get(0) == (byte)0xFF && bom.get(1) == (byte)0xFE;
+			if (littleEndian || (bom.position() >= 2 && bom.get(0) == (byte)0xFE && bom.get(1) == (byte)0xFF)) bomBytes = 2;
+			decodeCharset = littleEndian ? StandardCharsets.UTF_16LE : StandardCharsets.UTF_16BE;
+		}
+		this.bomLength = bomBytes;
+		this.decoder = newDecoder(decodeCharset);
+		this.byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		this.charBuffer = CharBuffer.allocate(BUFFER_SIZE);
+		this.charBuffer.flip();
+		channel.position(bomLength);
+		this.chunkStart = bomLength;
+	}
+
+	private static CharsetDecoder newDecoder(Charset charset)
+	{
+		return charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * Reads the next line, null if the end of the file is reached.
+	 * Lines can end with \n, \r\n or \r, the line terminator is not part of the returned line.
+	 *
+	 * @sample
+	 * var reader = plugins.file.openTextReader('/data/big.log', 'UTF-8');
+	 * try {
+	 * 	var line;
+	 * 	while ((line = reader.readLine()) != null) {
+	 * 		if (line.indexOf('ERROR') != -1) application.output(line);
+	 * 	}
+	 * } finally {
+	 * 	reader.close();
+	 * }
+	 *
+	 * @return the line
+	 */
+	public String js_readLine() throws IOException
+	{
+		checkClosed();
+		StringBuilder line = null;
+		while (true)
+		{
+			if (!charBuffer.hasRemaining() && !fill())
+			{
+				return line != null ? line.toString() : null;
+			}
+			if (line == null) line = new StringBuilder(80);
+			int start = charBuffer.position();
+			int limit = charBuffer.limit();
+			for (int i = start; i < limit; i++)
+			{
+				char c = charBuffer.get(i);
+				if (c == '\n' || c == '\r')
+				{
+					line.append(charBuffer.array(), charBuffer.arrayOffset() + start, i - start);
+					charBuffer.position(i + 1);
+					if (c == '\r')
+					{
+						// a \r\n counts as one line terminator
+						if (!charBuffer.hasRemaining()) fill();
+						if (charBuffer.hasRemaining() && charBuffer.get(charBuffer.position()) == '\n') charBuffer.get();
+					}
+					return line.toString();
+				}
+			}
+			line.append(charBuffer.array(), charBuffer.arrayOffset() + start, limit - start);
+			charBuffer.position(limit);
+		}
+	}
+
+	/**
+	 * Reads the next lines, the returned array is empty if the end of the file is reached.
+	 *
+	 * @sample
+	 * var reader = plugins.file.openTextReader('/data/export.csv');
+	 * var lines;
+	 * while ((lines = reader.readLines(1000)).length > 0) {
+	 * 	// process 1000 lines at a time
+	 * }
+	 * reader.close();
+	 *
+	 * @param maxLines the maximum number of lines to read
+	 *
+	 * @return the lines
+	 */
+	public String[] js_readLines(int maxLines) throws IOException
+	{
+		List<String> lines = new ArrayList<>(Math.min(Math.max(maxLines, 0), 1024));
+		String line;
+		while (lines.size() < maxLines && (line = js_readLine()) != null)
+		{
+			lines.add(line);
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * Reads the next characters, without looking at lines. Returns null if the end of the file is reached.
+	 *
+	 * @sample
+	 * var reader = plugins.file.openTextReader('/data/big.xml', 'UTF-8');
+	 * var chunk;
+	 * while ((chunk = reader.readChunk(65536)) != null) {
+	 * 	// process the chunk
+	 * }
+	 * reader.close();
+	 *
+	 * @param maxChars the maximum number of characters to read
+	 *
+	 * @return the characters that are read
+	 */
+	public String js_readChunk(int maxChars) throws IOException
+	{
+		checkClosed();
+		StringBuilder chunk = new StringBuilder(Math.min(Math.max(maxChars, 0), BUFFER_SIZE));
+		while (chunk.length() < maxChars)
+		{
+			if (!charBuffer.hasRemaining() && !fill()) break;
+			int count = Math.min(charBuffer.remaining(), maxChars - chunk.length());
+			chunk.append(charBuffer.array(), charBuffer.arrayOffset() + charBuffer.position(), count);
+			charBuffer.position(charBuffer.position() + count);
+		}
+		return chunk.length() == 0 && maxChars > 0 ? null : chunk.toString();
+	}
+
+	/**
+	 * Calls the function for every line that is left in the file, with the line and the line number (starting at 1) as arguments.
+	 * When the function returns false, no more lines are read.
+	 *
+	 * @sample
+	 * var reader = plugins.file.openTextReader('/data/big.log');
+	 * var count = reader.forEachLine(function(line, lineNumber) {
+	 * 	if (line.indexOf('FATAL') != -1) {
+	 * 		application.output('first fatal error at line ' + lineNumber);
+	 * 		return false;
+	 * 	}
+	 * });
+	 * reader.close();
+	 *
+	 * @param callback the function to call for every line
+	 *
+	 * @return the number of lines that are read
+	 */
+	public int js_forEachLine(Function callback) throws IOException
+	{
+		FunctionDefinition function = new FunctionDefinition(callback);
+		int count = 0;
+		String line;
+		while ((line = js_readLine()) != null)
+		{
+			count++;
+			Object result = function.executeSync(application, new Object[] { line, Integer.valueOf(count) });
+			if (Boolean.FALSE.equals(result)) break;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the byte offset in the file of the next character that will be read.
+	 * This can be given to seek() to continue reading from this point later on.
+	 *
+	 * @sample
+	 * var reader = plugins.file.openTextReader('/data/big.log');
+	 * reader.readLines(100);
+	 * var position = reader.getPosition();
+	 * reader.close();
+	 * // later on
+	 * reader = plugins.file.openTextReader('/data/big.log');
+	 * reader.seek(position);
+	 *
+	 * @return the byte offset
+	 */
+	public long js_getPosition() throws IOException
+	{
+		checkClosed();
+		// everything that is read from the channel, minus the bytes not yet decoded
+		long position = channel.position() - byteBuffer.position();
+		if (charBuffer.hasRemaining())
+		{
+			// decode the bytes of the current chunk again, until the chars that are returned are decoded, the bytes that the decoder
+			// took for that is the offset in the chunk. Encoding the chars that are left is not exact for replacement chars of malformed input
+			ByteBuffer bytes = ByteBuffer.allocate((int)(position - chunkStart));
+			while (bytes.hasRemaining() && channel.read(bytes, chunkStart + bytes.position()) != -1)
+			{
+				// read the whole chunk
+			}
+			bytes.flip();
+			newDecoder(decoder.charset()).decode(bytes, CharBuffer.allocate(charBuffer.position()), endOfInput);
+			position = chunkStart + bytes.position();
+		}
+		return position;
+	}
+
+	/**
+	 * Continues reading at the given byte offset in the file.
+	 * The offset should be at the start of a character (for example a position that getPosition() returned), otherwise
+	 * the first character that is read is not valid.
+	 *
+	 * @sampleas js_getPosition()
+	 *
+	 * @param position the byte offset in the file
+	 */
+	public void js_seek(long position) throws IOException
+	{
+		checkClosed();
+		// the byte order mark is never returned as a char
+		long start = Math.max(bomLength, position);
+		channel.position(start);
+		chunkStart = start;
+		byteBuffer.clear();
+		charBuffer.clear().flip();
+		decoder.reset();
+		endOfInput = false;
+		flushed = false;
+	}
+
+	/**
+	 * Skips the given number of bytes.
+	 *
+	 * @sample
+	 * // skip the first 10MB of the file
+	 * reader.skip(10 * 1024 * 1024);
+	 * reader.readLine(); // the rest of a line that could be partially skipped
+	 *
+	 * @param bytes the number of bytes to skip
+	 */
+	public void js_skip(long bytes) throws IOException
+	{
+		js_seek(js_getPosition() + bytes);
+	}
+
+	/**
+	 * Returns the size of the file in bytes.
+	 *
+	 * @sample
+	 * var progress = reader.getPosition() / reader.getSize();
+	 *
+	 * @return the size of the file
+	 */
+	public long js_getSize() throws IOException
+	{
+		checkClosed();
+		return channel.size();
+	}
+
+	/**
+	 * Closes the reader, it can't be used anymore after this.
+	 * Readers that are not closed are closed when the solution is closed.
+	 *
+	 * @sampleas js_readLine()
+	 */
+	public void js_close()
+	{
+		close();
+		if (provider != null) provider.handleClosed(this);
+	}
+
+	public synchronized void close()
+	{
+		if (closed) return;
+		closed = true;
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			// ignore
+		}
+	}
+
+	/**
+	 * Decodes more characters into the (empty) char buffer.
+	 *
+	 * @return false if the end of the file is reached and there are no more characters
+	 */
+	private boolean fill() throws IOException
+	{
+		if (flushed) return false;
+		chunkStart = channel.position() - byteBuffer.position();
+		charBuffer.clear();
+		try
+		{
+			while (charBuffer.position() == 0)
+			{
+				if (!endOfInput && channel.read(byteBuffer) == -1) endOfInput = true;
+				byteBuffer.flip();
+				decoder.decode(byteBuffer, charBuffer, endOfInput);
+				byteBuffer.compact();
+				if (endOfInput)
+				{
+					decoder.flush(charBuffer);
+					flushed = true;
+					break;
+				}
+			}
+		}
+		finally
+		{
+			charBuffer.flip();
+		}
+		return charBuffer.hasRemaining();
+	}
+
+	private void checkClosed() throws IOException
+	{
+		if (closed) throw new IOException("Reader of " + file + " is closed"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Override
+	public String toString()
+	{
+		return "JSTextReader[" + file + "," + charset + (closed ? ",closed]" : "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+}
@@ -257,6 +257,7 @@ public abstract class BaseRequest implements IScriptable, IJavaScriptType
 				@Override
 				public void completed(final SimpleHttpResponse response)
 				{
+					httpPlugin.requestFinished(true);
 					if (successFunctionDef != null)
 					{
 						IClientPluginAccess access = httpPlugin.getClientPluginAccess();
@@ -276,6 +277,7 @@ public abstract class BaseRequest implements IScriptable, IJavaScriptType
 				@Override
 				public void failed(final Exception ex)
 				{
+					httpPlugin.requestFinished(false);
 					logError(ex, userName, workstation, domain);
 					if (errorFunctionDef != null)
 					{
@@ -297,6 +299,7 @@ public abstract class BaseRequest implements IScriptable, IJavaScriptType
 				@Override
 				public void cancelled()
 				{
+					httpPlugin.requestFinished(false);
 					Debug.error("Request was cancelled while executing " + method.getRequestUri() + " with method " + method.getMethod() + " with user: " +
 						userName + ", workstation: " +
 						workstation + ", domain: " + domain);
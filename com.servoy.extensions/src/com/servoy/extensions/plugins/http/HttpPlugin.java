@@ -27,6 +27,7 @@ import java.util.Properties;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
@@ -58,6 +59,9 @@ public class HttpPlugin implements IClientPlugin, IIconProvider
 
 	private final ExecutorService executor = Executors.newCachedThreadPool();
 
+	private final AtomicLong completedRequests = new AtomicLong();
+	private final AtomicLong failedRequests = new AtomicLong();
+
 	/*
 	 * @see IPlugin#load()
 	 */
@@ -140,6 +144,27 @@ public class HttpPlugin implements IClientPlugin, IIconProvider
 		return access;
 	}
 
+	void requestFinished(boolean completed)
+	{
+		(completed ? completedRequests : failedRequests).incrementAndGet();
+	}
+
+	/**
+	 * @return the number of requests of this plugin that got a complete response, sync and async, for monitoring
+	 */
+	public long getCompletedRequestCount()
+	{
+		return completedRequests.get();
+	}
+
+	/**
+	 * @return the number of requests of this plugin that failed or were cancelled, sync and async, for monitoring
+	 */
+	public long getFailedRequestCount()
+	{
+		return failedRequests.get();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -16,7 +16,6 @@
  */
 package com.servoy.extensions.plugins.mail;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -52,7 +51,7 @@ class AttachmentDataSource implements DataSource
 
 	public InputStream getInputStream() throws IOException
 	{
-		return new ByteArrayInputStream(attachment.getData());
+		return attachment.getInputStream();
 	}
 
 	public String getName()
@@ -21,7 +21,10 @@ import java.rmi.RemoteException;
 import java.util.Date;
 
 import com.servoy.extensions.plugins.mail.client.Attachment;
+import com.servoy.extensions.plugins.mail.client.MailJob;
 import com.servoy.extensions.plugins.mail.client.MailMessage;
+import com.servoy.extensions.plugins.mail.client.MailQueueStatus;
+import com.servoy.extensions.plugins.mail.client.MailTemplate;
 
 /**
  * RMI interface
@@ -45,9 +48,95 @@ public interface IMailService extends Remote
 	public void sendBulkMail(String clientId, String to, String from, String subject, String msgText, String cc, String bcc, Attachment[] attachments,
 		String[] overrideProperties) throws RemoteException, Exception;
 
+	/**
+	 * Sends all mails of the batch, in parallel over pooled connections, a mail that fails doesn't stop the rest of the batch.
+	 * The call returns when the whole batch is sent, a batch larger than mail.smtp.batch.maxSize is refused.
+	 * @return for every job null if it was sent, otherwise the error message
+	 */
+	public String[] sendBatch(String clientId, MailJob[] jobs) throws RemoteException;
+
+	/**
+	 * Sends the template to every row, with the %%name%% tags replaced by the values of the columns of the row.
+	 * The template is compiled once for all rows, the mails are sent like a batch.
+	 * @return for every row null if it was sent, otherwise the error message
+	 */
+	public String[] sendMailMerge(String clientId, MailTemplate template, String[] columnNames, String[][] rows, String toColumn) throws RemoteException;
+
+	/**
+	 * Writes the mail to the outbound queue of the server, it is sent in the background and retried when it fails.
+	 * @param keepResult if the result must be kept, so it can be asked with getQueuedMailResults
+	 * @return the id of the queued mail
+	 */
+	public String queueMail(String clientId, MailJob job, boolean keepResult) throws RemoteException, Exception;
+
+	/**
+	 * @return for every id null if the mail is still queued, an empty string if it was sent, otherwise the error message
+	 */
+	public String[] getQueuedMailResults(String clientId, String[] ids) throws RemoteException;
+
+	public MailQueueStatus getMailQueueStatus(String clientId) throws RemoteException;
+
 	public MailMessage[] receiveMail(String clientId, String userName, String password, boolean leaveMsgsOnServer, int recieveMode,
 		Date onlyRecieveMsgWithSentDate, String[] overrideProperties) throws RemoteException;
 
+	/**
+	 * Starts a receive of the POP3 inbox that returns the messages in batches with {@link #nextReceivedMail(String, String, int[], int)}.
+	 * The messages are converted on the server while the client processes the previous batch.
+	 *
+	 * @param inOrder if the messages must be returned in inbox order, otherwise they are returned as soon as they are converted
+	 * @return the id of the receive, null if the inbox could not be opened
+	 */
+	public String openReceiveMail(String clientId, String userName, String password, boolean leaveMsgsOnServer, int recieveMode,
+		Date onlyRecieveMsgWithSentDate, String[] overrideProperties, boolean inOrder) throws RemoteException;
+
+	/**
+	 * Returns the next messages of the receive, at most max, waiting until at least one is available.
+	 *
+	 * @param processed the message numbers of the messages that are processed since the last call, these are deleted when the messages are not left on the server
+	 * @return the messages, an empty array when there are no more messages, null when the messages could not be received or the receive is not open (anymore)
+	 */
+	public MailMessage[] nextReceivedMail(String clientId, String receiveId, int[] processed, int max) throws RemoteException;
+
+	/**
+	 * Keeps the receive open while the client is processing a batch that takes long, the server closes a receive that is not used for 10 minutes.
+	 *
+	 * @param processed the message numbers of the messages that are processed since the last call, these are deleted when the messages are not left on the server
+	 * @return false when the receive is not open (anymore)
+	 */
+	public boolean keepReceiveMailOpen(String clientId, String receiveId, int[] processed) throws RemoteException;
+
+	/**
+	 * Closes the receive, the processed messages are deleted when the messages are not left on the server.
+	 */
+	public void closeReceiveMail(String clientId, String receiveId, int[] processed) throws RemoteException;
+
+	/**
+	 * Receives the messages of an IMAP folder with a UID above lastUid, all messages when uidValidity is not the UIDVALIDITY of the folder.
+	 * The returned messages have their uid and uidValidity set, to continue from with the next call.
+	 */
+	public MailMessage[] receiveImapMail(String clientId, String userName, String password, String folderName, long uidValidity, long lastUid,
+		int recieveMode, String[] overrideProperties) throws RemoteException;
+
+	/**
+	 * Receives one message of an IMAP folder by its UID, null when it doesn't exist (anymore) or the uidValidity doesn't match.
+	 */
+	public MailMessage receiveImapMessage(String clientId, String userName, String password, String folderName, long uidValidity, long uid,
+		int recieveMode, String[] overrideProperties) throws RemoteException;
+
+	/**
+	 * Starts to wait in the background until the IMAP folder has a message with a UID above lastUid (using IMAP IDLE if the server supports it)
+	 * or until the timeout, the result is asked with getImapMailWaitResults.
+	 * @return the id of the wait
+	 * @throws Exception when the maximum number of waits (mail.imap.maxWaits) is reached or the wait can't be started
+	 */
+	public String waitForImapMail(String clientId, String userName, String password, String folderName, long lastUid, long timeout,
+		String[] overrideProperties) throws RemoteException, Exception;
+
+	/**
+	 * @return for every id null if the wait is not finished, true if there is a new message, false if the timeout was reached or the wait failed
+	 */
+	public Boolean[] getImapMailWaitResults(String clientId, String[] ids) throws RemoteException;
+
 	public MailMessage createMailMessageFromBinary(String clientId, byte[] data) throws RemoteException;
 
 	public String getPluginProperty(String propertyName) throws RemoteException;
@@ -0,0 +1,448 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.plugins.mail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+
+import com.servoy.extensions.plugins.mail.client.MailMessage;
+import com.servoy.j2db.util.Debug;
+import com.sun.mail.imap.IMAPFolder;
+
+/**
+ * Receives mail from IMAP folders incrementally: only the messages with a UID above the last UID that was seen are fetched.
+ * The UIDs are only valid as long as the UIDVALIDITY of the folder is the same, when it changed all messages are fetched again.<br/>
+ * Messages are listed with one fetch of the envelope and headers for all of them, bodies are only fetched when they are asked for,
+ * the connection of a receive is kept open for a minute so fetching those bodies doesn't log in again for every message.
+ * Waiting for new mail uses IMAP IDLE, so the server pushes new messages; it falls back to polling when the server doesn't support IDLE.
+ * A wait runs in the background on a bounded pool, the client asks for its result later on, so no remote call is blocked while waiting.
+ *
+ * @author jblok
+ */
+@SuppressWarnings("nls")
+final class ImapReceiver
+{
+	// most servers drop an idle connection after 30 minutes
+	private static final long MAX_WAIT = TimeUnit.MINUTES.toMillis(25);
+	private static final long POLL_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+	private static final long STORE_IDLE_TIME = TimeUnit.MINUTES.toMillis(1);
+	// a client asks for the result of its wait at least every minute, after this time without asking it is gone
+	private static final long RESULT_EXPIRATION = TimeUnit.MINUTES.toMillis(15);
+
+	private final Timer idleTimer = new Timer("Mail server imap idle", true);
+	private final long attachmentFileThreshold;
+	private final int maxWaits;
+	private final ThreadPoolExecutor waitExecutor;
+	private final Map<String, Wait> waits = new ConcurrentHashMap<String, Wait>();
+	// connected stores that are not used, by session, user name and password
+	private final Map<List<Object>, IdleStore> idleStores = new HashMap<List<Object>, IdleStore>();
+
+	/**
+	 * @param maxWaits the maximum number of waits for new mail at the same time, every wait keeps a connection to the IMAP server open
+	 */
+	ImapReceiver(long attachmentFileThreshold, int maxWaits)
+	{
+		this.attachmentFileThreshold = attachmentFileThreshold;
+		this.maxWaits = maxWaits;
+		final AtomicInteger counter = new AtomicInteger();
+		waitExecutor = new ThreadPoolExecutor(0, maxWaits, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), runnable -> {
+			Thread thread = new Thread(runnable, "Mail server imap wait " + counter.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setContextClassLoader(Session.class.getClassLoader());
+			return thread;
+		});
+		idleTimer.schedule(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				closeIdleStores(System.currentTimeMillis() - STORE_IDLE_TIME);
+			}
+		}, STORE_IDLE_TIME, STORE_IDLE_TIME);
+	}
+
+	/**
+	 * @return the messages newer than lastUid, all messages if the uidValidity is not the UIDVALIDITY of the folder
+	 */
+	MailMessage[] receive(Session session, String userName, String password, String folderName, long uidValidity, long lastUid, int receiveMode)
+		throws MessagingException
+	{
+		List<Object> storeKey = Arrays.asList(session, userName, password);
+		Folder folder = open(session, userName, password, folderName, storeKey);
+		try
+		{
+			UIDFolder uidFolder = (UIDFolder)folder;
+			long currentValidity = uidFolder.getUIDValidity();
+			long from = (currentValidity == uidValidity && lastUid > 0) ? lastUid + 1 : 1;
+			Message[] messages = uidFolder.getMessagesByUID(from, UIDFolder.LASTUID);
+
+			FetchProfile fp = new FetchProfile();
+			fp.add(UIDFolder.FetchProfileItem.UID);
+			fp.add(FetchProfile.Item.ENVELOPE);
+			fp.add(IMAPFolder.FetchProfileItem.HEADERS);
+			if (receiveMode != IMailService.HEADERS_ONLY) fp.add(FetchProfile.Item.CONTENT_INFO);
+			folder.fetch(messages, fp);
+
+			List<MailMessage> result = new ArrayList<MailMessage>(messages.length);
+			for (Message message : messages)
+			{
+				long uid = uidFolder.getUID(message);
+				// a range n:* always has the last message, also when its uid is below n
+				if (uid < from) continue;
+				result.add(createMailMessage(message, receiveMode, uid, currentValidity));
+			}
+			return result.toArray(new MailMessage[result.size()]);
+		}
+		finally
+		{
+			close(folder, storeKey);
+		}
+	}
+
+	/**
+	 * @return the message with the uid, null if it doesn't exist anymore or the uidValidity is not the UIDVALIDITY of the folder
+	 */
+	MailMessage receiveMessage(Session session, String userName, String password, String folderName, long uidValidity, long uid, int receiveMode)
+		throws MessagingException
+	{
+		// the store of the receive that listed the message is reused
+		List<Object> storeKey = Arrays.asList(session, userName, password);
+		Folder folder = open(session, userName, password, folderName, storeKey);
+		try
+		{
+			UIDFolder uidFolder = (UIDFolder)folder;
+			long currentValidity = uidFolder.getUIDValidity();
+			if (currentValidity != uidValidity) return null;
+			Message message = uidFolder.getMessageByUID(uid);
+			return message != null ? createMailMessage(message, receiveMode, uid, currentValidity) : null;
+		}
+		finally
+		{
+			close(folder, storeKey);
+		}
+	}
+
+	/**
+	 * Starts to wait in the background until the folder has a message newer than lastUid, the result is asked with {@link #getWaitResults(String, String[])}.
+	 *
+	 * @return the id of the wait
+	 * @throws MessagingException when the maximum number of waits is reached
+	 */
+	String startWait(String clientId, final Session session, final String userName, final String password, final String folderName, final long lastUid,
+		final long timeout) throws MessagingException
+	{
+		String id = UUID.randomUUID().toString();
+		final Wait wait = new Wait(clientId);
+		waits.put(id, wait);
+		try
+		{
+			waitExecutor.execute(() -> {
+				boolean newMail = false;
+				try
+				{
+					newMail = waitForMail(session, userName, password, folderName, lastUid, timeout);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				catch (Exception e)
+				{
+					Debug.error("Waiting for mail in " + folderName + " of " + userName + " failed", e);
+				}
+				wait.finish(newMail);
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			waits.remove(id);
+			throw new MessagingException("Already " + maxWaits + " waits for IMAP mail (mail.imap.maxWaits), can't start another one");
+		}
+		return id;
+	}
+
+	/**
+	 * @return for every id null when the wait is not finished (or unknown), true if there is new mail, false if the timeout was reached or it failed
+	 */
+	Boolean[] getWaitResults(String clientId, String[] ids)
+	{
+		long expired = System.currentTimeMillis() - RESULT_EXPIRATION;
+		waits.values().removeIf(wait -> wait.result != null && wait.finished < expired);
+		Boolean[] results = new Boolean[ids.length];
+		for (int i = 0; i < ids.length; i++)
+		{
+			Wait wait = ids[i] != null ? waits.get(ids[i]) : null;
+			if (wait != null && wait.clientId.equals(clientId) && wait.result != null && waits.remove(ids[i], wait)) results[i] = wait.result;
+		}
+		return results;
+	}
+
+	/**
+	 * Waits until the folder has a message newer than lastUid.
+	 *
+	 * @return true if there is a newer message, false if the timeout was reached
+	 */
+	private boolean waitForMail(Session session, String userName, String password, String folderName, long lastUid, long timeout)
+		throws MessagingException, InterruptedException
+	{
+		// a wait keeps its own connection, it is idle for a long time
+		Folder folder = open(session, userName, password, folderName, null);
+		try
+		{
+			UIDFolder uidFolder = (UIDFolder)folder;
+			long deadline = System.currentTimeMillis() + Math.min(Math.max(0, timeout), MAX_WAIT);
+			boolean idle = folder instanceof IMAPFolder;
+			while (true)
+			{
+				if (hasNewer(uidFolder, lastUid)) return true;
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) return false;
+				if (idle)
+				{
+					TimerTask abort = abortIdleAfter(folder, remaining);
+					try
+					{
+						// returns when the server reports a change, or when the abort task sends a command
+						((IMAPFolder)folder).idle(true);
+					}
+					catch (MessagingException e)
+					{
+						Debug.trace("IMAP IDLE not supported, polling " + folderName, e);
+						idle = false;
+					}
+					finally
+					{
+						abort.cancel();
+					}
+				}
+				else
+				{
+					Thread.sleep(Math.min(remaining, POLL_INTERVAL));
+				}
+			}
+		}
+		finally
+		{
+			close(folder, null);
+		}
+	}
+
+	void close()
+	{
+		idleTimer.cancel();
+		waitExecutor.shutdownNow();
+		closeIdleStores(Long.MAX_VALUE);
+	}
+
+	private TimerTask abortIdleAfter(final Folder folder, long delay)
+	{
+		TimerTask task = new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					folder.getMessageCount();
+				}
+				catch (Exception e)
+				{
+					Debug.trace(e);
+				}
+			}
+		};
+		idleTimer.schedule(task, delay);
+		return task;
+	}
+
+	private static boolean hasNewer(UIDFolder uidFolder, long lastUid) throws MessagingException
+	{
+		for (Message message : uidFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID))
+		{
+			if (uidFolder.getUID(message) > lastUid) return true;
+		}
+		return false;
+	}
+
+	private MailMessage createMailMessage(Message message, int receiveMode, long uid, long uidValidity) throws MessagingException
+	{
+		try
+		{
+			MailMessage mm = MailServerUtils.createMailMessage(message, receiveMode, attachmentFileThreshold);
+			mm.uid = uid;
+			mm.uidValidity = uidValidity;
+			return mm;
+		}
+		catch (IOException e)
+		{
+			throw new MessagingException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param storeKey the key to reuse an idle store that is still connected, null for a new store
+	 */
+	private Folder open(Session session, String userName, String password, String folderName, List<Object> storeKey) throws MessagingException
+	{
+		Store store = null;
+		if (storeKey != null)
+		{
+			IdleStore idle;
+			synchronized (idleStores)
+			{
+				idle = idleStores.remove(storeKey);
+			}
+			if (idle != null && idle.store.isConnected()) store = idle.store;
+			else if (idle != null) closeStore(idle.store);
+		}
+		if (store == null)
+		{
+			// imap with mail.imap.ssl.enable=true or imaps as the store protocol for SSL
+			String protocol = "imaps".equals(session.getProperty("mail.store.protocol")) ? "imaps" : "imap";
+			store = session.getStore(protocol);
+			store.connect(session.getProperty("mail." + protocol + ".host"), userName, password);
+		}
+		try
+		{
+			Folder folder = store.getFolder(folderName == null ? "INBOX" : folderName);
+			if (!(folder instanceof UIDFolder)) throw new MessagingException("Folder " + folderName + " doesn't support UIDs");
+			folder.open(Folder.READ_ONLY);
+			return folder;
+		}
+		catch (MessagingException e)
+		{
+			closeStore(store);
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the folder, its store is kept for reuse when there is a store key and no other store is kept for that key.
+	 */
+	private void close(Folder folder, List<Object> storeKey)
+	{
+		try
+		{
+			if (folder.isOpen()) folder.close(false);
+		}
+		catch (Exception e)
+		{
+			Debug.error(e);
+		}
+		Store store = folder.getStore();
+		if (storeKey != null && store.isConnected())
+		{
+			synchronized (idleStores)
+			{
+				if (!idleStores.containsKey(storeKey))
+				{
+					idleStores.put(storeKey, new IdleStore(store));
+					return;
+				}
+			}
+		}
+		closeStore(store);
+	}
+
+	/**
+	 * Closes the idle stores that are not used since the given time.
+	 */
+	private void closeIdleStores(long usedBefore)
+	{
+		List<Store> expired = new ArrayList<Store>();
+		synchronized (idleStores)
+		{
+			Iterator<IdleStore> it = idleStores.values().iterator();
+			while (it.hasNext())
+			{
+				IdleStore idle = it.next();
+				if (idle.since < usedBefore)
+				{
+					expired.add(idle.store);
+					it.remove();
+				}
+			}
+		}
+		for (Store store : expired)
+		{
+			closeStore(store);
+		}
+	}
+
+	private static void closeStore(Store store)
+	{
+		try
+		{
+			store.close();
+		}
+		catch (Exception e)
+		{
+			Debug.error(e);
+		}
+	}
+
+	private static class IdleStore
+	{
+		final Store store;
+		final long since = System.currentTimeMillis();
+
+		IdleStore(Store store)
+		{
+			this.store = store;
+		}
+	}
+
+	private static class Wait
+	{
+		final String clientId;
+		volatile Boolean result;
+		volatile long finished;
+
+		Wait(String clientId)
+		{
+			this.clientId = clientId;
+		}
+
+		void finish(boolean newMail)
+		{
+			finished = System.currentTimeMillis();
+			result = Boolean.valueOf(newMail);
+		}
+	}
+}
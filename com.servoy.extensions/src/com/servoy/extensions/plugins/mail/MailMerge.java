@@ -0,0 +1,281 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.plugins.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+
+import com.servoy.extensions.plugins.mail.client.Attachment;
+import com.servoy.extensions.plugins.mail.client.MailTemplate;
+import com.servoy.j2db.util.UUID;
+import com.servoy.j2db.util.Utils;
+
+/**
+ * A mail template compiled for a mail merge.<br/>
+ * The subject and texts are split once in literal text and %%name%% tags, a message is rendered by only joining the parts with the values of a record.
+ * Tags with the name of an attachment are embedded images, they are resolved once to a content id.
+ * The attachments and embedded images are base64 encoded once, every message gets its own body parts over the same encoded content;
+ * attachments held in a file are streamed for every message instead, so they are not held in memory.
+ *
+ * @author jblok
+ */
+@SuppressWarnings("nls")
+final class MailMerge
+{
+	private final String[] subject;
+	private final String[] plain;
+	private final String[] html;
+	private final List<SharedPart> embeddedImages = new ArrayList<SharedPart>();
+	private final List<SharedPart> attachments = new ArrayList<SharedPart>();
+
+	MailMerge(MailTemplate template, String charset) throws Exception
+	{
+		String msgText = (template.getMsgText() == null) ? "" : template.getMsgText().trim();
+		int htmlIndex = msgText.toLowerCase().indexOf("<html");
+		boolean hasHTML = (htmlIndex != -1);
+		boolean hasPlain = !hasHTML || htmlIndex > 0;
+
+		Map<String, Attachment> attachmentMap = new HashMap<String, Attachment>();
+		Attachment[] templateAttachments = template.getAttachments();
+		for (int i = 0; templateAttachments != null && i < templateAttachments.length; i++)
+		{
+			if (templateAttachments[i] != null) attachmentMap.put(templateAttachments[i].getName(), templateAttachments[i]);
+		}
+
+		subject = template.getSubject() != null ? compile(template.getSubject(), null) : null;
+		plain = hasPlain ? compile(hasHTML ? msgText.substring(0, htmlIndex) : msgText, null) : null;
+		Map<String, String> contentIds = new LinkedHashMap<String, String>();
+		if (hasHTML)
+		{
+			// only the html can have embedded images
+			for (String name : attachmentMap.keySet())
+			{
+				contentIds.put(name, null);
+			}
+			html = compile(msgText.substring(htmlIndex), contentIds);
+		}
+		else
+		{
+			html = null;
+		}
+
+		for (Map.Entry<String, String> entry : contentIds.entrySet())
+		{
+			if (entry.getValue() != null) embeddedImages.add(new SharedPart(attachmentMap.get(entry.getKey()), entry.getValue(), charset));
+		}
+		for (int i = 0; templateAttachments != null && i < templateAttachments.length; i++)
+		{
+			Attachment attachment = templateAttachments[i];
+			if (attachment == null || attachment.isEmbedded() || contentIds.get(attachment.getName()) != null) continue;
+			attachments.add(new SharedPart(attachment, null, charset));
+		}
+	}
+
+	/**
+	 * @return the subject with the tags replaced by the values of the record, null if the template has no subject
+	 */
+	String getSubject(Map<String, String> record)
+	{
+		return render(subject, record);
+	}
+
+	/**
+	 * @return the plain text with the tags replaced by the values of the record, null if the template has only html
+	 */
+	String getPlain(Map<String, String> record)
+	{
+		return render(plain, record);
+	}
+
+	/**
+	 * @return the html text with the tags replaced by the values of the record, null if the template has only plain text
+	 */
+	String getHtml(Map<String, String> record)
+	{
+		return render(html, record);
+	}
+
+	List<MimeBodyPart> createEmbeddedImages() throws MessagingException
+	{
+		return createParts(embeddedImages);
+	}
+
+	List<MimeBodyPart> createAttachments() throws MessagingException
+	{
+		return createParts(attachments);
+	}
+
+	private static List<MimeBodyPart> createParts(List<SharedPart> sharedParts) throws MessagingException
+	{
+		List<MimeBodyPart> parts = new ArrayList<MimeBodyPart>(sharedParts.size());
+		for (SharedPart sharedPart : sharedParts)
+		{
+			parts.add(sharedPart.create());
+		}
+		return parts;
+	}
+
+	/**
+	 * Splits the text in literal text (even indexes) and tag names (odd indexes).
+	 * Tags that are a key of contentIds are embedded images, they are replaced by a cid url and get their content id in the map.
+	 */
+	private static String[] compile(String text, Map<String, String> contentIds)
+	{
+		List<String> segments = new ArrayList<String>();
+		StringBuilder literal = new StringBuilder();
+		int index = 0;
+		while (true)
+		{
+			int start = text.indexOf("%%", index);
+			int end = start != -1 ? text.indexOf("%%", start + 2) : -1;
+			if (end == -1)
+			{
+				literal.append(text, index, text.length());
+				break;
+			}
+			literal.append(text, index, start);
+			String name = text.substring(start + 2, end);
+			if (contentIds != null && contentIds.containsKey(name))
+			{
+				String contentId = contentIds.get(name);
+				if (contentId == null)
+				{
+					contentId = "servoy-" + UUID.randomUUID();
+					contentIds.put(name, contentId);
+				}
+				literal.append("cid:").append(contentId);
+			}
+			else
+			{
+				segments.add(literal.toString());
+				segments.add(name);
+				literal.setLength(0);
+			}
+			index = end + 2;
+		}
+		segments.add(literal.toString());
+		return segments.toArray(new String[segments.size()]);
+	}
+
+	private static String render(String[] segments, Map<String, String> record)
+	{
+		if (segments == null) return null;
+		if (segments.length == 1) return segments[0];
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < segments.length; i++)
+		{
+			if (i % 2 == 0)
+			{
+				sb.append(segments[i]);
+			}
+			else if (record.containsKey(segments[i]))
+			{
+				String value = record.get(segments[i]);
+				if (value != null) sb.append(value);
+			}
+			else
+			{
+				// not a column of the record, left as is
+				sb.append("%%").append(segments[i]).append("%%");
+			}
+		}
+		return sb.toString();
+	}
+
+	private static class SharedPart
+	{
+		private final Attachment attachment;
+		private final String contentId;
+		private final String fileName;
+		private final String[] headerLines;
+		private final byte[] content;
+
+		SharedPart(Attachment attachment, String contentId, String charset) throws Exception
+		{
+			this.attachment = attachment;
+			this.contentId = contentId;
+			// embedded images never had a file name
+			this.fileName = contentId == null ? MimeUtility.encodeText(attachment.getName(), charset, null) : null;
+
+			if (attachment.getFile() != null)
+			{
+				headerLines = null;
+				content = null;
+				return;
+			}
+
+			MimeBodyPart part = createStreamed();
+			String contentType = new AttachmentDataSource(attachment).getContentType();
+			ContentType type = new ContentType(contentType != null ? contentType : "application/octet-stream");
+			if (fileName != null) type.setParameter("name", fileName);
+			part.setHeader("Content-Type", type.toString());
+			part.setHeader("Content-Transfer-Encoding", "base64");
+			List<String> lines = new ArrayList<String>();
+			Enumeration<String> e = part.getAllHeaderLines();
+			while (e.hasMoreElements())
+			{
+				lines.add(e.nextElement());
+			}
+			headerLines = lines.toArray(new String[lines.size()]);
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (InputStream is = attachment.getInputStream(); OutputStream os = MimeUtility.encode(baos, "base64"))
+			{
+				Utils.streamCopy(is, os);
+			}
+			content = baos.toByteArray();
+		}
+
+		MimeBodyPart create() throws MessagingException
+		{
+			if (content == null) return createStreamed();
+
+			// the headers are per message, the encoded content is shared
+			InternetHeaders headers = new InternetHeaders();
+			for (String line : headerLines)
+			{
+				headers.addHeaderLine(line);
+			}
+			return new MimeBodyPart(headers, content);
+		}
+
+		private MimeBodyPart createStreamed() throws MessagingException
+		{
+			MimeBodyPart part = new MimeBodyPart();
+			part.setDisposition(Part.ATTACHMENT);
+			part.setDataHandler(new DataHandler(new AttachmentDataSource(attachment)));
+			if (fileName != null) part.setFileName(fileName);
+			if (contentId != null) part.setContentID("<" + contentId + ">");
+			return part;
+		}
+	}
+}
@@ -0,0 +1,434 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.plugins.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+
+import com.servoy.extensions.plugins.mail.client.Attachment;
+import com.servoy.extensions.plugins.mail.client.MailJob;
+import com.servoy.extensions.plugins.mail.client.MailQueueStatus;
+import com.servoy.j2db.util.Debug;
+import com.servoy.j2db.util.Utils;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * Outbound mail queue, backed by a spool folder on disk so queued mails survive a server restart.<br/>
+ * A mail is written once to the spool, the workers read it from there for every attempt so the queue doesn't keep the mails in memory.
+ * Mails that fail with a connection error, an I/O error or a temporary (4xx) server error are retried with an exponential backoff, mails that still fail
+ * after the max attempts, or that can never be sent (a wrong or rejected address, a 5xx server error), are moved to the failed folder of the spool.
+ * A spooled mail that this version can't read (written by another version) stays in the spool, so a server that can read it sends it.
+ * The result of a mail is kept until the client that queued it collects it, or until that client stopped asking for results.
+ *
+ * @author jblok
+ */
+@SuppressWarnings("nls")
+final class MailQueue
+{
+	static final String QUEUE_DIRECTORY = "mail.queue.directory";
+	static final String QUEUE_THREADS = "mail.queue.threads";
+	static final String QUEUE_MAX_ATTEMPTS = "mail.queue.maxAttempts";
+	static final String QUEUE_RETRY_DELAY = "mail.queue.retryDelay";
+
+	/**
+	 * The result of a mail that was sent.
+	 */
+	static final String SENT = "";
+
+	private static final String MAIL_EXTENSION = ".mail";
+	private static final String TEMP_EXTENSION = ".tmp";
+	private static final long MAX_RETRY_DELAY = TimeUnit.HOURS.toMillis(1);
+	// a client asks for its results at least every minute while it waits for them, after this time without asking it is gone
+	private static final long CLIENT_EXPIRATION = TimeUnit.MINUTES.toMillis(15);
+	private static final int MAX_SERIALIZATION_DEPTH = 8;
+	private static final ObjectInputFilter SPOOL_FILTER = MailQueue::checkSerialization;
+
+	interface Sender
+	{
+		void send(MailJob job) throws Exception;
+	}
+
+	private final Path folder;
+	private final Path failedFolder;
+	private final Sender sender;
+	private final int maxAttempts;
+	private final long retryDelay;
+	private final ScheduledThreadPoolExecutor executor;
+
+	private final Map<String, QueuedMail> pending = new ConcurrentHashMap<String, QueuedMail>();
+	private final Map<String, Result> results = new ConcurrentHashMap<String, Result>();
+	private final Map<String, Long> clientRequests = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+
+	MailQueue(Properties settings, Sender sender) throws IOException
+	{
+		String directory = settings.getProperty(QUEUE_DIRECTORY);
+		if (directory == null || directory.trim().length() == 0) throw new IOException("No folder for the mail queue, set " + QUEUE_DIRECTORY);
+		this.folder = new File(directory.trim()).toPath();
+		this.failedFolder = folder.resolve("failed");
+		this.sender = sender;
+		this.maxAttempts = Math.max(1, Utils.getAsInteger(settings.getProperty(QUEUE_MAX_ATTEMPTS, "8")));
+		this.retryDelay = Math.max(1000, Utils.getAsLong(settings.getProperty(QUEUE_RETRY_DELAY, "30000")));
+		Files.createDirectories(failedFolder);
+
+		int threads = Math.max(1, Utils.getAsInteger(settings.getProperty(QUEUE_THREADS, "2")));
+		final AtomicInteger counter = new AtomicInteger();
+		executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+			Thread thread = new Thread(runnable, "Mail server queue " + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		// deliver what was still in the spool when the server stopped
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder))
+		{
+			for (Path file : stream)
+			{
+				String name = file.getFileName().toString();
+				if (name.endsWith(TEMP_EXTENSION))
+				{
+					Files.deleteIfExists(file);
+				}
+				else if (name.endsWith(MAIL_EXTENSION))
+				{
+					QueuedMail mail = new QueuedMail(name.substring(0, name.length() - MAIL_EXTENSION.length()), file,
+						Files.getLastModifiedTime(file).toMillis());
+					pending.put(mail.id, mail);
+					schedule(mail, 0);
+				}
+			}
+		}
+		if (pending.size() > 0) Debug.log("Mail queue resumed with " + pending.size() + " mails in " + folder);
+	}
+
+	/**
+	 * Writes the mail to the spool and schedules it to be sent.
+	 *
+	 * @param clientId the client that queued the mail, only that client can get its result
+	 * @param keepResult if the result must be kept for {@link #getResults(String, String[])}
+	 * @return the id of the queued mail
+	 */
+	String add(String clientId, MailJob job, boolean keepResult) throws IOException
+	{
+		String id = UUID.randomUUID().toString();
+		Path file = folder.resolve(id + MAIL_EXTENSION);
+		Path temp = folder.resolve(id + TEMP_EXTENSION);
+		try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+		{
+			oos.writeObject(job);
+		}
+		// only a complete mail gets the mail extension, a half written one is never sent
+		try
+		{
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp, file);
+		}
+		QueuedMail mail = new QueuedMail(id, file, System.currentTimeMillis());
+		if (keepResult)
+		{
+			mail.clientId = clientId;
+			clientRequests.put(clientId, Long.valueOf(mail.created));
+		}
+		pending.put(id, mail);
+		schedule(mail, 0);
+		return id;
+	}
+
+	/**
+	 * @return for every id null when the mail is still queued (or unknown), {@link #SENT} when it was sent, otherwise the error why it failed
+	 */
+	String[] getResults(String clientId, String[] ids)
+	{
+		long now = System.currentTimeMillis();
+		clientRequests.put(clientId, Long.valueOf(now));
+		expireResults(now);
+		String[] values = new String[ids.length];
+		for (int i = 0; i < ids.length; i++)
+		{
+			Result result = ids[i] != null ? results.get(ids[i]) : null;
+			if (result != null && result.clientId.equals(clientId) && results.remove(ids[i], result)) values[i] = result.value;
+		}
+		return values;
+	}
+
+	MailQueueStatus getStatus()
+	{
+		long now = System.currentTimeMillis();
+		long oldest = now;
+		for (QueuedMail mail : pending.values())
+		{
+			oldest = Math.min(oldest, mail.created);
+		}
+		return new MailQueueStatus(pending.size(), now - oldest, sent.get(), failed.get(), retries.get());
+	}
+
+	/**
+	 * Stops the workers, the mails that are not sent yet stay in the spool and are sent when the queue is created again.
+	 */
+	void close()
+	{
+		executor.shutdownNow();
+	}
+
+	private void schedule(final QueuedMail mail, long delay)
+	{
+		executor.schedule(() -> deliver(mail), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void deliver(QueuedMail mail)
+	{
+		mail.attempts++;
+		Exception error = null;
+		boolean retry = false;
+		MailJob job;
+		try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(mail.file))))
+		{
+			ois.setObjectInputFilter(SPOOL_FILTER);
+			job = (MailJob)ois.readObject();
+		}
+		catch (InvalidClassException | ClassNotFoundException e)
+		{
+			// written by another version (or refused by the filter), keep it in the spool for a server that can read it
+			Debug.error("Queued mail " + mail.id + " can't be read by this server, it stays in " + mail.file, e);
+			pending.remove(mail.id);
+			done(mail, "The queued mail can't be read by this server: " + e.getMessage());
+			return;
+		}
+		catch (ObjectStreamException e)
+		{
+			// a corrupt file, reading it again won't help
+			moveToFailed(mail, e);
+			return;
+		}
+		catch (IOException e)
+		{
+			retryOrFail(mail, e, true);
+			return;
+		}
+		try
+		{
+			sender.send(job);
+		}
+		catch (AddressException e)
+		{
+			error = e;
+			retry = false;
+		}
+		catch (MessagingException e)
+		{
+			error = e;
+			retry = !isPermanent(e);
+		}
+		catch (IOException e)
+		{
+			// reading an attachment or writing to the connection
+			error = e;
+			retry = true;
+		}
+		catch (InterruptedException e)
+		{
+			// stopped while waiting for the send rate, the mail stays in the spool
+			Thread.currentThread().interrupt();
+			mail.attempts--;
+			if (!executor.isShutdown()) schedule(mail, retryDelay);
+			return;
+		}
+		catch (Exception e)
+		{
+			error = e;
+			retry = false;
+		}
+		if (error != null)
+		{
+			retryOrFail(mail, error, retry);
+			return;
+		}
+		try
+		{
+			Files.deleteIfExists(mail.file);
+		}
+		catch (IOException e)
+		{
+			// not retried, that would send the mail again
+			Debug.error("Can't delete the sent mail " + mail.file + " from the queue, delete it before the server is restarted", e);
+		}
+		pending.remove(mail.id);
+		sent.incrementAndGet();
+		done(mail, SENT);
+	}
+
+	private void retryOrFail(QueuedMail mail, Exception error, boolean retry)
+	{
+		String message = error.getMessage() != null ? error.getMessage() : error.toString();
+		if (retry && mail.attempts < maxAttempts && !executor.isShutdown())
+		{
+			long delay = Math.min(MAX_RETRY_DELAY, retryDelay << Math.min(20, mail.attempts - 1));
+			Debug.warn("Queued mail " + mail.id + " failed (attempt " + mail.attempts + "), retrying in " + delay / 1000 + "s: " + message);
+			retries.incrementAndGet();
+			schedule(mail, delay);
+			return;
+		}
+		if (executor.isShutdown()) return;
+		moveToFailed(mail, error);
+	}
+
+	private void moveToFailed(QueuedMail mail, Exception error)
+	{
+		String message = error.getMessage() != null ? error.getMessage() : error.toString();
+		Debug.error("Queued mail " + mail.id + " failed after " + mail.attempts + " attempts, moved to " + failedFolder, error);
+		try
+		{
+			Files.move(mail.file, failedFolder.resolve(mail.file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e)
+		{
+			Debug.error("Can't move the failed mail " + mail.file, e);
+		}
+		pending.remove(mail.id);
+		failed.incrementAndGet();
+		done(mail, message);
+	}
+
+	/**
+	 * @return true if the smtp server rejected the mail with a 5xx code or rejected an address, sending it again will fail again.
+	 * Connection errors and 4xx codes are temporary.
+	 */
+	static boolean isPermanent(MessagingException e)
+	{
+		// the code of the server is on the exception itself or on one of its next exceptions (one per rejected address)
+		Exception ex = e;
+		int depth = 0;
+		while (ex != null && depth++ < 10)
+		{
+			int code = getReturnCode(ex);
+			if (code > 0) return code >= 500;
+			ex = ex instanceof MessagingException ? ((MessagingException)ex).getNextException() : null;
+		}
+		return e instanceof SendFailedException;
+	}
+
+	private static int getReturnCode(Exception e)
+	{
+		if (e instanceof SMTPSendFailedException) return ((SMTPSendFailedException)e).getReturnCode();
+		if (e instanceof SMTPAddressFailedException) return ((SMTPAddressFailedException)e).getReturnCode();
+		if (e instanceof SMTPSenderFailedException) return ((SMTPSenderFailedException)e).getReturnCode();
+		return -1;
+	}
+
+	/**
+	 * Only allows a mail job with its attachments and strings, anything else in the spool is refused.
+	 */
+	private static ObjectInputFilter.Status checkSerialization(ObjectInputFilter.FilterInfo info)
+	{
+		if (info.depth() > MAX_SERIALIZATION_DEPTH) return ObjectInputFilter.Status.REJECTED;
+		Class< ? > cls = info.serialClass();
+		if (cls == null) return ObjectInputFilter.Status.UNDECIDED;
+		while (cls.isArray())
+		{
+			cls = cls.getComponentType();
+		}
+		if (cls.isPrimitive() || cls == MailJob.class || cls == Attachment.class || cls == String.class) return ObjectInputFilter.Status.ALLOWED;
+		return ObjectInputFilter.Status.REJECTED;
+	}
+
+	private void done(QueuedMail mail, String result)
+	{
+		if (mail.clientId != null)
+		{
+			results.put(mail.id, new Result(mail.clientId, result));
+			expireResults(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Removes the results of the clients that stopped asking for them, because they are closed.
+	 */
+	private void expireResults(long now)
+	{
+		long expired = now - CLIENT_EXPIRATION;
+		Iterator<Result> it = results.values().iterator();
+		while (it.hasNext())
+		{
+			Result result = it.next();
+			Long lastRequest = clientRequests.get(result.clientId);
+			if (Math.max(result.time, lastRequest != null ? lastRequest.longValue() : 0) < expired) it.remove();
+		}
+		clientRequests.values().removeIf(time -> time.longValue() < expired);
+	}
+
+	private static class QueuedMail
+	{
+		final String id;
+		final Path file;
+		final long created;
+		volatile int attempts;
+		// the client that gets the result, null if the result isn't kept
+		volatile String clientId;
+
+		QueuedMail(String id, Path file, long created)
+		{
+			this.id = id;
+			this.file = file;
+			this.created = created;
+		}
+	}
+
+	private static class Result
+	{
+		final String clientId;
+		final String value;
+		final long time = System.currentTimeMillis();
+
+		Result(String clientId, String value)
+		{
+			this.clientId = clientId;
+			this.value = value;
+		}
+	}
+}
@@ -20,6 +20,7 @@ import java.io.ByteArrayInputStream;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -28,6 +29,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
 import java.util.stream.Stream;
 
 import javax.activation.DataHandler;
@@ -40,7 +49,6 @@ import javax.mail.Part;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
 import javax.mail.Store;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
@@ -50,7 +58,10 @@ import javax.mail.internet.MimeUtility;
 
 import com.servoy.base.util.ITagResolver;
 import com.servoy.extensions.plugins.mail.client.Attachment;
+import com.servoy.extensions.plugins.mail.client.MailJob;
 import com.servoy.extensions.plugins.mail.client.MailMessage;
+import com.servoy.extensions.plugins.mail.client.MailQueueStatus;
+import com.servoy.extensions.plugins.mail.client.MailTemplate;
 import com.servoy.j2db.Messages;
 import com.servoy.j2db.plugins.IServerAccess;
 import com.servoy.j2db.plugins.IServerPlugin;
@@ -58,6 +69,7 @@ import com.servoy.j2db.preference.PreferencePanel;
 import com.servoy.j2db.util.Debug;
 import com.servoy.j2db.util.Text;
 import com.servoy.j2db.util.UUID;
+import com.servoy.j2db.util.Utils;
 
 /**
  * Server mail component
@@ -69,6 +81,18 @@ public class MailServer implements IMailService, IServerPlugin
 {
 	private Properties settings;
 	private IServerAccess application;
+	private TransportPool transportPool;
+	private final SessionCache sessionCache = new SessionCache(SMTPAuthenticator::new);
+	private ExecutorService batchExecutor;
+	private SendThrottle sendThrottle;
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private MailQueue mailQueue;
+	private ImapReceiver imapReceiver;
+	private StreamingReceiver streamingReceiver;
+	private long attachmentFileThreshold = MailServerUtils.DEFAULT_ATTACHMENT_FILE_THRESHOLD;
+
+	// a batch is sent within one remote call, so its size is limited to keep that call (and the client waiting for it) short
+	private static final int DEFAULT_MAX_BATCH_SIZE = 500;
 
 	public MailServer()//must have default constructor
 	{
@@ -89,6 +113,41 @@ public class MailServer implements IMailService, IServerPlugin
 	{
 		application = app;
 		settings = app.getSettings();
+		// temp files of received attachments that were not collected before the previous shutdown
+		Attachment.deleteExpiredTempFiles();
+		transportPool = new TransportPool(settings);
+		attachmentFileThreshold = Math.max(0,
+			Utils.getAsLong(settings.getProperty("mail.attachment.fileThreshold", String.valueOf(MailServerUtils.DEFAULT_ATTACHMENT_FILE_THRESHOLD))));
+		imapReceiver = new ImapReceiver(attachmentFileThreshold, Math.max(1, Utils.getAsInteger(settings.getProperty("mail.imap.maxWaits", "20"))));
+		streamingReceiver = new StreamingReceiver(Math.max(1, Utils.getAsInteger(settings.getProperty("mail.pop3.receive.threads", "4"))),
+			attachmentFileThreshold);
+		sendThrottle = new SendThrottle(Utils.getAsDouble(settings.getProperty("mail.smtp.batch.rate", "0")));
+		int batchThreads = Math.max(1, Utils.getAsInteger(settings.getProperty("mail.smtp.batch.threads", "4")));
+		maxBatchSize = Math.max(1, Utils.getAsInteger(settings.getProperty("mail.smtp.batch.maxSize", String.valueOf(DEFAULT_MAX_BATCH_SIZE))));
+		AtomicInteger counter = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(batchThreads, batchThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+			Thread thread = new Thread(runnable, "Mail server batch sender " + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		pool.allowCoreThreadTimeOut(true);
+		batchExecutor = pool;
+		String queueDirectory = settings.getProperty(MailQueue.QUEUE_DIRECTORY);
+		if (queueDirectory != null && queueDirectory.trim().length() > 0)
+		{
+			try
+			{
+				mailQueue = new MailQueue(settings, this::deliver);
+			}
+			catch (Exception e)
+			{
+				Debug.error("Can't create the outbound mail queue", e);
+			}
+		}
+		else
+		{
+			Debug.log("The outbound mail queue is not used, set " + MailQueue.QUEUE_DIRECTORY + " to use queueMail");
+		}
 
 		try
 		{
@@ -117,6 +176,32 @@ public class MailServer implements IMailService, IServerPlugin
 
 	public void unload()
 	{
+		if (mailQueue != null)
+		{
+			mailQueue.close();
+			mailQueue = null;
+		}
+		if (imapReceiver != null)
+		{
+			imapReceiver.close();
+			imapReceiver = null;
+		}
+		if (streamingReceiver != null)
+		{
+			streamingReceiver.close();
+			streamingReceiver = null;
+		}
+		if (batchExecutor != null)
+		{
+			batchExecutor.shutdownNow();
+			batchExecutor = null;
+		}
+		if (transportPool != null)
+		{
+			transportPool.close();
+			transportPool = null;
+		}
+		sessionCache.clear();
 		settings = null;
 	}
 
@@ -126,6 +211,9 @@ public class MailServer implements IMailService, IServerPlugin
 		req.put("mail.server.allowUnauthenticatedRMIAccess", "Allow mailserver access for unauthenticated smart (rmi) client (true/false), defaults to false");
 		req.put("mail.pop3.host", "The name of POP3 server to recieve mails from");
 		req.put("mail.pop3.apop.enable", "Whether or not to use APOP for authentication (true/false), defaults to false.");
+		req.put("mail.imap.host", "The name of IMAP server to recieve mails from");
+		req.put("mail.imap.maxWaits",
+			"Maximum number of waitForImapMail calls that wait at the same time, every wait keeps a connection to the IMAP server open, defaults to 20.");
 		req.put("mail.smtp.host", "The name of SMTP server to deliver the mails to");
 		req.put("mail.smtp.port", "The port of SMTP server to deliver the mails to");
 		req.put("mail.from", "Default 'from' address if none is specified");
@@ -140,6 +228,23 @@ public class MailServer implements IMailService, IServerPlugin
 			"Specify the name of the charset to use for mail encoding (leave emtpy for system default), see http://java.sun.com/j2se/1.4.2/docs/api/java/nio/charset/Charset.html forinfo which charset names are usable");
 		req.put("mail.development.override.address",
 			"Specify an email address to which all email will be send instead of the specified To, Cc and Bcc addresses.\nThe specified to, Cc and Bcc addresses will be added to the Subject.");
+		req.put(TransportPool.POOL_ENABLE, "Keep SMTP connections open to send multiple mails over one connection (true/false), defaults to true.");
+		req.put(TransportPool.POOL_MAX_IDLE_TIME, "Time in milliseconds an unused SMTP connection is kept open, defaults to 30000.");
+		req.put(TransportPool.POOL_MAX_MESSAGES, "Maximum number of mails sent over one SMTP connection before it is closed, defaults to 100.");
+		req.put(TransportPool.POOL_MAX_IDLE_CONNECTIONS, "Maximum number of unused SMTP connections kept open per server and user, defaults to 4.");
+		req.put("mail.smtp.batch.threads", "Number of mails of a batch (sendBatch) that are sent at the same time, defaults to 4.");
+		req.put("mail.smtp.batch.rate", "Maximum number of mails per second sent to one SMTP host by sendBatch, defaults to 0 (no limit).");
+		req.put("mail.smtp.batch.maxSize",
+			"Maximum number of mails of one sendBatch or sendMailMerge call, larger batches are refused because the client waits for the whole batch, defaults to 500.");
+		req.put(MailQueue.QUEUE_DIRECTORY,
+			"Folder where queued mails are stored until they are sent (for example a mail_queue folder in the application server folder), queueMail can only be used when it is set.");
+		req.put(MailQueue.QUEUE_THREADS, "Number of queued mails that are sent at the same time, defaults to 2.");
+		req.put(MailQueue.QUEUE_MAX_ATTEMPTS, "Number of times a queued mail is tried to be sent before it is moved to the failed folder, defaults to 8.");
+		req.put(MailQueue.QUEUE_RETRY_DELAY, "Time in milliseconds before a failed queued mail is retried the first time, doubled for every next retry, defaults to 30000.");
+		req.put("mail.pop3.receive.threads",
+			"Number of received mails that are converted at the same time by forEachReceivedMail, defaults to 4. POP3 downloads the mails one by one, only their parsing runs at the same time.");
+		req.put("mail.attachment.fileThreshold",
+			"Size in bytes above which a received attachment is stored in a temporary file instead of in memory, defaults to 1048576 (1MB).");
 		return req;
 	}
 
@@ -153,9 +258,11 @@ public class MailServer implements IMailService, IServerPlugin
 		{
 			Thread.currentThread().setContextClassLoader(javax.mail.Session.class.getClassLoader());
 
-			MimeMessage message = createMessage(to, from, subject, rawMsgText, cc, bcc, attachments, overrideProperties);
+			Session session = sessionCache.getSession(settings, overrideProperties);
+			Properties properties = session.getProperties();
+			MimeMessage message = createMessage(session, properties, to, from, subject, rawMsgText, cc, bcc, attachments);
 			message.setHeader("Precedence", "bulk");
-			Transport.send(message);
+			transportPool.send(session, properties, message);
 		}
 		catch (Exception ex)
 		{
@@ -178,8 +285,10 @@ public class MailServer implements IMailService, IServerPlugin
 		{
 			Thread.currentThread().setContextClassLoader(javax.mail.Session.class.getClassLoader());
 
-			MimeMessage message = createMessage(to, from, subject, rawMsgText, cc, bcc, attachments, overrideProperties);
-			Transport.send(message);
+			Session session = sessionCache.getSession(settings, overrideProperties);
+			Properties properties = session.getProperties();
+			MimeMessage message = createMessage(session, properties, to, from, subject, rawMsgText, cc, bcc, attachments);
+			transportPool.send(session, properties, message);
 		}
 		catch (Exception ex)
 		{
@@ -192,23 +301,275 @@ public class MailServer implements IMailService, IServerPlugin
 		}
 	}
 
-	private MimeMessage createMessage(String to, String from, String subject, String rawMsgText, String cc, String bcc, Attachment[] attachments,
-		String[] overrideProperties) throws Exception
+	public String[] sendBatch(String clientId, MailJob[] jobs) throws RemoteException
 	{
-		// create a new Session object
-		Properties properties = overrideProperties(settings, overrideProperties);
-		Session session = Session.getInstance(properties, new SMTPAuthenticator(properties));
+		if (!checkAccess(clientId)) return null;
+		if (jobs == null) return new String[0];
 
-		String encoding = properties.getProperty("mail.mime.encoding");
+		return runBatch(jobs.length, i -> jobs[i] == null ? "No mail job" : sendJob(jobs[i]));
+	}
+
+	public String[] sendMailMerge(String clientId, MailTemplate template, String[] columnNames, String[][] rows, String toColumn) throws RemoteException
+	{
+		if (!checkAccess(clientId)) return null;
+		if (template == null || rows == null) return new String[0];
+
+		ClassLoader saveCl = Thread.currentThread().getContextClassLoader();
+		final Session session;
+		final MailMerge merge;
+		try
+		{
+			Thread.currentThread().setContextClassLoader(javax.mail.Session.class.getClassLoader());
+			session = sessionCache.getSession(settings, template.getOverrideProperties());
+			merge = new MailMerge(template, getCharset(session.getProperties()));
+		}
+		catch (Exception ex)
+		{
+			Debug.error("sendMailMerge " + template + " " + ex.getMessage(), ex);
+			String[] results = new String[rows.length];
+			Arrays.fill(results, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+			return results;
+		}
+		finally
+		{
+			Thread.currentThread().setContextClassLoader(saveCl);
+		}
+
+		final Map<String, Integer> columns = new HashMap<String, Integer>();
+		for (int i = 0; columnNames != null && i < columnNames.length; i++)
+		{
+			columns.put(columnNames[i], Integer.valueOf(i));
+		}
+		if (!columns.containsKey(toColumn))
+		{
+			String[] results = new String[rows.length];
+			Arrays.fill(results, "No column " + toColumn + " with the recipients");
+			return results;
+		}
+		return runBatch(rows.length, i -> {
+			String[] row = rows[i];
+			if (row == null) return "No record";
+			Map<String, String> record = new HashMap<String, String>();
+			for (Map.Entry<String, Integer> column : columns.entrySet())
+			{
+				int index = column.getValue().intValue();
+				record.put(column.getKey(), index < row.length ? row[index] : null);
+			}
+			return sendMerged(session, merge, template, record, record.get(toColumn));
+		});
+	}
+
+	/**
+	 * Runs the sends of a batch on the batch executor and waits for all of them.
+	 * @return for every mail null if it was sent, otherwise the error message
+	 */
+	private String[] runBatch(int size, IntFunction<String> send)
+	{
+		final String[] results = new String[size];
+		if (size > maxBatchSize)
+		{
+			Arrays.fill(results,
+				"Batch of " + size + " mails is larger than the maximum of " + maxBatchSize + " (mail.smtp.batch.maxSize), send it in parts or queue the mails");
+			return results;
+		}
+		List<Future< ? >> futures = new ArrayList<Future< ? >>(size);
+		for (int i = 0; i < size; i++)
+		{
+			final int index = i;
+			futures.add(batchExecutor.submit(() -> {
+				results[index] = send.apply(index);
+			}));
+		}
+		for (int i = 0; i < futures.size(); i++)
+		{
+			Future< ? > future = futures.get(i);
+			try
+			{
+				future.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				for (int j = i; j < futures.size(); j++)
+				{
+					if (futures.get(j).cancel(true)) results[j] = "Batch was interrupted";
+				}
+				break;
+			}
+			catch (ExecutionException e)
+			{
+				results[i] = e.getCause().getMessage();
+			}
+		}
+		return results;
+	}
+
+	public String queueMail(String clientId, MailJob job, boolean keepResult) throws RemoteException, Exception
+	{
+		if (!checkAccess(clientId)) return null;
+		if (mailQueue == null) throw new Exception("The outbound mail queue is not available, " + MailQueue.QUEUE_DIRECTORY + " must be set on the server");
+		try
+		{
+			return mailQueue.add(clientId, job, keepResult);
+		}
+		catch (Exception ex)
+		{
+			Debug.error("queueMail " + ex.getMessage(), ex);
+			throw new Exception(ex.getMessage()); //not all exceptions are serializable
+		}
+	}
+
+	public String[] getQueuedMailResults(String clientId, String[] ids) throws RemoteException
+	{
+		if (!checkAccess(clientId) || mailQueue == null || ids == null) return null;
+		return mailQueue.getResults(clientId, ids);
+	}
+
+	public MailQueueStatus getMailQueueStatus(String clientId) throws RemoteException
+	{
+		if (!checkAccess(clientId) || mailQueue == null) return null;
+		return mailQueue.getStatus();
+	}
+
+	/**
+	 * @return null if the mail was sent, otherwise the error message
+	 */
+	private String sendJob(MailJob job)
+	{
+		try
+		{
+			deliver(job);
+			return null;
+		}
+		catch (InterruptedException ex)
+		{
+			// interrupted while waiting for the send rate, the batch is canceled
+			Thread.currentThread().interrupt();
+			return "Batch was interrupted";
+		}
+		catch (Exception ex)
+		{
+			Debug.error("sendBatch " + job + " " + ex.getMessage(), ex);
+			return ex.getMessage() != null ? ex.getMessage() : ex.toString();
+		}
+	}
+
+	/**
+	 * @return null if the mail of the template for the record was sent, otherwise the error message
+	 */
+	private String sendMerged(Session session, MailMerge merge, MailTemplate template, Map<String, String> record, String to)
+	{
+		ClassLoader saveCl = Thread.currentThread().getContextClassLoader();
+		try
+		{
+			Thread.currentThread().setContextClassLoader(javax.mail.Session.class.getClassLoader());
+
+			Properties properties = session.getProperties();
+			MimeMessage message = createEnvelope(session, properties, to, template.getFrom(), merge.getSubject(record), null, null);
+			setContent(message, properties, merge.getPlain(record), merge.getHtml(record), merge.createEmbeddedImages(), merge.createAttachments());
+			if (template.isBulk()) message.setHeader("Precedence", "bulk");
+			sendThrottle.acquire(properties.getProperty("mail.smtp.host"));
+			transportPool.send(session, properties, message);
+			return null;
+		}
+		catch (InterruptedException ex)
+		{
+			// interrupted while waiting for the send rate, the batch is canceled
+			Thread.currentThread().interrupt();
+			return "Batch was interrupted";
+		}
+		catch (Exception ex)
+		{
+			Debug.error("sendMailMerge " + template + " to " + to + " " + ex.getMessage(), ex);
+			return ex.getMessage() != null ? ex.getMessage() : ex.toString();
+		}
+		finally
+		{
+			Thread.currentThread().setContextClassLoader(saveCl);
+		}
+	}
+
+	private void deliver(MailJob job) throws Exception
+	{
+		ClassLoader saveCl = Thread.currentThread().getContextClassLoader();
+		try
+		{
+			Thread.currentThread().setContextClassLoader(javax.mail.Session.class.getClassLoader());
+
+			Session session = sessionCache.getSession(settings, job.getOverrideProperties());
+			Properties properties = session.getProperties();
+			MimeMessage message = createMessage(session, properties, job.getTo(), job.getFrom(), job.getSubject(), job.getMsgText(), job.getCc(),
+				job.getBcc(), job.getAttachments());
+			if (job.isBulk()) message.setHeader("Precedence", "bulk");
+			sendThrottle.acquire(properties.getProperty("mail.smtp.host"));
+			transportPool.send(session, properties, message);
+		}
+		finally
+		{
+			Thread.currentThread().setContextClassLoader(saveCl);
+		}
+	}
+
+	private MimeMessage createMessage(Session session, Properties properties, String to, String from, String subject, String rawMsgText, String cc,
+		String bcc, Attachment[] attachments) throws Exception
+	{
+		String charset = getCharset(properties);
+		MimeMessage message = createEnvelope(session, properties, to, from, subject, cc, bcc);
+
+		String msgText = (rawMsgText == null) ? "" : rawMsgText.trim();
+
+		int htmlIndex = msgText.toLowerCase().indexOf("<html");
+		boolean hasHTML = (htmlIndex != -1);
+		boolean hasPlain = !hasHTML || htmlIndex > 0;
+
+		String plain = hasHTML ? msgText.substring(0, htmlIndex) : msgText;
+		String html = hasHTML ? msgText.substring(htmlIndex) : null;
+
+		// Make html multipart if it contains embedded images.
+		List<MimeBodyPart> embeddedImages = Collections.emptyList();
+		if (hasHTML && attachments != null && attachments.length > 0)
+		{
+			// Add embedded attachments.
+			EmbeddedImageTagResolver resolver = new EmbeddedImageTagResolver(attachments);
+			html = Text.processTags(html, resolver);
+			embeddedImages = resolver.getMimeBodyParts();
+		}
+
+		// Add attachments that were not embedded.
+		List<MimeBodyPart> attachmentParts = new ArrayList<MimeBodyPart>();
+		for (int i = 0; attachments != null && i < attachments.length; i++)
+		{
+			Attachment attachment = attachments[i];
+			if (attachment == null || attachment.isEmbedded()) continue;
+
+			MimeBodyPart attachmentBodyPart = new MimeBodyPart();
+			attachmentBodyPart.setDisposition(Part.ATTACHMENT);
+			attachmentBodyPart.setDataHandler(new DataHandler(new AttachmentDataSource(attachment)));
+			String fileName = attachment.getName();
+			fileName = MimeUtility.encodeText(fileName, charset, null);
+			attachmentBodyPart.setFileName(fileName);
+			attachmentParts.add(attachmentBodyPart);
+		}
+
+		setContent(message, properties, hasPlain ? plain : null, html, embeddedImages, attachmentParts);
+		return message;
+	}
+
+	private static String getCharset(Properties properties)
+	{
 		String charset = properties.getProperty("mail.mime.charset");
-		if (charset == null) charset = "UTF-8";
+		return charset == null ? "UTF-8" : charset;
+	}
 
-		String plainTextContentType = "text/plain; charset=" + charset;
-		String htmlContentType = "text/html; charset=" + charset;
+	/**
+	 * Creates a message with the sender, recipients and subject, without content.
+	 */
+	private MimeMessage createEnvelope(Session session, Properties properties, String to, String from, String subject, String cc, String bcc) throws Exception
+	{
+		String charset = getCharset(properties);
 
 		// create a new MimeMessage object (using the Session created above)
 		MimeMessage message = new MimeMessage(session);
-		String reply = null;
 		if (from == null)
 		{
 			message.setFrom();//defaults to "mail.from" mail property
@@ -244,41 +605,46 @@ public class MailServer implements IMailService, IServerPlugin
 		String sub = (subject == null ? Messages.getString("servoy.plugin.mailserver.defaultsubject") : subject);
 		if (overrideFeedback != null) sub = sub + overrideFeedback;
 		message.setSubject(sub, charset);
+		return message;
+	}
 
-		String msgText = (rawMsgText == null) ? "" : rawMsgText.trim();
+	/**
+	 * Sets the content of the message: the plain and/or html text, the images embedded in the html and the attachments.
+	 *
+	 * @param plain the plain text, null if the message has only html
+	 * @param html the html text, null if the message has only plain text
+	 */
+	private static void setContent(MimeMessage message, Properties properties, String plain, String html, List<MimeBodyPart> embeddedImages,
+		List<MimeBodyPart> attachmentParts) throws MessagingException
+	{
+		String encoding = properties.getProperty("mail.mime.encoding");
+		String charset = getCharset(properties);
 
-		int htmlIndex = msgText.toLowerCase().indexOf("<html");
-		boolean hasHTML = (htmlIndex != -1);
-		boolean hasPlain = !hasHTML || htmlIndex > 0;
+		String plainTextContentType = "text/plain; charset=" + charset;
+		String htmlContentType = "text/html; charset=" + charset;
 
-		String plain = hasHTML ? msgText.substring(0, htmlIndex) : msgText;
-		String html = hasHTML ? msgText.substring(htmlIndex) : null;
+		boolean hasHTML = html != null;
+		boolean hasPlain = plain != null;
+		String text = hasHTML ? html : plain;
 
 		// Make html multipart if it contains embedded images.
 		MimeMultipart htmlMultipart = null;
-		if (hasHTML && attachments != null && attachments.length > 0)
+		if (hasHTML && embeddedImages.size() > 0)
 		{
-			// Add embedded attachments.
-			EmbeddedImageTagResolver resolver = new EmbeddedImageTagResolver(attachments);
-			html = Text.processTags(html, resolver);
-			List<MimeBodyPart> embeddedImages = resolver.getMimeBodyParts();
-			if (embeddedImages.size() > 0)
+			htmlMultipart = new MimeMultipart("related");
+			MimeBodyPart htmlBodyPart = new MimeBodyPart();
+			htmlBodyPart.setHeader("Content-Type", htmlContentType);
+			if (encoding != null)
 			{
-				htmlMultipart = new MimeMultipart("related");
-				MimeBodyPart htmlBodyPart = new MimeBodyPart();
-				htmlBodyPart.setHeader("Content-Type", htmlContentType);
-				if (encoding != null)
-				{
-					htmlBodyPart.setHeader("Content-Transfer-Encoding", encoding);
-				}
+				htmlBodyPart.setHeader("Content-Transfer-Encoding", encoding);
+			}
 
-				htmlBodyPart.setContent(html, htmlContentType);
-				htmlMultipart.addBodyPart(htmlBodyPart);
+			htmlBodyPart.setContent(html, htmlContentType);
+			htmlMultipart.addBodyPart(htmlBodyPart);
 
-				for (MimeBodyPart embeddedImage : embeddedImages)
-				{
-					htmlMultipart.addBodyPart(embeddedImage);
-				}
+			for (MimeBodyPart embeddedImage : embeddedImages)
+			{
+				htmlMultipart.addBodyPart(embeddedImage);
 			}
 		}
 
@@ -318,41 +684,31 @@ public class MailServer implements IMailService, IServerPlugin
 			messageMultipart.addBodyPart(htmlBodyPart);
 		}
 
-		// Add attachments that were not embedded.
+		// Add attachments.
 		MimeMultipart mixedMultipart = null;
-
-		for (int i = 0; attachments != null && i < attachments.length; i++)
+		if (attachmentParts.size() > 0)
 		{
-			Attachment attachment = attachments[i];
-			if (attachment == null || attachment.isEmbedded()) continue;
-
-			if (mixedMultipart == null)
+			mixedMultipart = new MimeMultipart("mixed");
+			MimeBodyPart messageBodyPart = new MimeBodyPart();
+			if (messageMultipart != null)
 			{
-				mixedMultipart = new MimeMultipart("mixed");
-				MimeBodyPart messageBodyPart = new MimeBodyPart();
-				if (messageMultipart != null)
-				{
-					messageBodyPart.setContent(messageMultipart);
-				}
-				else
+				messageBodyPart.setContent(messageMultipart);
+			}
+			else
+			{
+				messageBodyPart.setContent(text, hasHTML ? htmlContentType : plainTextContentType);
+				messageBodyPart.setHeader("Content-Type", hasHTML ? htmlContentType : plainTextContentType);
+				if (encoding != null)
 				{
-					messageBodyPart.setContent(msgText, hasHTML ? htmlContentType : plainTextContentType);
-					messageBodyPart.setHeader("Content-Type", hasHTML ? htmlContentType : plainTextContentType);
-					if (encoding != null)
-					{
-						messageBodyPart.setHeader("Content-Transfer-Encoding", encoding);
-					}
+					messageBodyPart.setHeader("Content-Transfer-Encoding", encoding);
 				}
-				mixedMultipart.addBodyPart(messageBodyPart);
 			}
+			mixedMultipart.addBodyPart(messageBodyPart);
 
-			MimeBodyPart attachmentBodyPart = new MimeBodyPart();
-			attachmentBodyPart.setDisposition(Part.ATTACHMENT);
-			attachmentBodyPart.setDataHandler(new DataHandler(new AttachmentDataSource(attachment)));
-			String fileName = attachment.getName();
-			fileName = MimeUtility.encodeText(fileName, charset, null);
-			attachmentBodyPart.setFileName(fileName);
-			mixedMultipart.addBodyPart(attachmentBodyPart);
+			for (MimeBodyPart attachmentBodyPart : attachmentParts)
+			{
+				mixedMultipart.addBodyPart(attachmentBodyPart);
+			}
 		}
 
 
@@ -366,14 +722,13 @@ public class MailServer implements IMailService, IServerPlugin
 		}
 		else
 		{
-			message.setContent(msgText, hasHTML ? htmlContentType : plainTextContentType);
+			message.setContent(text, hasHTML ? htmlContentType : plainTextContentType);
 			message.setHeader("Content-Type", hasHTML ? htmlContentType : plainTextContentType);
 			if (encoding != null)
 			{
 				message.setHeader("Content-Transfer-Encoding", encoding);
 			}
 		}
-		return message;
 	}
 
 	private void addRecipients(Message message, String recp, Message.RecipientType type) throws Exception
@@ -430,19 +785,10 @@ public class MailServer implements IMailService, IServerPlugin
 			Properties properties = overrideProperties(settings, overrideProperties);
 			Session session = Session.getDefaultInstance(properties, null);
 			session.setDebug(Boolean.valueOf(settings.getProperty("mail.pop3.debug", "false")).booleanValue());
-			// -- Get hold of a POP3 message store, and connect to it --
-			store = session.getStore("pop3");
 			String host = properties.getProperty("mail.pop3.host");
 			Debug.trace("receiveMail: host=" + host + ", user=" + userName);
-			store.connect(host, userName, password);
-			// -- Try to get hold of the default folder --
-			folder = store.getDefaultFolder();
-			if (folder == null) throw new Exception("No default folder");
-			// -- ...and its INBOX --
-			folder = folder.getFolder("INBOX");
-			if (folder == null) throw new Exception("No POP3 INBOX found");
-			// -- Open the folder for read only --
-			folder.open(leaveMsgsOnServer ? Folder.READ_ONLY : Folder.READ_WRITE);
+			folder = openInbox(session, host, userName, password, leaveMsgsOnServer);
+			store = folder.getStore();
 			// -- Get the message wrappers and process them --
 			Message[] message = folder.getMessages();
 			if (recieveMode == IMailService.HEADERS_ONLY || onlyRecieveMsgWithSentDate != null)
@@ -459,7 +805,7 @@ public class MailServer implements IMailService, IServerPlugin
 				{
 					if (!onlyRecieveMsgWithSentDate.equals(msg.getSentDate())) continue;
 				}
-				retval[i] = MailServerUtils.createMailMessage(msg, recieveMode);
+				retval[i] = MailServerUtils.createMailMessage(msg, recieveMode, attachmentFileThreshold);
 				if (!leaveMsgsOnServer) msg.setFlag(Flags.Flag.DELETED, true);
 			}
 			return retval;
@@ -493,6 +839,174 @@ public class MailServer implements IMailService, IServerPlugin
 		return null;
 	}
 
+	public String openReceiveMail(String clientId, String userName, String password, boolean leaveMsgsOnServer, int recieveMode,
+		Date onlyRecieveMsgWithSentDate, String[] overrideProperties, boolean inOrder) throws RemoteException
+	{
+		if (!checkAccess(clientId)) return null;
+
+		ClassLoader saveCl = Thread.currentThread().getContextClassLoader();
+		try
+		{
+			Thread.currentThread().setContextClassLoader(javax.mail.Session.class.getClassLoader());
+			Session session = sessionCache.getSession(settings, overrideProperties);
+			String host = session.getProperty("mail.pop3.host");
+			Debug.trace("openReceiveMail: host=" + host + ", user=" + userName);
+			Folder folder = openInbox(session, host, userName, password, leaveMsgsOnServer);
+			return streamingReceiver.open(clientId, folder, !leaveMsgsOnServer, recieveMode, onlyRecieveMsgWithSentDate, inOrder);
+		}
+		catch (Exception ex)
+		{
+			Debug.error(ex);
+		}
+		finally
+		{
+			Thread.currentThread().setContextClassLoader(saveCl);
+		}
+		return null;
+	}
+
+	public MailMessage[] nextReceivedMail(String clientId, String receiveId, int[] processed, int max) throws RemoteException
+	{
+		if (!checkAccess(clientId)) return null;
+
+		try
+		{
+			MailMessage[] messages = streamingReceiver.next(clientId, receiveId, processed, max);
+			if (messages == null) Debug.error("Mail receive " + receiveId + " is not open, it is closed or expired");
+			return messages;
+		}
+		catch (Exception ex)
+		{
+			Debug.error(ex);
+		}
+		return null;
+	}
+
+	public boolean keepReceiveMailOpen(String clientId, String receiveId, int[] processed) throws RemoteException
+	{
+		if (!checkAccess(clientId)) return false;
+
+		try
+		{
+			return streamingReceiver.keepOpen(clientId, receiveId, processed);
+		}
+		catch (Exception ex)
+		{
+			Debug.error(ex);
+		}
+		return false;
+	}
+
+	public void closeReceiveMail(String clientId, String receiveId, int[] processed) throws RemoteException
+	{
+		if (!checkAccess(clientId)) return;
+
+		streamingReceiver.close(clientId, receiveId, processed);
+	}
+
+	/**
+	 * Opens the POP3 inbox, read only when the messages are left on the server. The store of the folder is open when this returns.
+	 */
+	private static Folder openInbox(Session session, String host, String userName, String password, boolean leaveMsgsOnServer) throws Exception
+	{
+		// -- Get hold of a POP3 message store, and connect to it --
+		Store store = session.getStore("pop3");
+		store.connect(host, userName, password);
+		try
+		{
+			// -- Try to get hold of the default folder --
+			Folder folder = store.getDefaultFolder();
+			if (folder == null) throw new Exception("No default folder");
+			// -- ...and its INBOX --
+			folder = folder.getFolder("INBOX");
+			if (folder == null) throw new Exception("No POP3 INBOX found");
+			// -- Open the folder for read only --
+			folder.open(leaveMsgsOnServer ? Folder.READ_ONLY : Folder.READ_WRITE);
+			return folder;
+		}
+		catch (Exception e)
+		{
+			store.close();
+			throw e;
+		}
+	}
+
+	public MailMessage[] receiveImapMail(String clientId, String userName, String password, String folderName, long uidValidity, long lastUid,
+		int recieveMode, String[] overrideProperties) throws RemoteException
+	{
+		if (!checkAccess(clientId)) return null;
+
+		ClassLoader saveCl = Thread.currentThread().getContextClassLoader();
+		try
+		{
+			Thread.currentThread().setContextClassLoader(javax.mail.Session.class.getClassLoader());
+			Session session = sessionCache.getSession(settings, overrideProperties);
+			Debug.trace("receiveImapMail: host=" + session.getProperty("mail.imap.host") + ", user=" + userName + ", folder=" + folderName);
+			return imapReceiver.receive(session, userName, password, folderName, uidValidity, lastUid, recieveMode);
+		}
+		catch (Exception ex)
+		{
+			Debug.error(ex);
+		}
+		finally
+		{
+			Thread.currentThread().setContextClassLoader(saveCl);
+		}
+		return null;
+	}
+
+	public MailMessage receiveImapMessage(String clientId, String userName, String password, String folderName, long uidValidity, long uid,
+		int recieveMode, String[] overrideProperties) throws RemoteException
+	{
+		if (!checkAccess(clientId)) return null;
+
+		ClassLoader saveCl = Thread.currentThread().getContextClassLoader();
+		try
+		{
+			Thread.currentThread().setContextClassLoader(javax.mail.Session.class.getClassLoader());
+			Session session = sessionCache.getSession(settings, overrideProperties);
+			return imapReceiver.receiveMessage(session, userName, password, folderName, uidValidity, uid, recieveMode);
+		}
+		catch (Exception ex)
+		{
+			Debug.error(ex);
+		}
+		finally
+		{
+			Thread.currentThread().setContextClassLoader(saveCl);
+		}
+		return null;
+	}
+
+	public String waitForImapMail(String clientId, String userName, String password, String folderName, long lastUid, long timeout,
+		String[] overrideProperties) throws RemoteException, Exception
+	{
+		if (!checkAccess(clientId)) return null;
+
+		ClassLoader saveCl = Thread.currentThread().getContextClassLoader();
+		try
+		{
+			Thread.currentThread().setContextClassLoader(javax.mail.Session.class.getClassLoader());
+			Session session = sessionCache.getSession(settings, overrideProperties);
+			return imapReceiver.startWait(clientId, session, userName, password, folderName, lastUid, timeout);
+		}
+		catch (Exception ex)
+		{
+			Debug.error("waitForImapMail " + ex.getMessage(), ex);
+			throw new Exception(ex.getMessage()); //not all exceptions are serializable
+		}
+		finally
+		{
+			Thread.currentThread().setContextClassLoader(saveCl);
+		}
+	}
+
+	public Boolean[] getImapMailWaitResults(String clientId, String[] ids) throws RemoteException
+	{
+		if (!checkAccess(clientId) || imapReceiver == null || ids == null) return null;
+		return imapReceiver.getWaitResults(clientId, ids);
+	}
+
 	/*
 	 * @see IPlugin#getPreferencePanels()
 	 */
@@ -542,7 +1056,7 @@ public class MailServer implements IMailService, IServerPlugin
 			MailMessage sm = null;
 			try
 			{
-				if (mm != null) sm = MailServerUtils.createMailMessage(mm, IMailService.FULL);
+				if (mm != null) sm = MailServerUtils.createMailMessage(mm, IMailService.FULL, attachmentFileThreshold);
 			}
 			catch (Exception e)
 			{
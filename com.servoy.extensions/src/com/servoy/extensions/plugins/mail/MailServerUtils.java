@@ -18,9 +18,12 @@ package com.servoy.extensions.plugins.mail;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.Enumeration;
 import java.util.StringTokenizer;
@@ -44,7 +47,20 @@ import com.servoy.j2db.util.Utils;
  */
 public class MailServerUtils
 {
+	/**
+	 * Attachments above this size are stored in a temporary file instead of in memory.
+	 */
+	public static final long DEFAULT_ATTACHMENT_FILE_THRESHOLD = 1024 * 1024;
+
 	public static MailMessage createMailMessage(Message m, int receiveMode) throws MessagingException, IOException
+	{
+		return createMailMessage(m, receiveMode, DEFAULT_ATTACHMENT_FILE_THRESHOLD);
+	}
+
+	/**
+	 * @param attachmentFileThreshold the size above which an attachment is streamed to a temporary file instead of held in memory
+	 */
+	public static MailMessage createMailMessage(Message m, int receiveMode, long attachmentFileThreshold) throws MessagingException, IOException
 	{
 		MailMessage mm = new MailMessage();
 		if (m != null)
@@ -118,7 +134,7 @@ public class MailServerUtils
 			{
 				try
 				{
-					handlePart(mm, m, receiveMode);
+					handlePart(mm, m, receiveMode, attachmentFileThreshold);
 				}
 				catch (Exception e)
 				{
@@ -129,19 +145,19 @@ public class MailServerUtils
 		return mm;
 	}
 
-	private static void handleContent(MailMessage mm, Object content, int receiveMode) throws MessagingException, IOException
+	private static void handleContent(MailMessage mm, Object content, int receiveMode, long attachmentFileThreshold) throws MessagingException, IOException
 	{
 		if (content instanceof Multipart)
 		{
 			Multipart multi = (Multipart)content;
 			for (int i = 0; i < multi.getCount(); i++)
 			{
-				handlePart(mm, multi.getBodyPart(i), receiveMode);
+				handlePart(mm, multi.getBodyPart(i), receiveMode, attachmentFileThreshold);
 			}
 		}
 		else if (content instanceof BodyPart)
 		{
-			handlePart(mm, (Part)content, receiveMode);
+			handlePart(mm, (Part)content, receiveMode, attachmentFileThreshold);
 		}
 		else
 		{
@@ -149,7 +165,7 @@ public class MailServerUtils
 		}
 	}
 
-	private static void handlePart(MailMessage mm, Part messagePart, int receiveMode) throws MessagingException, IOException
+	private static void handlePart(MailMessage mm, Part messagePart, int receiveMode, long attachmentFileThreshold) throws MessagingException, IOException
 	{
 		// -- Get the content type --
 		String contentType = messagePart.getContentType();
@@ -172,12 +188,12 @@ public class MailServerUtils
 		}
 		else if (contentType.startsWith("multipart")) //$NON-NLS-1$
 		{
-			handleContent(mm, messagePart.getContent(), receiveMode);
+			handleContent(mm, messagePart.getContent(), receiveMode, attachmentFileThreshold);
 			return;
 		}
 		if (receiveMode != IMailService.NO_ATTACHMENTS)
 		{
-			mm.addAttachment(createAttachment(messagePart));
+			mm.addAttachment(createAttachment(messagePart, attachmentFileThreshold));
 		}
 	}
 
@@ -235,16 +251,46 @@ public class MailServerUtils
 		return false;
 	}
 
-	private static Attachment createAttachment(Part messagePart) throws MessagingException, IOException
+	private static Attachment createAttachment(Part messagePart, long fileThreshold) throws MessagingException, IOException
 	{
-		InputStream is = messagePart.getInputStream();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		Utils.streamCopy(is, baos);
-		is.close();
 		// currenty seems to be enough for deconding attachment file name;
 		// we might have to use Normalizer.normalize(decoded, Normalizer.Form.NFC) in the future
-		return new Attachment(messagePart.getFileName() != null ? MimeUtility.decodeText(messagePart.getFileName()) : null, baos.toByteArray(),
-			isAttachmentEmbedded(messagePart));
+		String name = messagePart.getFileName() != null ? MimeUtility.decodeText(messagePart.getFileName()) : null;
+		boolean embedded = isAttachmentEmbedded(messagePart);
+
+		InputStream is = messagePart.getInputStream();
+		try
+		{
+			// read in memory until the threshold, a bigger attachment is streamed to a file
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = is.read(buffer)) != -1)
+			{
+				baos.write(buffer, 0, read);
+				if (baos.size() > fileThreshold)
+				{
+					File file = Attachment.createTempFile();
+					try (OutputStream os = new FileOutputStream(file))
+					{
+						baos.writeTo(os);
+						baos = null;
+						Utils.streamCopy(is, os);
+					}
+					catch (IOException e)
+					{
+						file.delete();
+						throw e;
+					}
+					return Attachment.createTemporary(name, file, null, embedded);
+				}
+			}
+			return new Attachment(name, baos.toByteArray(), embedded);
+		}
+		finally
+		{
+			is.close();
+		}
 	}
 
 	public static String createAddressString(Address[] addresses)
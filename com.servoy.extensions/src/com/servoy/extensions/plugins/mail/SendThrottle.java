@@ -0,0 +1,59 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.plugins.mail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of mails per second that are sent to one SMTP host.<br/>
+ * Every send reserves the next free slot of its host and waits for it, so sends to a host are spread evenly,
+ * also when they come from multiple threads.
+ *
+ * @author jblok
+ */
+final class SendThrottle
+{
+	private final long interval;
+	private final Map<String, Long> nextSlots = new HashMap<String, Long>();
+
+	/**
+	 * @param messagesPerSecond the maximum rate per host, 0 or less for no limit
+	 */
+	SendThrottle(double messagesPerSecond)
+	{
+		interval = messagesPerSecond > 0 ? (long)(TimeUnit.SECONDS.toNanos(1) / messagesPerSecond) : 0;
+	}
+
+	/**
+	 * Waits until a mail may be sent to the host.
+	 */
+	void acquire(String host) throws InterruptedException
+	{
+		if (interval == 0) return;
+		long now = System.nanoTime();
+		long slot;
+		synchronized (nextSlots)
+		{
+			Long next = nextSlots.get(host);
+			slot = next == null ? now : Math.max(now, next.longValue());
+			nextSlots.put(host, Long.valueOf(slot + interval));
+		}
+		if (slot > now) TimeUnit.NANOSECONDS.sleep(slot - now);
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.plugins.mail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.mail.Authenticator;
+import javax.mail.Session;
+
+/**
+ * Cache of mail sessions, so a session (and the provider lookup it does) is not created again for every mail.<br/>
+ * Sessions are cached by the effective mail properties: the mail.* server settings with the override properties of the call applied.
+ * A cached session has its own copy of those properties, a change of the server settings results in a new session.
+ * The least recently used session is dropped when the cache is full.
+ *
+ * @author jblok
+ */
+@SuppressWarnings("nls")
+final class SessionCache
+{
+	interface AuthenticatorFactory
+	{
+		Authenticator create(Properties properties);
+	}
+
+	private static final int MAX_SESSIONS = 64;
+
+	private final AuthenticatorFactory authenticatorFactory;
+	private final Map<SortedMap<String, String>, Session> sessions = new LinkedHashMap<SortedMap<String, String>, Session>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Entry<SortedMap<String, String>, Session> eldest)
+		{
+			return size() > MAX_SESSIONS;
+		}
+	};
+
+	SessionCache(AuthenticatorFactory authenticatorFactory)
+	{
+		this.authenticatorFactory = authenticatorFactory;
+	}
+
+	/**
+	 * @return the session for the settings with the override properties (key=value strings) applied, its properties are the effective properties
+	 */
+	Session getSession(Properties settings, String[] overrideProperties)
+	{
+		SortedMap<String, String> key = new TreeMap<String, String>();
+		for (String name : settings.stringPropertyNames())
+		{
+			if (name.startsWith("mail.")) key.put(name, settings.getProperty(name));
+		}
+		if (overrideProperties != null)
+		{
+			for (String property : overrideProperties)
+			{
+				int j = property != null ? property.indexOf('=') : -1;
+				if (j > 0)
+				{
+					key.put(property.substring(0, j), property.substring(j + 1));
+				}
+			}
+		}
+
+		synchronized (sessions)
+		{
+			Session session = sessions.get(key);
+			if (session == null)
+			{
+				Properties properties = new Properties();
+				properties.putAll(key);
+				session = Session.getInstance(properties, authenticatorFactory.create(properties));
+				sessions.put(key, session);
+			}
+			return session;
+		}
+	}
+
+	void clear()
+	{
+		synchronized (sessions)
+		{
+			sessions.clear();
+		}
+	}
+}
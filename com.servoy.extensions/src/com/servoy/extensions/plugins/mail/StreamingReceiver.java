@@ -0,0 +1,369 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.plugins.mail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import com.servoy.extensions.plugins.mail.client.MailMessage;
+import com.servoy.j2db.util.Debug;
+
+/**
+ * Receives the messages of an open folder one by one instead of as one array.<br/>
+ * The messages are converted to {@link MailMessage} objects on a bounded pool, a receive only has a few conversions running ahead of
+ * what the client took, so a big mailbox is never in memory as a whole. The client takes the converted messages in batches,
+ * in folder order or in the order they are ready. A message is only flagged as deleted when the client reports it as processed,
+ * the deleted messages are expunged when the receive is closed. A receive that the client doesn't touch anymore is closed after a while,
+ * a client that takes long to process a batch keeps its receive open with {@link #keepOpen(String, String, int[])}.<br/>
+ * A POP3 folder serialises all access to its connection, so the messages are downloaded one after the other; only the MIME parsing
+ * of the downloaded messages runs in parallel, more threads than a few don't make a receive faster.
+ *
+ * @author jblok
+ */
+@SuppressWarnings("nls")
+final class StreamingReceiver
+{
+	private static final long MAX_IDLE_TIME = TimeUnit.MINUTES.toMillis(10);
+	private static final MailMessage[] NO_MESSAGES = new MailMessage[0];
+
+	private final ThreadPoolExecutor executor;
+	private final int window;
+	private final long attachmentFileThreshold;
+	private final Map<String, Receive> receives = new ConcurrentHashMap<String, Receive>();
+	private final Timer expirer = new Timer("Mail server receive expirer", true);
+
+	StreamingReceiver(int threads, long attachmentFileThreshold)
+	{
+		this.attachmentFileThreshold = attachmentFileThreshold;
+		this.window = threads * 2;
+		AtomicInteger counter = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+			Thread thread = new Thread(runnable, "Mail server receiver " + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.allowCoreThreadTimeOut(true);
+		expirer.schedule(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				expire();
+			}
+		}, MAX_IDLE_TIME / 10, MAX_IDLE_TIME / 10);
+	}
+
+	/**
+	 * Starts receiving the messages of the folder, the receive owns the folder and closes it (and its store).
+	 *
+	 * @param deleteProcessed if the processed messages must be deleted from the folder, the folder must be opened read write then
+	 * @param inOrder if the messages must be returned in folder order, otherwise they are returned as soon as they are converted
+	 * @return the id of the receive
+	 */
+	String open(String clientId, Folder folder, boolean deleteProcessed, int receiveMode, Date onlyReceiveMsgWithSentDate, boolean inOrder)
+		throws MessagingException
+	{
+		try
+		{
+			Message[] messages = folder.getMessages();
+			if (receiveMode == IMailService.HEADERS_ONLY || onlyReceiveMsgWithSentDate != null)
+			{
+				FetchProfile fp = new FetchProfile();
+				fp.add(FetchProfile.Item.ENVELOPE);
+				folder.fetch(messages, fp);
+			}
+			Receive receive = new Receive(clientId, folder, messages, deleteProcessed, receiveMode, onlyReceiveMsgWithSentDate, inOrder);
+			String id = UUID.randomUUID().toString();
+			receives.put(id, receive);
+			synchronized (receive)
+			{
+				receive.fill();
+			}
+			return id;
+		}
+		catch (MessagingException | RuntimeException e)
+		{
+			close(folder, false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Flags the processed messages as deleted (if the receive deletes them) and returns the next converted messages.
+	 * Waits until at least one message is converted.
+	 *
+	 * @param processed the message numbers of the messages the client processed since the last call
+	 * @return at most max messages, an empty array when all messages are returned, null when the receive is not open (anymore)
+	 */
+	MailMessage[] next(String clientId, String id, int[] processed, int max) throws MessagingException, InterruptedException
+	{
+		Receive receive = get(clientId, id);
+		if (receive == null) return null;
+		synchronized (receive)
+		{
+			receive.lastAccess = System.currentTimeMillis();
+			try
+			{
+				receive.markProcessed(processed);
+				return receive.next(Math.max(1, max));
+			}
+			finally
+			{
+				receive.lastAccess = System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * Flags the processed messages as deleted (if the receive deletes them) and keeps the receive from expiring while the client processes a batch.
+	 *
+	 * @return false when the receive is not open (anymore)
+	 */
+	boolean keepOpen(String clientId, String id, int[] processed) throws MessagingException
+	{
+		Receive receive = get(clientId, id);
+		if (receive == null) return false;
+		synchronized (receive)
+		{
+			receive.lastAccess = System.currentTimeMillis();
+			receive.markProcessed(processed);
+			return !receive.closed;
+		}
+	}
+
+	/**
+	 * Flags the processed messages as deleted (if the receive deletes them) and closes the receive, this expunges the deleted messages.
+	 */
+	void close(String clientId, String id, int[] processed)
+	{
+		Receive receive = get(clientId, id);
+		if (receive != null && receives.remove(id) != null)
+		{
+			synchronized (receive)
+			{
+				try
+				{
+					receive.markProcessed(processed);
+				}
+				catch (MessagingException e)
+				{
+					Debug.error("Can't delete the processed messages of receive " + id, e);
+				}
+				receive.close();
+			}
+		}
+	}
+
+	void close()
+	{
+		expirer.cancel();
+		Iterator<Receive> it = receives.values().iterator();
+		while (it.hasNext())
+		{
+			Receive receive = it.next();
+			it.remove();
+			receive.close();
+		}
+		executor.shutdownNow();
+	}
+
+	private Receive get(String clientId, String id)
+	{
+		Receive receive = id != null ? receives.get(id) : null;
+		return receive != null && receive.clientId.equals(clientId) ? receive : null;
+	}
+
+	private void expire()
+	{
+		long expired = System.currentTimeMillis() - MAX_IDLE_TIME;
+		for (Map.Entry<String, Receive> entry : receives.entrySet())
+		{
+			Receive receive = entry.getValue();
+			if (receive.lastAccess < expired && receives.remove(entry.getKey(), receive))
+			{
+				Debug.warn("Mail receive " + entry.getKey() + " was not used for " + MAX_IDLE_TIME / 1000 + "s, closing it");
+				synchronized (receive)
+				{
+					receive.close();
+				}
+			}
+		}
+	}
+
+	private static void close(Folder folder, boolean expunge)
+	{
+		try
+		{
+			if (folder.isOpen()) folder.close(expunge);
+		}
+		catch (Exception e)
+		{
+			Debug.error(e);
+		}
+		try
+		{
+			folder.getStore().close();
+		}
+		catch (Exception e)
+		{
+			Debug.error(e);
+		}
+	}
+
+	private class Receive
+	{
+		final String clientId;
+		final Folder folder;
+		final Message[] messages;
+		final boolean deleteProcessed;
+		final int receiveMode;
+		final Date onlyReceiveMsgWithSentDate;
+		final boolean inOrder;
+
+		// in order the futures are taken from the deque, otherwise from the completion service as they complete
+		final Deque<Future<MailMessage>> submitted = new ArrayDeque<Future<MailMessage>>();
+		final ExecutorCompletionService<MailMessage> completed = new ExecutorCompletionService<MailMessage>(executor);
+		int nextMessage;
+		int outstanding;
+		volatile boolean closed;
+		volatile long lastAccess = System.currentTimeMillis();
+
+		Receive(String clientId, Folder folder, Message[] messages, boolean deleteProcessed, int receiveMode, Date onlyReceiveMsgWithSentDate,
+			boolean inOrder)
+		{
+			this.clientId = clientId;
+			this.folder = folder;
+			this.messages = messages;
+			this.deleteProcessed = deleteProcessed;
+			this.receiveMode = receiveMode;
+			this.onlyReceiveMsgWithSentDate = onlyReceiveMsgWithSentDate;
+			this.inOrder = inOrder;
+		}
+
+		/**
+		 * Submits conversions until the window is full or all messages are submitted.
+		 */
+		void fill()
+		{
+			while (outstanding < window && nextMessage < messages.length)
+			{
+				final Message message = messages[nextMessage++];
+				if (inOrder)
+				{
+					submitted.add(executor.submit(() -> convert(message)));
+				}
+				else
+				{
+					completed.submit(() -> convert(message));
+				}
+				outstanding++;
+			}
+		}
+
+		MailMessage[] next(int max) throws InterruptedException
+		{
+			List<MailMessage> result = new ArrayList<MailMessage>();
+			while (result.size() < max && outstanding > 0)
+			{
+				Future<MailMessage> future;
+				if (inOrder)
+				{
+					future = (result.isEmpty() || submitted.peek().isDone()) ? submitted.poll() : null;
+				}
+				else
+				{
+					future = result.isEmpty() ? completed.take() : completed.poll();
+				}
+				if (future == null) break;
+				outstanding--;
+				try
+				{
+					MailMessage mm = future.get();
+					if (mm != null) result.add(mm);
+				}
+				catch (ExecutionException e)
+				{
+					// the message is skipped, it is not deleted because it is never processed
+					Debug.error("Can't receive a mail message", e.getCause());
+				}
+				fill();
+			}
+			return result.isEmpty() ? NO_MESSAGES : result.toArray(new MailMessage[result.size()]);
+		}
+
+		void markProcessed(int[] processed) throws MessagingException
+		{
+			if (!deleteProcessed || processed == null || closed) return;
+			for (int messageNumber : processed)
+			{
+				if (messageNumber > 0) folder.getMessage(messageNumber).setFlag(Flags.Flag.DELETED, true);
+			}
+		}
+
+		void close()
+		{
+			if (closed) return;
+			closed = true;
+			for (Future<MailMessage> future : submitted)
+			{
+				future.cancel(false);
+			}
+			StreamingReceiver.close(folder, deleteProcessed);
+		}
+
+		private MailMessage convert(Message message) throws Exception
+		{
+			if (closed) return null;
+			if (onlyReceiveMsgWithSentDate != null && !onlyReceiveMsgWithSentDate.equals(message.getSentDate())) return null;
+
+			ClassLoader saveCl = Thread.currentThread().getContextClassLoader();
+			try
+			{
+				Thread.currentThread().setContextClassLoader(javax.mail.Session.class.getClassLoader());
+				MailMessage mm = MailServerUtils.createMailMessage(message, receiveMode, attachmentFileThreshold);
+				mm.messageNumber = message.getMessageNumber();
+				return mm;
+			}
+			finally
+			{
+				Thread.currentThread().setContextClassLoader(saveCl);
+			}
+		}
+	}
+}
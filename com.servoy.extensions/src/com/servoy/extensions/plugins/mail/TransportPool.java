@@ -0,0 +1,248 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.plugins.mail;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import com.servoy.j2db.util.Debug;
+import com.servoy.j2db.util.Utils;
+
+/**
+ * Pool of connected SMTP transports, so sending multiple mails to the same server doesn't connect, do the TLS handshake and authenticate for every mail.<br/>
+ * Transports are pooled by the full set of effective mail properties, a transport is bound to the session that created it,
+ * so a send only gets a transport that was created with exactly the same settings (from address, timeouts, auth mechanisms, ...).
+ * A pooled transport is used by one send at a time.
+ * A transport that was idle for a while is checked with a NOOP before it is used again, idle transports are closed after the max idle time
+ * and a transport is closed after it sent the max number of messages.
+ *
+ * @author jblok
+ */
+@SuppressWarnings("nls")
+final class TransportPool
+{
+	static final String POOL_ENABLE = "mail.smtp.pool.enable";
+	static final String POOL_MAX_IDLE_TIME = "mail.smtp.pool.maxIdleTime";
+	static final String POOL_MAX_MESSAGES = "mail.smtp.pool.maxMessages";
+	static final String POOL_MAX_IDLE_CONNECTIONS = "mail.smtp.pool.maxIdleConnections";
+
+	// a transport that was used this recently is assumed to be still connected, no NOOP round trip for every mail in a burst
+	private static final long VALIDATE_AFTER_IDLE = 2000;
+
+	private final long maxIdleTime;
+	private final int maxMessages;
+	private final int maxIdleConnections;
+	private final Map<SortedMap<String, String>, Deque<PooledTransport>> idle = new HashMap<SortedMap<String, String>, Deque<PooledTransport>>();
+	private final Timer evictor;
+	private boolean closed;
+
+	TransportPool(Properties settings)
+	{
+		maxIdleTime = Math.max(1000, Utils.getAsLong(settings.getProperty(POOL_MAX_IDLE_TIME, "30000")));
+		maxMessages = Math.max(1, Utils.getAsInteger(settings.getProperty(POOL_MAX_MESSAGES, "100")));
+		maxIdleConnections = Math.max(1, Utils.getAsInteger(settings.getProperty(POOL_MAX_IDLE_CONNECTIONS, "4")));
+		evictor = new Timer("Mail server transport pool evictor", true);
+		evictor.schedule(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				evictIdle();
+			}
+		}, maxIdleTime, maxIdleTime);
+	}
+
+	/**
+	 * Sends the message over a pooled transport, like {@link Transport#send(javax.mail.Message)} does over a new connection.
+	 * When pooling is disabled in the properties the message is sent with {@link Transport#send(javax.mail.Message)}.
+	 *
+	 * @param session the session the message was created with, a new transport is created from it
+	 * @param properties the effective properties of the session
+	 */
+	void send(Session session, Properties properties, MimeMessage message) throws MessagingException
+	{
+		if (!Boolean.valueOf(properties.getProperty(POOL_ENABLE, "true")).booleanValue())
+		{
+			Transport.send(message);
+			return;
+		}
+
+		message.saveChanges();
+		Address[] recipients = message.getAllRecipients();
+		if (recipients == null || recipients.length == 0)
+		{
+			throw new SendFailedException("No recipient addresses");
+		}
+
+		SortedMap<String, String> key = createKey(properties);
+		PooledTransport pooled = borrow(key);
+		if (pooled == null)
+		{
+			Transport transport = session.getTransport(recipients[0]);
+			transport.connect();
+			pooled = new PooledTransport(transport);
+		}
+
+		boolean reusable = false;
+		try
+		{
+			pooled.transport.sendMessage(message, recipients);
+			pooled.sent++;
+			reusable = pooled.sent < maxMessages;
+		}
+		finally
+		{
+			// after any error the state of the connection is unknown, it is not given back to the pool
+			if (reusable)
+			{
+				giveBack(key, pooled);
+			}
+			else
+			{
+				pooled.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes all idle transports and stops the evictor, transports that are in use are closed when they are given back.
+	 */
+	synchronized void close()
+	{
+		closed = true;
+		evictor.cancel();
+		for (Deque<PooledTransport> transports : idle.values())
+		{
+			for (PooledTransport pooled : transports)
+			{
+				pooled.close();
+			}
+		}
+		idle.clear();
+	}
+
+	private PooledTransport borrow(SortedMap<String, String> key)
+	{
+		while (true)
+		{
+			PooledTransport pooled;
+			synchronized (this)
+			{
+				Deque<PooledTransport> transports = idle.get(key);
+				pooled = transports != null ? transports.pollFirst() : null;
+			}
+			if (pooled == null) return null;
+			// isConnected() of the SMTP transport sends a NOOP
+			if (System.currentTimeMillis() - pooled.lastUsed < VALIDATE_AFTER_IDLE || pooled.transport.isConnected())
+			{
+				return pooled;
+			}
+			pooled.close();
+		}
+	}
+
+	private void giveBack(SortedMap<String, String> key, PooledTransport pooled)
+	{
+		pooled.lastUsed = System.currentTimeMillis();
+		synchronized (this)
+		{
+			if (!closed)
+			{
+				Deque<PooledTransport> transports = idle.get(key);
+				if (transports == null)
+				{
+					transports = new ArrayDeque<PooledTransport>();
+					idle.put(key, transports);
+				}
+				if (transports.size() < maxIdleConnections)
+				{
+					// most recently used first, so the surplus at the end times out
+					transports.addFirst(pooled);
+					return;
+				}
+			}
+		}
+		pooled.close();
+	}
+
+	private void evictIdle()
+	{
+		long expired = System.currentTimeMillis() - maxIdleTime;
+		synchronized (this)
+		{
+			Iterator<Deque<PooledTransport>> it = idle.values().iterator();
+			while (it.hasNext())
+			{
+				Deque<PooledTransport> transports = it.next();
+				while (!transports.isEmpty() && transports.peekLast().lastUsed < expired)
+				{
+					transports.pollLast().close();
+				}
+				if (transports.isEmpty()) it.remove();
+			}
+		}
+	}
+
+	private static SortedMap<String, String> createKey(Properties properties)
+	{
+		SortedMap<String, String> key = new TreeMap<String, String>();
+		for (String name : properties.stringPropertyNames())
+		{
+			key.put(name, properties.getProperty(name));
+		}
+		return key;
+	}
+
+	private static class PooledTransport
+	{
+		final Transport transport;
+		int sent;
+		long lastUsed;
+
+		PooledTransport(Transport transport)
+		{
+			this.transport = transport;
+		}
+
+		void close()
+		{
+			try
+			{
+				transport.close();
+			}
+			catch (MessagingException e)
+			{
+				Debug.trace("Error closing pooled mail transport", e);
+			}
+		}
+	}
+}
@@ -16,14 +16,34 @@
  */
 package com.servoy.extensions.plugins.mail.client;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.ref.Cleaner;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import com.servoy.j2db.documentation.ServoyDocumented;
+import com.servoy.j2db.plugins.IFile;
 import com.servoy.j2db.scripting.IJavaScriptType;
+import com.servoy.j2db.util.Debug;
 import com.servoy.j2db.util.MimeTypes;
 
 /**
  * E-mail attachment object.
+ * The data is held in memory or in a file, a file is streamed when the mail is sent and when the attachment is serialized.
+ * A deserialized file attachment gets its own temporary file that is deleted when the attachment is garbage collected,
+ * temporary files that are left behind by a stopped JVM are deleted when the mail server starts.
  * @author jblok
  */
 @ServoyDocumented(scriptingName = "Attachment")
@@ -32,8 +52,14 @@ public class Attachment implements Serializable, IJavaScriptType
 	private final String name;
 	private String mimeType;
 	private final byte[] data;
+	private transient File file;
 	private boolean embedded;
 
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Cleaner tempFileCleaner = Cleaner.create();
+	private static final String TEMP_FOLDER_NAME = "servoy_mail_attachments"; //$NON-NLS-1$
+	private static final long TEMP_FILE_EXPIRATION = TimeUnit.DAYS.toMillis(1);
+
 	public Attachment()
 	{
 		//for developer script introspection only
@@ -68,6 +94,43 @@ public class Attachment implements Serializable, IJavaScriptType
 		}
 	}
 
+	/**
+	 * Creates an attachment that streams its data from the file instead of holding it in memory.
+	 */
+	public Attachment(String name, File file, String mimeType, boolean embedded)
+	{
+		this.name = name;
+		this.mimeType = mimeType;
+		this.data = null;
+		this.file = file;
+		this.embedded = embedded;
+
+		if (mimeType == null)
+		{
+			// only the start of the file is needed to guess the type
+			byte[] start = new byte[(int)Math.min(256, file.length())];
+			try (InputStream is = new FileInputStream(file))
+			{
+				int read = is.read(start);
+				if (read > 0) this.mimeType = MimeTypes.getContentType(read == start.length ? start : Arrays.copyOf(start, read), name);
+			}
+			catch (IOException e)
+			{
+				Debug.error(e);
+			}
+		}
+	}
+
+	/**
+	 * Creates a file attachment over a temporary file, which is deleted when this attachment is garbage collected.
+	 */
+	public static Attachment createTemporary(String name, File tempFile, String mimeType, boolean embedded)
+	{
+		Attachment attachment = new Attachment(name, tempFile, mimeType, embedded);
+		attachment.deleteWhenCollected();
+		return attachment;
+	}
+
 	/**
 	 * Returns a byte array with the content of this attachment.
 	 *
@@ -98,6 +161,85 @@ public class Attachment implements Serializable, IJavaScriptType
 		return getData();
 	}
 
+	/**
+	 * Returns the size in bytes of the content of this attachment.
+	 *
+	 * @sample
+	 * var attachment = msg.getAttachments()[0];
+	 * if (attachment.getSize() > 10 * 1024 * 1024)
+	 * {
+	 * 	// big attachments are held in a file, copy it without loading it in memory
+	 * 	attachment.saveTo('/data/attachments/' + attachment.getName());
+	 * }
+	 * else
+	 * {
+	 * 	plugins.file.writeFile('/data/attachments/' + attachment.getName(), attachment.getData());
+	 * }
+	 */
+	public long js_getSize()
+	{
+		return getSize();
+	}
+
+	/**
+	 * Returns the path of the file that holds the content of this attachment, null if the content is held in memory.
+	 * Received attachments above the size threshold of the server are held in temporary files,
+	 * such a file is deleted as soon as the attachment itself is not referenced anymore, also when the path is still used.
+	 * So keep a reference to the attachment for as long as the file is used, or copy the content with saveTo.
+	 *
+	 * @sample
+	 * var attachment = msg.getAttachments()[0];
+	 * // the attachment variable keeps the temporary file while it is read
+	 * var path = attachment.getFilePath();
+	 * if (path != null) application.output('first line: ' + plugins.file.readTXTFile(path).split('\n')[0]);
+	 */
+	public String js_getFilePath()
+	{
+		return file != null ? file.getAbsolutePath() : null;
+	}
+
+	/**
+	 * Saves the content of this attachment to a file, a file attachment is copied without loading it in memory.
+	 * Unlike the temporary file of getFilePath, the saved file is not deleted when the attachment is not used anymore.
+	 *
+	 * @sampleas js_getSize()
+	 *
+	 * @param file a JSFile or the path of the file to save to, an existing file is overwritten
+	 *
+	 * @return true if the content is saved
+	 */
+	public boolean js_saveTo(Object file)
+	{
+		File target = null;
+		if (file instanceof IFile)
+		{
+			target = ((IFile)file).getFile();
+		}
+		else if (file instanceof File)
+		{
+			target = (File)file;
+		}
+		else if (file instanceof String)
+		{
+			target = new File((String)file);
+		}
+		if (target == null || target.isDirectory())
+		{
+			Debug.error("Can't save attachment " + name + ", not a file: " + file); //$NON-NLS-1$ //$NON-NLS-2$
+			return false;
+		}
+		try (InputStream is = getInputStream())
+		{
+			Files.copy(is, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		}
+		catch (IOException e)
+		{
+			Debug.error("Can't save attachment " + name + " to " + target, e); //$NON-NLS-1$ //$NON-NLS-2$
+			return false;
+		}
+	}
+
 	/**
 	 * Returns the name of this attachment.
 	 *
@@ -129,11 +271,48 @@ public class Attachment implements Serializable, IJavaScriptType
 		return isEmbedded();
 	}
 
+	/**
+	 * Returns the content, the content of a file attachment is read in memory.
+	 */
 	public byte[] getData()
 	{
+		if (data == null && file != null)
+		{
+			try
+			{
+				return Files.readAllBytes(file.toPath());
+			}
+			catch (IOException e)
+			{
+				Debug.error("Can't read attachment " + name + " from " + file, e); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
 		return data;
 	}
 
+	/**
+	 * Returns a new stream over the content, without reading the content of a file attachment in memory.
+	 */
+	public InputStream getInputStream() throws IOException
+	{
+		if (data == null && file != null) return new FileInputStream(file);
+		return new ByteArrayInputStream(data != null ? data : new byte[0]);
+	}
+
+	public long getSize()
+	{
+		if (data == null && file != null) return file.length();
+		return data != null ? data.length : 0;
+	}
+
+	/**
+	 * @return the file of a file attachment, null if the content is in memory
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
 	public String getName()
 	{
 		return name;
@@ -166,7 +345,7 @@ public class Attachment implements Serializable, IJavaScriptType
 		sb.append(getMimeType());
 		sb.append("\n"); //$NON-NLS-1$
 		sb.append("datalength: "); //$NON-NLS-1$
-		sb.append((getData() != null ? getData().length : 0));
+		sb.append(getSize());
 		sb.append("\n"); //$NON-NLS-1$
 		sb.append("embedded: ");
 		sb.append(embedded);
@@ -174,4 +353,85 @@ public class Attachment implements Serializable, IJavaScriptType
 		return sb.toString();
 	}
 
+	private void deleteWhenCollected()
+	{
+		final File tempFile = file;
+		tempFileCleaner.register(this, () -> tempFile.delete());
+	}
+
+	/**
+	 * Creates a temporary file for the content of an attachment, in a folder of the system temp folder that is cleaned when the mail server starts.
+	 */
+	public static File createTempFile() throws IOException
+	{
+		File folder = new File(System.getProperty("java.io.tmpdir"), TEMP_FOLDER_NAME); //$NON-NLS-1$
+		folder.mkdirs();
+		return File.createTempFile("servoy_mail_attachment", ".tmp", folder); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Deletes the temporary attachment files that a previous run left behind, because it stopped before the attachments were collected.
+	 * Only files older than a day are deleted, the newer ones can still be in use by another server or client on this machine.
+	 */
+	public static void deleteExpiredTempFiles()
+	{
+		File[] files = new File(System.getProperty("java.io.tmpdir"), TEMP_FOLDER_NAME).listFiles(); //$NON-NLS-1$
+		if (files == null) return;
+		long expired = System.currentTimeMillis() - TEMP_FILE_EXPIRATION;
+		for (File tempFile : files)
+		{
+			if (tempFile.isFile() && tempFile.lastModified() < expired && !tempFile.delete())
+			{
+				Debug.trace("Can't delete the expired attachment file " + tempFile); //$NON-NLS-1$
+			}
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		if (data == null && file != null)
+		{
+			// stream the file in chunks, so it is never in memory as a whole
+			long length = file.length();
+			out.writeLong(length);
+			try (InputStream is = new FileInputStream(file))
+			{
+				copy(is, out, length);
+			}
+		}
+		else
+		{
+			out.writeLong(-1);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		long length = in.readLong();
+		if (length >= 0)
+		{
+			file = createTempFile();
+			deleteWhenCollected();
+			try (OutputStream os = new FileOutputStream(file))
+			{
+				copy(in, os, length);
+			}
+		}
+	}
+
+	private static void copy(InputStream is, OutputStream os, long length) throws IOException
+	{
+		byte[] buffer = new byte[(int)Math.min(BUFFER_SIZE, Math.max(1, length))];
+		long remaining = length;
+		while (remaining > 0)
+		{
+			int read = is.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+			if (read == -1) throw new EOFException("Attachment content is shorter than " + length + " bytes"); //$NON-NLS-1$ //$NON-NLS-2$
+			os.write(buffer, 0, read);
+			remaining -= read;
+		}
+	}
+
 }
@@ -0,0 +1,160 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.plugins.mail.client;
+
+import java.io.Serializable;
+
+import com.servoy.j2db.documentation.ServoyDocumented;
+import com.servoy.j2db.scripting.IJavaScriptType;
+
+/**
+ * One mail of a batch that is sent with plugins.mail.sendBatch().
+ * @author jblok
+ */
+@ServoyDocumented(scriptingName = "MailJob")
+public class MailJob implements Serializable, IJavaScriptType
+{
+	private final String to;
+	private final String from;
+	private final String subject;
+	private final String msgText;
+	private final String cc;
+	private final String bcc;
+	private final Attachment[] attachments;
+	private final String[] overrideProperties;
+	private boolean bulk;
+
+	public MailJob()
+	{
+		//for developer script introspection only
+		this(null, null, null, null, null, null, null, null);
+	}
+
+	public MailJob(String to, String from, String subject, String msgText, String cc, String bcc, Attachment[] attachments, String[] overrideProperties)
+	{
+		this.to = to;
+		this.from = from;
+		this.subject = subject;
+		this.msgText = msgText;
+		this.cc = cc;
+		this.bcc = bcc;
+		this.attachments = attachments;
+		this.overrideProperties = overrideProperties;
+	}
+
+	/**
+	 * Returns the recipients of this mail.
+	 *
+	 * @sample
+	 * var job = plugins.mail.createMailJob('to_someone@example.com', 'John Cobb <from_me@example.com>', 'subject', 'msgText');
+	 * job.setBulk(true);
+	 * application.output('mail to ' + job.getTo() + ' with subject ' + job.getSubject() + ' is bulk: ' + job.isBulk());
+	 */
+	public String js_getTo()
+	{
+		return getTo();
+	}
+
+	/**
+	 * Returns the subject of this mail.
+	 *
+	 * @sampleas js_getTo()
+	 */
+	public String js_getSubject()
+	{
+		return getSubject();
+	}
+
+	/**
+	 * Returns true if this mail is sent as a bulk mail, so no "out of office" replies are sent back.
+	 *
+	 * @sampleas js_getTo()
+	 */
+	public boolean js_isBulk()
+	{
+		return isBulk();
+	}
+
+	/**
+	 * Sets whether this mail is sent as a bulk mail, so no "out of office" replies are sent back.
+	 *
+	 * @sampleas js_getTo()
+	 *
+	 * @param bulk true to send this mail as a bulk mail
+	 */
+	public void js_setBulk(boolean bulk)
+	{
+		setBulk(bulk);
+	}
+
+	public String getTo()
+	{
+		return to;
+	}
+
+	public String getFrom()
+	{
+		return from;
+	}
+
+	public String getSubject()
+	{
+		return subject;
+	}
+
+	public String getMsgText()
+	{
+		return msgText;
+	}
+
+	public String getCc()
+	{
+		return cc;
+	}
+
+	public String getBcc()
+	{
+		return bcc;
+	}
+
+	public Attachment[] getAttachments()
+	{
+		return attachments;
+	}
+
+	public String[] getOverrideProperties()
+	{
+		return overrideProperties;
+	}
+
+	public boolean isBulk()
+	{
+		return bulk;
+	}
+
+	public void setBulk(boolean bulk)
+	{
+		this.bulk = bulk;
+	}
+
+	@Override
+	@SuppressWarnings("nls")
+	public String toString()
+	{
+		return "MailJob[to: " + to + ", subject: " + subject + (bulk ? ", bulk" : "") + "]";
+	}
+}
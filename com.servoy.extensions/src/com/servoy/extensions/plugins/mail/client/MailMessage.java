@@ -42,6 +42,9 @@ public class MailMessage implements Serializable, IJavaScriptType
 	public Date sentDate;
 	public String plainMsg;
 	public String htmlMsg;
+	public long uid = -1;
+	public long uidValidity = -1;
+	public int messageNumber = -1;
 
 	/**
 	 * Returns an array of Attachment instances corresponding to the attachments of this message.
@@ -192,6 +195,35 @@ public class MailMessage implements Serializable, IJavaScriptType
 		return getSubject();
 	}
 
+	/**
+	 * Returns the IMAP UID of this message in its folder, -1 if the message was not received with IMAP.
+	 * Together with the UIDVALIDITY it identifies the message, see plugins.mail.receiveImapMail().
+	 *
+	 * @sample
+	 * var msgs = plugins.mail.receiveImapMail(username, password, 'INBOX', lastUidValidity, lastUid);
+	 * if (msgs != null && msgs.length > 0)
+	 * {
+	 * 	// remember where to continue next time
+	 * 	lastUid = msgs[msgs.length - 1].getUid();
+	 * 	lastUidValidity = msgs[msgs.length - 1].getUidValidity();
+	 * }
+	 */
+	public long js_getUid()
+	{
+		return getUid();
+	}
+
+	/**
+	 * Returns the IMAP UIDVALIDITY of the folder of this message, -1 if the message was not received with IMAP.
+	 * When the UIDVALIDITY of a folder changes the UIDs of its messages are no longer valid.
+	 *
+	 * @sampleas js_getUid()
+	 */
+	public long js_getUidValidity()
+	{
+		return getUidValidity();
+	}
+
 	public String getFromAddresses()
 	{
 		return fromAddresses;
@@ -252,6 +284,24 @@ public class MailMessage implements Serializable, IJavaScriptType
 		return ccAddresses;
 	}
 
+	public long getUid()
+	{
+		return uid;
+	}
+
+	public long getUidValidity()
+	{
+		return uidValidity;
+	}
+
+	/**
+	 * @return the number of the message in the folder it was received from, -1 if it is not known
+	 */
+	public int getMessageNumber()
+	{
+		return messageNumber;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -16,15 +16,29 @@
  */
 package com.servoy.extensions.plugins.mail.client;
 
+import java.io.File;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Wrapper;
 
 import com.servoy.extensions.plugins.mail.IMailService;
+import com.servoy.j2db.dataprocessing.IDataSet;
 import com.servoy.j2db.documentation.ServoyDocumented;
 import com.servoy.j2db.plugins.IClientPluginAccess;
+import com.servoy.j2db.plugins.IFile;
+import com.servoy.j2db.scripting.FunctionDefinition;
 import com.servoy.j2db.scripting.IJavaScriptType;
 import com.servoy.j2db.scripting.IReturnedTypesProvider;
 import com.servoy.j2db.scripting.IScriptable;
@@ -39,9 +53,27 @@ import com.servoy.j2db.util.Utils;
 @ServoyDocumented(publicName = MailPlugin.PLUGIN_NAME, scriptingName = "plugins." + MailPlugin.PLUGIN_NAME)
 public class MailProvider implements IReturnedTypesProvider, IScriptable, IJavaScriptType
 {
+	private static final long QUEUE_POLL_INTERVAL = 2000;
+	private static final long MAX_QUEUE_POLL_INTERVAL = 60000;
+	// a new mail should be noticed soon after the server is notified of it, so waits are asked for more often than queued mails
+	private static final long IMAP_WAIT_POLL_INTERVAL = 5000;
+	// one thread for all clients that only schedules the polls, a poll itself runs shortly on the executor of its client
+	private static final ScheduledExecutorService pollScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Mail plugin poll scheduler"); //$NON-NLS-1$
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final int RECEIVE_BATCH_SIZE = 10;
+	// the server closes a receive after 10 minutes without calls, a callback that takes long must keep it open
+	private static final long RECEIVE_KEEP_OPEN_INTERVAL = 60000;
+
 	private final MailPlugin plugin;
 	private IMailService mailService = null;
 	private String sendMailException;
+	// callbacks of queued mails and of imap waits by the id the server gave them
+	private final Map<String, PollCallback> pollCallbacks = new HashMap<String, PollCallback>();
+	private boolean polling;
+	private long pollInterval = QUEUE_POLL_INTERVAL;
 
 	MailProvider(MailPlugin plugin)
 	{
@@ -320,6 +352,339 @@ public class MailProvider implements IReturnedTypesProvider, IScriptable, IJavaS
 		}
 	}
 
+	/**
+	 * Receive mails from pop3 account and call the callback function for every message, with the message as argument.
+	 * The messages are received while the callback is running, so a big mailbox is never in memory as a whole.
+	 * When the callback returns false, no more messages are received.
+	 * If the messages are not left on the server, a message is only deleted when the callback returned for it.
+	 *
+	 * @sample
+	 * var receiveMode = 0;//0=FULL,1=HEADERS_ONLY,2=NO_ATTACHMENTS
+	 *
+	 * var properties = new Array();
+	 * properties[0] = 'mail.pop3.host=myserver.com';
+	 *
+	 * var count = plugins.mail.forEachReceivedMail('mylogin', 'secretpass', false, receiveMode, null, properties, function(msg) {
+	 * 	application.output(msg.getFromAddresses() + ' ' + msg.getSubject());
+	 * 	var attachments = msg.getAttachments();
+	 * 	for (var j = 0; attachments != null && j < attachments.length; j++)
+	 * 	{
+	 * 		plugins.file.writeFile('/data/attachments/' + attachments[j].getName(), attachments[j].getData());
+	 * 	}
+	 * });
+	 * if (count == -1) //error occurred!
+	 * {
+	 * 	application.output('Could not receive the mails');
+	 * }
+	 *
+	 * @param username
+	 * @param password
+	 * @param leaveMsgsOnServer
+	 * @param receiveMode
+	 * @param onlyReceiveMsgWithSentDate
+	 * @param properties
+	 * @param callback The function that is called for every message
+	 *
+	 * @return the number of messages the callback was called for, -1 if the mails could not be received or the receive failed before all messages were received
+	 */
+	public int js_forEachReceivedMail(String username, String password, Boolean leaveMsgsOnServer, Number receiveMode, Date onlyReceiveMsgWithSentDate,
+		String[] properties, Function callback)
+	{
+		return js_forEachReceivedMail(username, password, leaveMsgsOnServer, receiveMode, onlyReceiveMsgWithSentDate, properties, callback, Boolean.TRUE);
+	}
+
+	/**
+	 * Receive mails from pop3 account and call the callback function for every message, with the message as argument.
+	 * The messages are received while the callback is running, so a big mailbox is never in memory as a whole.
+	 * When the callback returns false, no more messages are received.
+	 * If the messages are not left on the server, a message is only deleted when the callback returned for it.
+	 * When inOrder is false the callback gets the messages in the order they are received, which can be faster for big messages.
+	 *
+	 * @sampleas js_forEachReceivedMail(String,String,Boolean,Number,Date,String[],Function)
+	 *
+	 * @param username
+	 * @param password
+	 * @param leaveMsgsOnServer
+	 * @param receiveMode
+	 * @param onlyReceiveMsgWithSentDate
+	 * @param properties
+	 * @param callback The function that is called for every message
+	 * @param inOrder If the callback gets the messages in the order of the mailbox, defaults to true
+	 *
+	 * @return the number of messages the callback was called for, -1 if the mails could not be received or the receive failed before all messages were received
+	 */
+	public int js_forEachReceivedMail(String username, String password, Boolean leaveMsgsOnServer, Number receiveMode, Date onlyReceiveMsgWithSentDate,
+		String[] properties, Function callback, Boolean inOrder)
+	{
+		boolean _leaveMsgsOnServer = (leaveMsgsOnServer == null ? true : leaveMsgsOnServer.booleanValue());
+		int _receiveMode = (receiveMode == null ? 0 : receiveMode.intValue());
+		boolean _inOrder = (inOrder == null ? true : inOrder.booleanValue());
+
+		if (username == null || password == null || callback == null) return -1;
+
+		//create if not yet created
+		createMailService();
+		//incase the server is not started in developer
+		if (mailService == null) return -1;
+
+		IClientPluginAccess access = plugin.getClientPluginAccess();
+		String clientId = access.getClientID();
+		String receiveId;
+		try
+		{
+			receiveId = mailService.openReceiveMail(clientId, username, password, _leaveMsgsOnServer, _receiveMode, onlyReceiveMsgWithSentDate,
+				properties, _inOrder);
+		}
+		catch (Exception e)
+		{
+			Debug.error(e);
+			return -1;
+		}
+		if (receiveId == null) return -1;
+
+		FunctionDefinition function = new FunctionDefinition(callback);
+		int count = 0;
+		// the messages the callback returned for, reported to the server with the next call
+		List<Integer> processed = new ArrayList<Integer>();
+		long lastCall = System.currentTimeMillis();
+		try
+		{
+			while (true)
+			{
+				// an empty array when all messages are received, null when the receive failed or expired
+				MailMessage[] messages = mailService.nextReceivedMail(clientId, receiveId, toArray(processed), RECEIVE_BATCH_SIZE);
+				if (messages == null)
+				{
+					Debug.error("Receive of the mails failed after " + count + " messages"); //$NON-NLS-1$ //$NON-NLS-2$
+					return -1;
+				}
+				lastCall = System.currentTimeMillis();
+				if (messages.length == 0) break;
+				processed.clear();
+				for (MailMessage message : messages)
+				{
+					Object result = function.executeSync(access, new Object[] { message });
+					processed.add(Integer.valueOf(message.getMessageNumber()));
+					count++;
+					if (Boolean.FALSE.equals(result)) return count;
+					if (System.currentTimeMillis() - lastCall > RECEIVE_KEEP_OPEN_INTERVAL)
+					{
+						if (!mailService.keepReceiveMailOpen(clientId, receiveId, toArray(processed)))
+						{
+							Debug.error("Receive of the mails expired after " + count + " messages"); //$NON-NLS-1$ //$NON-NLS-2$
+							return -1;
+						}
+						processed.clear();
+						lastCall = System.currentTimeMillis();
+					}
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			Debug.error("Receive of the mails failed after " + count + " messages", e); //$NON-NLS-1$ //$NON-NLS-2$
+			return -1;
+		}
+		finally
+		{
+			try
+			{
+				mailService.closeReceiveMail(clientId, receiveId, toArray(processed));
+			}
+			catch (Exception e)
+			{
+				Debug.error(e);
+			}
+		}
+		return count;
+	}
+
+	private static int[] toArray(List<Integer> list)
+	{
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++)
+		{
+			array[i] = list.get(i).intValue();
+		}
+		return array;
+	}
+
+	/**
+	 * Receive the new mails of an IMAP folder. Only the messages that arrived after the last message that was received
+	 * (the message with uid lastUid) are fetched, so polling a big mailbox only transfers what is new.
+	 * Every message has a uid and a uidValidity, store those of the last message to continue from there with the next call.
+	 * When the folder got a new UIDVALIDITY (the server renumbered it) all messages are received again.
+	 *
+	 * @sample
+	 * // lastUidValidity and lastUid are stored between calls, 0 the first time
+	 * var msgs = plugins.mail.receiveImapMail('mylogin', 'secretpass', 'INBOX', lastUidValidity, lastUid);
+	 * if (msgs != null) //if is null error occurred!
+	 * {
+	 * 	for (var i = 0 ; i < msgs.length ; i++)
+	 * 	{
+	 * 		var msg = msgs[i]
+	 * 		application.output(msg.getUid() + ' ' + msg.getFromAddresses() + ' ' + msg.getSubject())
+	 * 		lastUid = msg.getUid();
+	 * 		lastUidValidity = msg.getUidValidity();
+	 * 	}
+	 * }
+	 *
+	 * @param username
+	 * @param password
+	 * @param folderName The IMAP folder, for example INBOX
+	 * @param uidValidity The uidValidity of the last received message, 0 to receive all messages
+	 * @param lastUid The uid of the last received message, 0 to receive all messages
+	 */
+	public MailMessage[] js_receiveImapMail(String username, String password, String folderName, Number uidValidity, Number lastUid)
+	{
+		return js_receiveImapMail(username, password, folderName, uidValidity, lastUid, Integer.valueOf(0), null);
+	}
+
+	/**
+	 * Receive the new mails of an IMAP folder. Only the messages that arrived after the last message that was received
+	 * (the message with uid lastUid) are fetched, so polling a big mailbox only transfers what is new.
+	 * With receive mode 1 (HEADERS_ONLY) only the headers are fetched, the full message can be received later with receiveImapMessage.
+	 *
+	 * @sample
+	 * var receiveMode = 1;//0=FULL,1=HEADERS_ONLY,2=NO_ATTACHMENTS
+	 *
+	 * var properties = new Array();
+	 * properties[0] = 'mail.imap.host=myserver.com';
+	 * properties[1] = 'mail.imap.ssl.enable=true';
+	 *
+	 * var msgs = plugins.mail.receiveImapMail('mylogin', 'secretpass', 'INBOX', lastUidValidity, lastUid, receiveMode, properties);
+	 * if (msgs != null) //if is null error occurred!
+	 * {
+	 * 	for (var i = 0 ; i < msgs.length ; i++)
+	 * 	{
+	 * 		var msg = msgs[i]
+	 * 		if (msg.getSubject().indexOf('invoice') >= 0)
+	 * 		{
+	 * 			var full = plugins.mail.receiveImapMessage('mylogin', 'secretpass', 'INBOX', msg.getUidValidity(), msg.getUid(), properties);
+	 * 			application.output(full.getPlainMsg())
+	 * 		}
+	 * 		lastUid = msg.getUid();
+	 * 		lastUidValidity = msg.getUidValidity();
+	 * 	}
+	 * }
+	 *
+	 * @param username
+	 * @param password
+	 * @param folderName The IMAP folder, for example INBOX
+	 * @param uidValidity The uidValidity of the last received message, 0 to receive all messages
+	 * @param lastUid The uid of the last received message, 0 to receive all messages
+	 * @param receiveMode
+	 * @param properties
+	 */
+	public MailMessage[] js_receiveImapMail(String username, String password, String folderName, Number uidValidity, Number lastUid, Number receiveMode,
+		String[] properties)
+	{
+		if (username == null || password == null) return null;
+
+		createMailService();
+		if (mailService != null)
+		{
+			try
+			{
+				return mailService.receiveImapMail(plugin.getClientPluginAccess().getClientID(), username, password, folderName,
+					uidValidity == null ? 0 : uidValidity.longValue(), lastUid == null ? 0 : lastUid.longValue(), receiveMode == null ? 0 : receiveMode.intValue(),
+					properties);
+			}
+			catch (Exception e)
+			{
+				Debug.error(e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Receive one full message of an IMAP folder, for example after listing the folder with only the headers.
+	 * Returns null if the message doesn't exist anymore or the folder got a new UIDVALIDITY.
+	 *
+	 * @sampleas js_receiveImapMail(String,String,String,Number,Number,Number,String[])
+	 *
+	 * @param username
+	 * @param password
+	 * @param folderName The IMAP folder, for example INBOX
+	 * @param uidValidity The uidValidity of the message
+	 * @param uid The uid of the message
+	 * @param properties
+	 */
+	public MailMessage js_receiveImapMessage(String username, String password, String folderName, Number uidValidity, Number uid, String[] properties)
+	{
+		if (username == null || password == null || uidValidity == null || uid == null) return null;
+
+		createMailService();
+		if (mailService != null)
+		{
+			try
+			{
+				return mailService.receiveImapMessage(plugin.getClientPluginAccess().getClientID(), username, password, folderName,
+					uidValidity.longValue(), uid.longValue(), IMailService.FULL, properties);
+			}
+			catch (Exception e)
+			{
+				Debug.error(e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Waits in the background until a new mail arrives in an IMAP folder (a message with a uid above lastUid) or until the timeout is reached,
+	 * then the callback is called with true if there is a new mail, false if the timeout was reached or the wait failed.
+	 * The server is notified by the IMAP server (IMAP IDLE) if it supports that, otherwise the folder is checked every 30 seconds.
+	 * The timeout is at most 25 minutes, the callback can come a few seconds after the mail arrived.
+	 * The server limits the number of waits at the same time (mail.imap.maxWaits), false is returned when the wait can't be started.
+	 *
+	 * @sample
+	 * plugins.mail.waitForImapMail('mylogin', 'secretpass', 'INBOX', lastUid, 600000, mailArrived, properties);
+	 *
+	 * function mailArrived(newMail)
+	 * {
+	 * 	if (newMail)
+	 * 	{
+	 * 		var msgs = plugins.mail.receiveImapMail('mylogin', 'secretpass', 'INBOX', lastUidValidity, lastUid, 0, properties);
+	 * 		// handle the messages and update lastUid and lastUidValidity
+	 * 	}
+	 * 	// wait for the next mail
+	 * 	plugins.mail.waitForImapMail('mylogin', 'secretpass', 'INBOX', lastUid, 600000, mailArrived, properties);
+	 * }
+	 *
+	 * @param username
+	 * @param password
+	 * @param folderName The IMAP folder, for example INBOX
+	 * @param lastUid The uid of the last received message
+	 * @param timeout The maximum time to wait in milliseconds
+	 * @param callback The function that is called when there is a new mail or the wait is over
+	 * @param properties
+	 *
+	 * @return true if the wait is started
+	 */
+	public boolean js_waitForImapMail(String username, String password, String folderName, Number lastUid, Number timeout, Function callback,
+		String[] properties)
+	{
+		if (username == null || password == null || callback == null) return false;
+
+		createMailService();
+		if (mailService != null)
+		{
+			try
+			{
+				String id = mailService.waitForImapMail(plugin.getClientPluginAccess().getClientID(), username, password, folderName,
+					lastUid == null ? 0 : lastUid.longValue(), timeout == null ? 0 : timeout.longValue(), properties);
+				if (id == null) return false;
+				addPollCallback(id, new PollCallback(new FunctionDefinition(callback), null));
+				return true;
+			}
+			catch (Exception e)
+			{
+				Debug.error(e);
+			}
+		}
+		return false;
+	}
 
 	/**
 	 * Helper method to only get the plain addresses.
@@ -462,6 +827,66 @@ public class MailProvider implements IReturnedTypesProvider, IScriptable, IJavaS
 		return new Attachment(filename, binarydata, mimeType);
 	}
 
+	/**
+	 * Creates an attachment that reads its data from a file when the mail is sent, so big files are never loaded in memory.
+	 * The file can be a JSFile or the path of a file, the name of the file is the name of the attachment.
+	 * The file must be on the machine of the client, in the smart client a file of the server must be streamed to the client first.
+	 *
+	 * @sample
+	 * var attachment = plugins.mail.createFileAttachment(plugins.file.convertToJSFile('c:/temp/big_report.pdf'));
+	 * var success = plugins.mail.sendMail('to_someone@example.com', 'John Cobb <from_me@example.org>', 'subject', 'msgText',null,null,attachment);
+	 * if (!success)
+	 * {
+	 * 	plugins.dialogs.showWarningDialog('Alert','Failed to send mail','OK');
+	 * }
+	 *
+	 * @param file a JSFile or the path of the file
+	 */
+	public Attachment js_createFileAttachment(Object file)
+	{
+		return js_createFileAttachment(file, null, null);
+	}
+
+	/**
+	 * Creates an attachment that reads its data from a file when the mail is sent, so big files are never loaded in memory.
+	 * The file can be a JSFile or the path of a file.
+	 *
+	 * @sampleas js_createFileAttachment(Object)
+	 *
+	 * @param file a JSFile or the path of the file
+	 * @param filename the name of the attachment, null for the name of the file
+	 * @param mimeType the mime type of the attachment, null to detect it from the content
+	 */
+	public Attachment js_createFileAttachment(Object file, String filename, String mimeType)
+	{
+		File f = null;
+		if (file instanceof IFile)
+		{
+			f = ((IFile)file).getFile();
+		}
+		else if (file instanceof File)
+		{
+			f = (File)file;
+		}
+		else if (file instanceof String)
+		{
+			f = new File((String)file);
+		}
+		if (f != null && !f.exists() && file instanceof IFile)
+		{
+			// a file of the server (convertToRemoteJSFile) is not on the machine of a smart client, the attachment is read where the mail is created
+			Debug.error("Can't create a file attachment, " + file + //$NON-NLS-1$
+				" doesn't exist on this client; a server file must be streamed to the client first (plugins.file.streamFilesFromServer)"); //$NON-NLS-1$
+			return null;
+		}
+		if (f == null || !f.isFile())
+		{
+			Debug.error("Can't create a file attachment, not a file: " + file); //$NON-NLS-1$
+			return null;
+		}
+		return new Attachment(filename != null ? filename : f.getName(), f, mimeType, false);
+	}
+
 	/**
 	 * Creates a text based attachment objec with the default 'text/plain' mimetype
 	 *
@@ -1031,6 +1456,472 @@ public class MailProvider implements IReturnedTypesProvider, IScriptable, IJavaS
 		return sendBulkMail(to, from, subject, msgText, cc, bcc, getAttachments(attachment), getOverrideProperties(smtpHost));
 	}
 
+	/**
+	 * Creates a mail for a batch that is sent with sendBatch.
+	 *
+	 * @sample
+	 * var jobs = [];
+	 * for (var i = 1; i <= foundset.getSize(); i++)
+	 * {
+	 * 	var record = foundset.getRecord(i);
+	 * 	var job = plugins.mail.createMailJob(record.email, 'John Cobb <from_me@example.com>', 'Newsletter', 'Dear ' + record.name + ',<html>...</html>');
+	 * 	job.setBulk(true);
+	 * 	jobs.push(job);
+	 * }
+	 * var results = plugins.mail.sendBatch(jobs);
+	 * for (var j = 0; j < results.length; j++)
+	 * {
+	 * 	if (results[j] != null) application.output('Failed to send mail to ' + jobs[j].getTo() + ': ' + results[j]);
+	 * }
+	 *
+	 * @param to A string containing 1 or multiple addresses separated by a comma.
+	 * @param from A string containing an address and optional reply addresses, separated by commas.
+	 * @param subject The subject of the mail
+	 * @param msgText The message text
+	 */
+	public MailJob js_createMailJob(String to, String from, String subject, String msgText)
+	{
+		return js_createMailJob(to, from, subject, msgText, null, null, null, null);
+	}
+
+	/**
+	 * Creates a mail for a batch that is sent with sendBatch.
+	 *
+	 * @sampleas js_createMailJob(String,String,String,String)
+	 *
+	 * @param to A string containing 1 or multiple addresses separated by a comma.
+	 * @param from A string containing an address and optional reply addresses, separated by commas.
+	 * @param subject The subject of the mail
+	 * @param msgText The message text
+	 * @param cc One or more addresses separated by a comma
+	 * @param bcc One or more addresses separated by a comma
+	 * @param attachments The attachments
+	 * @param overrideProperties An array of properties
+	 */
+	public MailJob js_createMailJob(String to, String from, String subject, String msgText, String cc, String bcc, Attachment[] attachments,
+		String[] overrideProperties)
+	{
+		if (to == null || subject == null || msgText == null) return null;
+		return new MailJob(to, from, subject, msgText, cc, bcc, attachments, overrideProperties);
+	}
+
+	/**
+	 * Sends a batch of mails. The mails are sent in parallel by the server, over connections that are reused for multiple mails,
+	 * the number of mails per second to one smtp host can be limited with the mail.smtp.batch.rate property.
+	 * A mail that fails doesn't stop the batch, the result has for every mail null if it was sent or the error message why it wasn't sent.
+	 * This waits until the whole batch is sent, so the size of a batch is limited by the mail.smtp.batch.maxSize property of the server (default 500),
+	 * all mails of a larger batch get an error. Send more mails in parts or with queueMail.
+	 *
+	 * @sampleas js_createMailJob(String,String,String,String)
+	 *
+	 * @param jobs The mails to send, created with createMailJob
+	 *
+	 * @return An array with for every mail null if it was sent, otherwise the error message; null if the batch couldn't be sent at all
+	 */
+	public String[] js_sendBatch(MailJob[] jobs)
+	{
+		sendMailException = null;
+		if (jobs == null) return null;
+
+		//create if not yet created
+		createMailService();
+
+		//incase the server is not started in developer
+		if (mailService != null)
+		{
+			try
+			{
+				return mailService.sendBatch(plugin.getClientPluginAccess().getClientID(), jobs);
+			}
+			catch (Exception mex)
+			{
+				Debug.error(mex);
+				sendMailException = mex.getMessage();
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Creates a template for a mail merge that is sent with sendMailMerge.
+	 * The subject and message text can have %%name%% tags, these are replaced by the value of the column (or property) with that name of every record.
+	 * Like with sendMail, a tag with the name of an attachment in the html is an embedded image. The values are inserted as they are, also in html.
+	 *
+	 * @sample
+	 * var logo = plugins.mail.createBinaryAttachment('logo.gif', plugins.file.readFile('c:/temp/logo.gif'));
+	 * var template = plugins.mail.createMailTemplate('John Cobb <from_me@example.com>', 'Your order %%order_no%%',
+	 * 	'Dear %%name%%, your order %%order_no%% is shipped.<html><img src="%%logo.gif%%"/><p>Dear %%name%%, your order %%order_no%% is shipped.</p></html>',
+	 * 	[logo], null);
+	 * var dataset = databaseManager.getDataSetByQuery('example_data', 'select email, name, order_no from orders where shipped = 1', null, -1);
+	 * var results = plugins.mail.sendMailMerge(template, dataset, 'email');
+	 * for (var i = 0; results != null && i < results.length; i++)
+	 * {
+	 * 	if (results[i] != null) application.output('Failed to send mail to ' + dataset.getValue(i + 1, 1) + ': ' + results[i]);
+	 * }
+	 *
+	 * @param from A string containing an address and optional reply addresses, separated by commas.
+	 * @param subject The subject of the mails, can have tags
+	 * @param msgText The message text, can have tags
+	 */
+	public MailTemplate js_createMailTemplate(String from, String subject, String msgText)
+	{
+		return js_createMailTemplate(from, subject, msgText, null, null);
+	}
+
+	/**
+	 * Creates a template for a mail merge that is sent with sendMailMerge.
+	 * The subject and message text can have %%name%% tags, these are replaced by the value of the column (or property) with that name of every record.
+	 * Like with sendMail, a tag with the name of an attachment in the html is an embedded image. The values are inserted as they are, also in html.
+	 *
+	 * @sampleas js_createMailTemplate(String,String,String)
+	 *
+	 * @param from A string containing an address and optional reply addresses, separated by commas.
+	 * @param subject The subject of the mails, can have tags
+	 * @param msgText The message text, can have tags
+	 * @param attachments The attachments and embedded images, sent with every mail
+	 * @param overrideProperties An array of properties
+	 */
+	public MailTemplate js_createMailTemplate(String from, String subject, String msgText, Attachment[] attachments, String[] overrideProperties)
+	{
+		if (subject == null || msgText == null) return null;
+		return new MailTemplate(from, subject, msgText, attachments, overrideProperties);
+	}
+
+	/**
+	 * Sends the template to every record, with the tags replaced by the values of that record.
+	 * The records are the rows of a dataset or an array of objects, the recipients are the values of the toColumn.
+	 * The template is prepared once for all records and the mails are sent like sendBatch, in parallel over reused connections.
+	 * Like sendBatch the number of records is limited by the mail.smtp.batch.maxSize property of the server.
+	 *
+	 * @sampleas js_createMailTemplate(String,String,String)
+	 *
+	 * @param template The template, created with createMailTemplate
+	 * @param records A JSDataSet or an array of objects
+	 * @param toColumn The column (or property) with the recipient addresses
+	 *
+	 * @return An array with for every record null if it was sent, otherwise the error message; null if the mails couldn't be sent at all
+	 */
+	public String[] js_sendMailMerge(MailTemplate template, Object records, String toColumn)
+	{
+		sendMailException = null;
+		if (template == null || records == null || toColumn == null) return null;
+
+		String[] columnNames;
+		String[][] rows;
+		Object data = records instanceof NativeArray ? ((NativeArray)records).unwrap() : records;
+		if (data instanceof Wrapper) data = ((Wrapper)data).unwrap();
+		if (data instanceof IDataSet)
+		{
+			IDataSet set = (IDataSet)data;
+			columnNames = set.getColumnNames();
+			rows = new String[set.getRowCount()][];
+			for (int i = 0; i < rows.length; i++)
+			{
+				Object[] row = set.getRow(i);
+				rows[i] = new String[row.length];
+				for (int j = 0; j < row.length; j++)
+				{
+					rows[i][j] = toMergeValue(row[j]);
+				}
+			}
+		}
+		else if (data instanceof Object[])
+		{
+			Object[] objects = (Object[])data;
+			Map<String, Integer> columns = new LinkedHashMap<String, Integer>();
+			for (Object object : objects)
+			{
+				if (object instanceof Map)
+				{
+					for (Object key : ((Map< ? , ? >)object).keySet())
+					{
+						if (!columns.containsKey(String.valueOf(key))) columns.put(String.valueOf(key), Integer.valueOf(columns.size()));
+					}
+				}
+			}
+			columnNames = columns.keySet().toArray(new String[columns.size()]);
+			rows = new String[objects.length][];
+			for (int i = 0; i < objects.length; i++)
+			{
+				if (!(objects[i] instanceof Map)) continue;
+				rows[i] = new String[columnNames.length];
+				for (Map.Entry< ? , ? > entry : ((Map< ? , ? >)objects[i]).entrySet())
+				{
+					rows[i][columns.get(String.valueOf(entry.getKey())).intValue()] = toMergeValue(entry.getValue());
+				}
+			}
+		}
+		else
+		{
+			Debug.error("sendMailMerge needs a dataset or an array of objects, not " + records); //$NON-NLS-1$
+			return null;
+		}
+
+		//create if not yet created
+		createMailService();
+
+		//incase the server is not started in developer
+		if (mailService != null)
+		{
+			try
+			{
+				return mailService.sendMailMerge(plugin.getClientPluginAccess().getClientID(), template, columnNames, rows, toColumn);
+			}
+			catch (Exception mex)
+			{
+				Debug.error(mex);
+				sendMailException = mex.getMessage();
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static String toMergeValue(Object value)
+	{
+		Object val = value instanceof Wrapper ? ((Wrapper)value).unwrap() : value;
+		if (val == null) return null;
+		if (val instanceof Double && !((Double)val).isInfinite() && ((Double)val).doubleValue() == Math.rint(((Double)val).doubleValue()))
+		{
+			// javascript numbers are doubles, whole numbers are shown without decimals
+			return String.valueOf(((Double)val).longValue());
+		}
+		return val.toString();
+	}
+
+	/**
+	 * Puts a mail in the outbound mail queue of the server, this returns as soon as the mail is stored in the queue.
+	 * The server sends the mail in the background and retries it (with an increasing delay) when the smtp server can't be reached or refuses it.
+	 * Queued mails are stored on disk, they are still sent when the server is restarted in the meantime.
+	 * The server property mail.queue.directory must be set to the folder where the queued mails are stored, otherwise this returns false.
+	 *
+	 * @sample
+	 * var job = plugins.mail.createMailJob('to_someone@example.com', 'John Cobb <from_me@example.com>', 'subject', 'msgText');
+	 * if (!plugins.mail.queueMail(job))
+	 * {
+	 * 	plugins.dialogs.showWarningDialog('Alert', plugins.mail.getLastSendMailExceptionMsg(), 'OK');
+	 * }
+	 *
+	 * @param job The mail to send, created with createMailJob
+	 *
+	 * @return true if the mail was queued
+	 */
+	public boolean js_queueMail(MailJob job)
+	{
+		return js_queueMail(job, null);
+	}
+
+	/**
+	 * Puts a mail in the outbound mail queue of the server, this returns as soon as the mail is stored in the queue.
+	 * The server sends the mail in the background and retries it (with an increasing delay) when the smtp server can't be reached or refuses it.
+	 * The callback is called when the mail is sent or when the server gave up on it, with as arguments
+	 * true or false (sent or not), the error message (null when it was sent) and the job.
+	 * The client asks the server for the results less often while the mails are waiting, so a callback can come up to a minute after the mail is sent.
+	 *
+	 * @sample
+	 * var job = plugins.mail.createMailJob('to_someone@example.com', 'John Cobb <from_me@example.com>', 'subject', 'msgText');
+	 * plugins.mail.queueMail(job, mailDone);
+	 *
+	 * function mailDone(sent, error, job)
+	 * {
+	 * 	if (!sent) application.output('Mail to ' + job.getTo() + ' failed: ' + error);
+	 * }
+	 *
+	 * @param job The mail to send, created with createMailJob
+	 * @param callback The function that is called when the mail is sent or failed
+	 *
+	 * @return true if the mail was queued
+	 */
+	public boolean js_queueMail(MailJob job, Function callback)
+	{
+		sendMailException = null;
+		if (job == null) return false;
+
+		//create if not yet created
+		createMailService();
+
+		//incase the server is not started in developer
+		if (mailService != null)
+		{
+			try
+			{
+				String id = mailService.queueMail(plugin.getClientPluginAccess().getClientID(), job, callback != null);
+				if (id == null) return false;
+				if (callback != null) addPollCallback(id, new PollCallback(new FunctionDefinition(callback), job));
+				return true;
+			}
+			catch (Exception mex)
+			{
+				Debug.error(mex);
+				sendMailException = mex.getMessage();
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the status of the outbound mail queue of the server: the number of mails waiting to be sent,
+	 * how long the oldest one is waiting and how many queued mails were sent, failed and retried.
+	 *
+	 * @sample
+	 * var status = plugins.mail.getMailQueueStatus();
+	 * if (status != null && status.getSize() > 1000)
+	 * {
+	 * 	application.output('The mail queue is ' + status.getSize() + ' mails behind, oldest mail waiting ' + status.getOldestAge() / 1000 + 's');
+	 * }
+	 *
+	 * @return the status of the queue, null if it is not available
+	 */
+	public MailQueueStatus js_getMailQueueStatus()
+	{
+		createMailService();
+		if (mailService != null)
+		{
+			try
+			{
+				return mailService.getMailQueueStatus(plugin.getClientPluginAccess().getClientID());
+			}
+			catch (RemoteException e)
+			{
+				Debug.error(e);
+			}
+		}
+		return null;
+	}
+
+	private void addPollCallback(String id, PollCallback callback)
+	{
+		long delay = callback.job != null ? QUEUE_POLL_INTERVAL : IMAP_WAIT_POLL_INTERVAL;
+		synchronized (pollCallbacks)
+		{
+			pollCallbacks.put(id, callback);
+			pollInterval = QUEUE_POLL_INTERVAL;
+			if (polling) return;
+			polling = true;
+		}
+		schedulePoll(delay);
+	}
+
+	/**
+	 * Schedules the next poll of the queue and imap wait results, no client thread waits for it.
+	 */
+	private void schedulePoll(long delay)
+	{
+		pollScheduler.schedule(() -> {
+			IClientPluginAccess access = plugin.getClientPluginAccess();
+			if (access != null)
+			{
+				access.getExecutor().execute(this::pollResults);
+			}
+			else
+			{
+				synchronized (pollCallbacks)
+				{
+					polling = false;
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Asks the server once for the results of the queued mails and imap waits that have a callback, and schedules the next poll while there are callbacks left.
+	 */
+	private void pollResults()
+	{
+		List<String> queueIds = new ArrayList<String>();
+		List<String> waitIds = new ArrayList<String>();
+		synchronized (pollCallbacks)
+		{
+			if (pollCallbacks.isEmpty() || plugin.getClientPluginAccess() == null)
+			{
+				polling = false;
+				return;
+			}
+			for (Map.Entry<String, PollCallback> entry : pollCallbacks.entrySet())
+			{
+				(entry.getValue().job != null ? queueIds : waitIds).add(entry.getKey());
+			}
+		}
+		boolean received = false;
+		try
+		{
+			IClientPluginAccess access = plugin.getClientPluginAccess();
+			if (access != null && queueIds.size() > 0)
+			{
+				String[] ids = queueIds.toArray(new String[queueIds.size()]);
+				String[] results = mailService.getQueuedMailResults(access.getClientID(), ids);
+				for (int i = 0; results != null && i < results.length; i++)
+				{
+					if (results[i] == null) continue;
+					PollCallback callback = removePollCallback(ids[i]);
+					if (callback == null) continue;
+					received = true;
+					boolean sent = results[i].length() == 0;
+					callback.function.executeAsync(access, new Object[] { Boolean.valueOf(sent), sent ? null : results[i], callback.job });
+				}
+			}
+			if (access != null && waitIds.size() > 0)
+			{
+				String[] ids = waitIds.toArray(new String[waitIds.size()]);
+				Boolean[] results = mailService.getImapMailWaitResults(access.getClientID(), ids);
+				for (int i = 0; results != null && i < results.length; i++)
+				{
+					if (results[i] == null) continue;
+					PollCallback callback = removePollCallback(ids[i]);
+					if (callback != null) callback.function.executeAsync(access, new Object[] { results[i] });
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			Debug.error(e);
+		}
+		long delay;
+		synchronized (pollCallbacks)
+		{
+			if (pollCallbacks.isEmpty())
+			{
+				polling = false;
+				return;
+			}
+			// mails can wait in the queue for hours when they are retried, so ask less often while nothing comes back
+			pollInterval = received ? QUEUE_POLL_INTERVAL : Math.min(MAX_QUEUE_POLL_INTERVAL, pollInterval * 2);
+			delay = pollInterval;
+			for (PollCallback callback : pollCallbacks.values())
+			{
+				if (callback.job == null)
+				{
+					delay = Math.min(delay, IMAP_WAIT_POLL_INTERVAL);
+					break;
+				}
+			}
+		}
+		schedulePoll(delay);
+	}
+
+	private PollCallback removePollCallback(String id)
+	{
+		synchronized (pollCallbacks)
+		{
+			return pollCallbacks.remove(id);
+		}
+	}
+
+	private static class PollCallback
+	{
+		final FunctionDefinition function;
+		// the queued mail, null for an imap wait
+		final MailJob job;
+
+		PollCallback(FunctionDefinition function, MailJob job)
+		{
+			this.function = function;
+			this.job = job;
+		}
+	}
+
 	/**
 	 * @param smtpHost
 	 * @return
@@ -1184,6 +2075,6 @@ public class MailProvider implements IReturnedTypesProvider, IScriptable, IJavaS
 
 	public Class< ? >[] getAllReturnedTypes()
 	{
-		return new Class[] { MailMessage.class, Attachment.class };
+		return new Class[] { MailMessage.class, Attachment.class, MailJob.class, MailQueueStatus.class, MailTemplate.class };
 	}
 }
@@ -0,0 +1,114 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.plugins.mail.client;
+
+import java.io.Serializable;
+
+import com.servoy.j2db.documentation.ServoyDocumented;
+import com.servoy.j2db.scripting.IJavaScriptType;
+
+/**
+ * Status of the outbound mail queue of the server.
+ * @author jblok
+ */
+@ServoyDocumented(scriptingName = "MailQueueStatus")
+public class MailQueueStatus implements Serializable, IJavaScriptType
+{
+	private final int size;
+	private final long oldestAge;
+	private final long sent;
+	private final long failed;
+	private final long retries;
+
+	public MailQueueStatus()
+	{
+		//for developer script introspection only
+		this(0, 0, 0, 0, 0);
+	}
+
+	public MailQueueStatus(int size, long oldestAge, long sent, long failed, long retries)
+	{
+		this.size = size;
+		this.oldestAge = oldestAge;
+		this.sent = sent;
+		this.failed = failed;
+		this.retries = retries;
+	}
+
+	/**
+	 * Returns the number of mails in the queue that are not sent yet.
+	 *
+	 * @sample
+	 * var status = plugins.mail.getMailQueueStatus();
+	 * if (status != null)
+	 * {
+	 * 	application.output('queued: ' + status.getSize() + ', oldest: ' + status.getOldestAge() + 'ms');
+	 * 	application.output('sent: ' + status.getSent() + ', failed: ' + status.getFailed() + ', retries: ' + status.getRetries());
+	 * }
+	 */
+	public int js_getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the time in milliseconds the oldest mail in the queue is waiting to be sent, 0 when the queue is empty.
+	 *
+	 * @sampleas js_getSize()
+	 */
+	public long js_getOldestAge()
+	{
+		return oldestAge;
+	}
+
+	/**
+	 * Returns the number of queued mails that were sent since the server started.
+	 *
+	 * @sampleas js_getSize()
+	 */
+	public long js_getSent()
+	{
+		return sent;
+	}
+
+	/**
+	 * Returns the number of queued mails that failed and were given up since the server started.
+	 *
+	 * @sampleas js_getSize()
+	 */
+	public long js_getFailed()
+	{
+		return failed;
+	}
+
+	/**
+	 * Returns the number of times a queued mail was retried since the server started.
+	 *
+	 * @sampleas js_getSize()
+	 */
+	public long js_getRetries()
+	{
+		return retries;
+	}
+
+	@Override
+	@SuppressWarnings("nls")
+	public String toString()
+	{
+		return "MailQueueStatus[size: " + size + ", oldestAge: " + oldestAge + ", sent: " + sent + ", failed: " + failed + ", retries: " + retries + "]";
+	}
+}
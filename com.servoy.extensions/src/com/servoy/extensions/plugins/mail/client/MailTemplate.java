@@ -0,0 +1,130 @@
+/*
+ This file belongs to the Servoy development and deployment environment, Copyright (C) 1997-2014 Servoy BV
+
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Affero General Public License as published by the Free
+ Software Foundation; either version 3 of the License, or (at your option) any
+ later version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License along
+ with this program; if not, see http://www.gnu.org/licenses or write to the Free
+ Software Foundation,Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ */
+package com.servoy.extensions.plugins.mail.client;
+
+import java.io.Serializable;
+
+import com.servoy.j2db.documentation.ServoyDocumented;
+import com.servoy.j2db.scripting.IJavaScriptType;
+
+/**
+ * Template of a mail that is sent to many recipients with plugins.mail.sendMailMerge(),
+ * the %%name%% tags in the subject and message text are replaced by the values of every record.
+ * @author jblok
+ */
+@ServoyDocumented(scriptingName = "MailTemplate")
+public class MailTemplate implements Serializable, IJavaScriptType
+{
+	private final String from;
+	private final String subject;
+	private final String msgText;
+	private final Attachment[] attachments;
+	private final String[] overrideProperties;
+	private boolean bulk = true;
+
+	public MailTemplate()
+	{
+		//for developer script introspection only
+		this(null, null, null, null, null);
+	}
+
+	public MailTemplate(String from, String subject, String msgText, Attachment[] attachments, String[] overrideProperties)
+	{
+		this.from = from;
+		this.subject = subject;
+		this.msgText = msgText;
+		this.attachments = attachments;
+		this.overrideProperties = overrideProperties;
+	}
+
+	/**
+	 * Returns the subject of this template, with the tags not replaced.
+	 *
+	 * @sample
+	 * var template = plugins.mail.createMailTemplate('John Cobb <from_me@example.com>', 'Your order %%order_no%%', '<html>Dear %%name%%, ...</html>');
+	 * template.setBulk(false);
+	 * application.output('template ' + template.getSubject() + ' is bulk: ' + template.isBulk());
+	 */
+	public String js_getSubject()
+	{
+		return getSubject();
+	}
+
+	/**
+	 * Returns true if the mails of this template are sent as bulk mails, so no "out of office" replies are sent back. This is the default.
+	 *
+	 * @sampleas js_getSubject()
+	 */
+	public boolean js_isBulk()
+	{
+		return isBulk();
+	}
+
+	/**
+	 * Sets whether the mails of this template are sent as bulk mails, so no "out of office" replies are sent back.
+	 *
+	 * @sampleas js_getSubject()
+	 *
+	 * @param bulk true to send the mails as bulk mails
+	 */
+	public void js_setBulk(boolean bulk)
+	{
+		setBulk(bulk);
+	}
+
+	public String getFrom()
+	{
+		return from;
+	}
+
+	public String getSubject()
+	{
+		return subject;
+	}
+
+	public String getMsgText()
+	{
+		return msgText;
+	}
+
+	public Attachment[] getAttachments()
+	{
+		return attachments;
+	}
+
+	public String[] getOverrideProperties()
+	{
+		return overrideProperties;
+	}
+
+	public boolean isBulk()
+	{
+		return bulk;
+	}
+
+	public void setBulk(boolean bulk)
+	{
+		this.bulk = bulk;
+	}
+
+	@Override
+	@SuppressWarnings("nls")
+	public String toString()
+	{
+		return "MailTemplate[subject: " + subject + (bulk ? ", bulk" : "") + "]";
+	}
+}